@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis.benchmark;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.PackChunk.Members;
+import org.eclipse.jgit.storage.dht.RepositoryKey;
+import org.eclipse.jgit.storage.dht.spi.Context;
+import org.gitective.redis.CachedPackReader;
+import org.gitective.redis.RedisChunkTable;
+import org.gitective.redis.RedisWriteBuffer;
+import org.gitective.redis.SyncCallback;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cached pack copy benchmarks, the bulk of serving an initial clone
+ * <p>
+ * Each invocation copies a whole pack of chunks, so dividing the pack size by
+ * the average time gives the bytes served per second. The copy through a
+ * {@link CachedPackReader} is measured against reading the same chunks with
+ * batched table gets of the window's size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CachedPackBenchmark extends RedisBenchmark {
+
+	private static final int CHUNKS = 32;
+
+	/**
+	 * Bytes at the end of chunk data that are not part of the pack
+	 */
+	private static final int CHUNK_TRAILER = 4;
+
+	/**
+	 * Output that only counts the bytes written to it
+	 */
+	private static class CountingOutputStream extends OutputStream {
+
+		long count;
+
+		public void write(int b) {
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	/**
+	 * Size in bytes of each chunk's data
+	 */
+	@Param({ "262144", "1048576" })
+	public int chunkSize;
+
+	/**
+	 * Number of chunks read ahead
+	 */
+	@Param({ "1", "8", "32" })
+	public int window;
+
+	private RedisChunkTable table;
+
+	private List<ChunkKey> keys;
+
+	protected void populate() throws Exception {
+		table = new RedisChunkTable(connections);
+		RepositoryKey repository = RepositoryKey.fromInt(1);
+		keys = new ArrayList<ChunkKey>(CHUNKS);
+		RedisWriteBuffer buffer = new RedisWriteBuffer(connections);
+		for (int i = 0; i < CHUNKS; i++) {
+			ChunkKey key = ChunkKey.create(repository, randomId());
+			keys.add(key);
+			table.put(
+					new Members().setChunkKey(key).setChunkData(
+							randomBytes(chunkSize)), buffer);
+		}
+		buffer.flush();
+	}
+
+	/**
+	 * Copy the pack with a cached pack reader
+	 * 
+	 * @return bytes written
+	 * @throws Exception
+	 */
+	@Benchmark
+	public long copy() throws Exception {
+		return new CachedPackReader(table).setWindow(window).copy(keys,
+				new CountingOutputStream());
+	}
+
+	/**
+	 * Copy the pack by getting window sized batches of chunks from the table
+	 * 
+	 * @return bytes written
+	 * @throws Exception
+	 */
+	@Benchmark
+	public long get() throws Exception {
+		CountingOutputStream out = new CountingOutputStream();
+		for (int i = 0; i < CHUNKS; i += window) {
+			Set<ChunkKey> batch = new HashSet<ChunkKey>(keys.subList(i,
+					Math.min(i + window, CHUNKS)));
+			SyncCallback<Collection<Members>> callback = new SyncCallback<Collection<Members>>();
+			table.get(Context.READ_REPAIR, batch, callback);
+			for (Members chunk : callback.get()) {
+				byte[] data = chunk.getChunkData();
+				out.write(data, 0, data.length - CHUNK_TRAILER);
+			}
+		}
+		return out.count;
+	}
+}
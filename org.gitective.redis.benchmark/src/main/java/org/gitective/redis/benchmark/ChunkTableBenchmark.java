@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis.benchmark;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.PackChunk.Members;
+import org.eclipse.jgit.storage.dht.RepositoryKey;
+import org.eclipse.jgit.storage.dht.spi.Context;
+import org.gitective.redis.ChunkCodec;
+import org.gitective.redis.MultiplexedTransport;
+import org.gitective.redis.RedisChunkTable;
+import org.gitective.redis.RedisChunkTable.Layout;
+import org.gitective.redis.RedisWriteBuffer;
+import org.gitective.redis.SyncCallback;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Chunk table get and put benchmarks
+ * <p>
+ * Chunk sizes range from a small tree chunk to the 1 MB default chunk size of
+ * the DHT storage. Dividing the GC profiler's normalized allocation rate by the
+ * chunk size gives the bytes allocated per byte served, which should be
+ * measured against a local redis-server since the stand-in server's own
+ * allocations are counted too.
+ * <p>
+ * The codec parameter selects the codec chunk indexes are written with. Data
+ * is always stored uncompressed since pack data is already deflated.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ChunkTableBenchmark extends RedisBenchmark {
+
+	private static final int CHUNKS = 64;
+
+	private static final int BATCH = 16;
+
+	private static final String JEDIS = "jedis";
+
+	private static final String MULTIPLEXED = "multiplexed";
+
+	/**
+	 * Size in bytes of each chunk's data
+	 */
+	@Param({ "4096", "262144", "1048576" })
+	public int chunkSize;
+
+	/**
+	 * Read path, pooled Jedis connections or a multiplexed transport
+	 */
+	@Param({ JEDIS, MULTIPLEXED })
+	public String transport;
+
+	/**
+	 * Name of codec chunk indexes are written with
+	 */
+	@Param({ "none", "deflate-fast" })
+	public String codec;
+
+	/**
+	 * Layout chunks are stored in
+	 */
+	@Param({ "HASH", "BLOB" })
+	public Layout layout;
+
+	private RedisChunkTable table;
+
+	private ChunkKey[] keys;
+
+	private Members[] chunks;
+
+	private int next;
+
+	protected void populate() throws Exception {
+		table = new RedisChunkTable(connections);
+		ChunkCodec indexCodec = ChunkCodec.get(codec);
+		table.setCodecs(ChunkCodec.NONE, indexCodec, indexCodec);
+		table.setLayout(layout);
+		if (MULTIPLEXED.equals(transport))
+			table.setTransport(fixture
+					.createTransport(MultiplexedTransport.DEFAULT_CONNECTIONS));
+		RepositoryKey repository = RepositoryKey.fromInt(1);
+		keys = new ChunkKey[CHUNKS];
+		chunks = new Members[CHUNKS];
+		RedisWriteBuffer buffer = new RedisWriteBuffer(connections);
+		for (int i = 0; i < CHUNKS; i++) {
+			keys[i] = ChunkKey.create(repository, randomId());
+			chunks[i] = new Members().setChunkKey(keys[i])
+					.setChunkData(randomBytes(chunkSize))
+					.setChunkIndex(index(Math.max(64, chunkSize / 32)));
+			table.put(chunks[i], buffer);
+		}
+		buffer.flush();
+	}
+
+	/**
+	 * Create index-like bytes of object ids each followed by an ascending
+	 * offset
+	 * 
+	 * @param size
+	 * @return index bytes
+	 */
+	private byte[] index(int size) {
+		byte[] index = new byte[size];
+		int offset = 0;
+		for (int i = 0; i + 24 <= size; i += 24) {
+			randomId().copyRawTo(index, i);
+			offset += 1 + random.nextInt(512);
+			index[i + 20] = (byte) (offset >>> 24);
+			index[i + 21] = (byte) (offset >>> 16);
+			index[i + 22] = (byte) (offset >>> 8);
+			index[i + 23] = (byte) offset;
+		}
+		return index;
+	}
+
+	private int next() {
+		int index = next;
+		next = (index + 1) % CHUNKS;
+		return index;
+	}
+
+	/**
+	 * Get a single chunk
+	 * 
+	 * @return chunks
+	 * @throws Exception
+	 */
+	@Benchmark
+	public Collection<Members> get() throws Exception {
+		SyncCallback<Collection<Members>> callback = new SyncCallback<Collection<Members>>();
+		table.get(Context.READ_REPAIR, Collections.singleton(keys[next()]),
+				callback);
+		return callback.get();
+	}
+
+	/**
+	 * Get a batch of chunks in one call
+	 * 
+	 * @return chunks
+	 * @throws Exception
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public Collection<Members> getBatch() throws Exception {
+		Set<ChunkKey> batch = new HashSet<ChunkKey>();
+		for (int i = 0; i < BATCH; i++)
+			batch.add(keys[next()]);
+		SyncCallback<Collection<Members>> callback = new SyncCallback<Collection<Members>>();
+		table.get(Context.READ_REPAIR, batch, callback);
+		return callback.get();
+	}
+
+	/**
+	 * Put and flush a single chunk
+	 * 
+	 * @throws Exception
+	 */
+	@Benchmark
+	public void put() throws Exception {
+		RedisWriteBuffer buffer = new RedisWriteBuffer(connections);
+		table.put(chunks[next()], buffer);
+		buffer.flush();
+	}
+}
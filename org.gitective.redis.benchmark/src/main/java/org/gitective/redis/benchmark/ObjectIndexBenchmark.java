@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis.benchmark;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.generated.storage.dht.proto.GitStore;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.ObjectIndexKey;
+import org.eclipse.jgit.storage.dht.ObjectInfo;
+import org.eclipse.jgit.storage.dht.RepositoryKey;
+import org.eclipse.jgit.storage.dht.spi.Context;
+import org.gitective.redis.RedisObjectIndexTable;
+import org.gitective.redis.RedisObjectIndexTable.Encoding;
+import org.gitective.redis.RedisWriteBuffer;
+import org.gitective.redis.SyncCallback;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Object index lookup benchmarks at different index sizes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ObjectIndexBenchmark extends RedisBenchmark {
+
+	private static final int OBJECTS_PER_CHUNK = 1000;
+
+	private static final int BATCH = 64;
+
+	private static final int OBJECT_SIZE = 100;
+
+	/**
+	 * Number of objects in the index
+	 */
+	@Param({ "10", "1000", "100000" })
+	public int objects;
+
+	/**
+	 * Encoding entries are stored in
+	 */
+	@Param({ "ROW", "BUCKET" })
+	public Encoding encoding;
+
+	/**
+	 * Whether lookups of missing objects are answered from the object filter
+	 */
+	@Param({ "false", "true" })
+	public boolean filter;
+
+	private RedisObjectIndexTable table;
+
+	private ObjectIndexKey[] keys;
+
+	private int next;
+
+	protected void populate() throws Exception {
+		table = new RedisObjectIndexTable(connections);
+		table.setEncoding(encoding).setLegacyReads(false).setFilter(filter);
+		RepositoryKey repository = RepositoryKey.fromInt(1);
+		keys = new ObjectIndexKey[objects];
+		RedisWriteBuffer buffer = new RedisWriteBuffer(connections);
+		ChunkKey chunk = null;
+		for (int i = 0; i < objects; i++) {
+			if (i % OBJECTS_PER_CHUNK == 0)
+				chunk = ChunkKey.create(repository, randomId());
+			keys[i] = ObjectIndexKey.create(repository, randomId());
+			GitStore.ObjectInfo data = GitStore.ObjectInfo.newBuilder()
+					.setObjectType(GitStore.ObjectInfo.ObjectType.BLOB)
+					.setOffset((i % OBJECTS_PER_CHUNK) * OBJECT_SIZE)
+					.setPackedSize(OBJECT_SIZE).setInflatedSize(OBJECT_SIZE)
+					.build();
+			table.add(keys[i], new ObjectInfo(chunk, 0, data), buffer);
+		}
+		buffer.flush();
+		if (filter)
+			table.rebuildFilter(repository);
+	}
+
+	private ObjectIndexKey next() {
+		next = (next + 1 + random.nextInt(BATCH)) % objects;
+		return keys[next];
+	}
+
+	/**
+	 * Look up a single object
+	 * 
+	 * @return object locations
+	 * @throws Exception
+	 */
+	@Benchmark
+	public Map<ObjectIndexKey, Collection<ObjectInfo>> get() throws Exception {
+		SyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> callback = new SyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>>();
+		table.get(Context.READ_REPAIR, Collections.singleton(next()),
+				callback);
+		return callback.get();
+	}
+
+	/**
+	 * Look up a batch of 64 objects missing from the index, as a push of new
+	 * objects does
+	 * 
+	 * @return object locations
+	 * @throws Exception
+	 */
+	@Benchmark
+	public Map<ObjectIndexKey, Collection<ObjectInfo>> getMissing()
+			throws Exception {
+		RepositoryKey repository = RepositoryKey.fromInt(1);
+		Set<ObjectIndexKey> batch = new HashSet<ObjectIndexKey>();
+		for (int i = 0; i < BATCH; i++)
+			batch.add(ObjectIndexKey.create(repository, randomId()));
+		SyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> callback = new SyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>>();
+		table.get(Context.FAST_MISSING_OK, batch, callback);
+		return callback.get();
+	}
+
+	/**
+	 * Look up a batch of up to 64 objects in one call
+	 * 
+	 * @return object locations
+	 * @throws Exception
+	 */
+	@Benchmark
+	public Map<ObjectIndexKey, Collection<ObjectInfo>> getBatch()
+			throws Exception {
+		Set<ObjectIndexKey> batch = new HashSet<ObjectIndexKey>();
+		for (int i = 0; i < BATCH; i++)
+			batch.add(next());
+		SyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> callback = new SyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>>();
+		table.get(Context.READ_REPAIR, batch, callback);
+		return callback.get();
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.gitective.redis.ConnectionProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Benchmark of the overhead of acquiring and releasing a connection from each
+ * connection provider around a single round trip
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ProviderBenchmark {
+
+	/**
+	 * Server type
+	 */
+	@Param({ RedisFixture.STANDIN })
+	public String server;
+
+	/**
+	 * Connection provider type
+	 */
+	@Param({ RedisFixture.DEFAULT, RedisFixture.POOL, RedisFixture.PINNED })
+	public String provider;
+
+	private RedisFixture fixture;
+
+	private ConnectionProvider connections;
+
+	/**
+	 * Open fixture
+	 * 
+	 * @throws Exception
+	 */
+	@Setup(Level.Trial)
+	public void open() throws Exception {
+		fixture = new RedisFixture(server);
+		connections = fixture.createProvider(provider);
+	}
+
+	/**
+	 * Close fixture
+	 */
+	@TearDown(Level.Trial)
+	public void close() {
+		fixture.close();
+	}
+
+	/**
+	 * Acquire connection, ping, and release connection
+	 * 
+	 * @return reply
+	 */
+	@Benchmark
+	public String ping() {
+		Jedis connection = connections.acquire();
+		try {
+			return connection.ping();
+		} finally {
+			connections.release(connection);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis.benchmark;
+
+import java.util.Random;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.gitective.redis.ConnectionProvider;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Base state of benchmarks run against a Redis server
+ * <p>
+ * Runs against the in-process stand-in server over pooled connections unless
+ * overridden with <code>-p server=local</code> or
+ * <code>-p provider=default</code>.
+ */
+@State(Scope.Benchmark)
+public abstract class RedisBenchmark {
+
+	/**
+	 * Server type
+	 */
+	@Param({ RedisFixture.STANDIN })
+	public String server;
+
+	/**
+	 * Connection provider type
+	 */
+	@Param({ RedisFixture.POOL })
+	public String provider;
+
+	/**
+	 * Random source seeded so every run uses the same data
+	 */
+	protected final Random random = new Random(42);
+
+	/**
+	 * Connections to the benchmarked server
+	 */
+	protected ConnectionProvider connections;
+
+	/**
+	 * Server and connections of the benchmark
+	 */
+	protected RedisFixture fixture;
+
+	/**
+	 * Open fixture and populate server
+	 * 
+	 * @throws Exception
+	 */
+	@Setup(Level.Trial)
+	public void open() throws Exception {
+		fixture = new RedisFixture(server);
+		connections = fixture.createProvider(provider);
+		populate();
+	}
+
+	/**
+	 * Close fixture
+	 */
+	@TearDown(Level.Trial)
+	public void close() {
+		fixture.close();
+	}
+
+	/**
+	 * Populate server before the trial starts
+	 * 
+	 * @throws Exception
+	 */
+	protected abstract void populate() throws Exception;
+
+	/**
+	 * Create random object id
+	 * 
+	 * @return id
+	 */
+	protected ObjectId randomId() {
+		byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		random.nextBytes(raw);
+		return ObjectId.fromRaw(raw);
+	}
+
+	/**
+	 * Create random bytes
+	 * 
+	 * @param length
+	 * @return bytes
+	 */
+	protected byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+}
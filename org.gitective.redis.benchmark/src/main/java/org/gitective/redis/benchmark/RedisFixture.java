@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gitective.redis.ChunkScripts;
+import org.gitective.redis.ConnectionProvider;
+import org.gitective.redis.DefaultConnectionProvider;
+import org.gitective.redis.MultiplexedTransport;
+import org.gitective.redis.ObjectIndexScripts;
+import org.gitective.redis.PinnedConnectionProvider;
+import org.gitective.redis.PoolConnectionProvider;
+import org.gitective.redis.RefScripts;
+import org.gitective.redis.RespServer;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Protocol;
+
+/**
+ * Redis server and connections used by a benchmark
+ * <p>
+ * The {@link #STANDIN} server is an in-process {@link RespServer}. The
+ * {@link #LOCAL} server is a redis-server at the <code>redis.host</code> and
+ * <code>redis.port</code> system properties, it is flushed when the fixture is
+ * opened so it should not hold any data worth keeping.
+ */
+public class RedisFixture {
+
+	/**
+	 * In-process stand-in server
+	 */
+	public static final String STANDIN = "standin";
+
+	/**
+	 * Local redis-server
+	 */
+	public static final String LOCAL = "local";
+
+	/**
+	 * New connection per operation
+	 */
+	public static final String DEFAULT = "default";
+
+	/**
+	 * Pooled connections
+	 */
+	public static final String POOL = "pool";
+
+	/**
+	 * Pooled connections pinned to the benchmark threads
+	 */
+	public static final String PINNED = "pinned";
+
+	private final RespServer standin;
+
+	private final String host;
+
+	private final int port;
+
+	private JedisPool pool;
+
+	private final List<MultiplexedTransport> transports = new ArrayList<MultiplexedTransport>();
+
+	/**
+	 * Open fixture for server type
+	 * 
+	 * @param server
+	 *            {@link #STANDIN} or {@link #LOCAL}
+	 * @throws IOException
+	 */
+	public RedisFixture(String server) throws IOException {
+		if (STANDIN.equals(server)) {
+			standin = new RespServer();
+			RefScripts.register(standin);
+			ChunkScripts.register(standin);
+			ObjectIndexScripts.register(standin);
+			standin.start();
+			host = standin.getHost();
+			port = standin.getPort();
+		} else if (LOCAL.equals(server)) {
+			standin = null;
+			host = System.getProperty("redis.host", "localhost");
+			port = Integer.getInteger("redis.port", Protocol.DEFAULT_PORT)
+					.intValue();
+		} else
+			throw new IllegalArgumentException("Unknown server: " + server);
+
+		Jedis connection = new Jedis(host, port);
+		try {
+			connection.flushAll();
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Create connection provider of type
+	 * 
+	 * @param type
+	 *            {@link #DEFAULT}, {@link #POOL}, or {@link #PINNED}
+	 * @return provider
+	 */
+	public ConnectionProvider createProvider(String type) {
+		if (DEFAULT.equals(type))
+			return new DefaultConnectionProvider(host, port);
+		if (POOL.equals(type) || PINNED.equals(type)) {
+			if (pool == null)
+				pool = new JedisPool(new JedisPoolConfig(), host, port);
+			ConnectionProvider pooled = new PoolConnectionProvider(pool);
+			if (PINNED.equals(type))
+				return new PinnedConnectionProvider(pooled);
+			return pooled;
+		}
+		throw new IllegalArgumentException("Unknown provider: " + type);
+	}
+
+	/**
+	 * Create multiplexed transport to the server
+	 * 
+	 * @param connections
+	 * @return transport
+	 */
+	public MultiplexedTransport createTransport(int connections) {
+		MultiplexedTransport transport = new MultiplexedTransport(host, port,
+				connections);
+		transports.add(transport);
+		return transport;
+	}
+
+	/**
+	 * Close transports and pooled connections and stop the stand-in server
+	 */
+	public void close() {
+		for (MultiplexedTransport transport : transports)
+			transport.close();
+		if (pool != null)
+			pool.destroy();
+		if (standin != null)
+			standin.stop();
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.generated.storage.dht.proto.GitStore.RefData;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.storage.dht.RefDataUtil;
+import org.eclipse.jgit.storage.dht.RefKey;
+import org.eclipse.jgit.storage.dht.RepositoryKey;
+import org.eclipse.jgit.storage.dht.spi.Context;
+import org.gitective.redis.RedisRefTable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of many threads racing to compare and set the same ref
+ * <p>
+ * A thread that loses the race re-reads the ref before trying again, the same
+ * way a push retries a rejected ref update.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(8)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RefContentionBenchmark extends RedisBenchmark {
+
+	private static final int IDS = 256;
+
+	/**
+	 * Ref value last seen by a thread
+	 */
+	@State(Scope.Thread)
+	public static class Writer {
+
+		private final ObjectId[] ids = new ObjectId[IDS];
+
+		private int next;
+
+		RefData expected;
+
+		/**
+		 * Create ids written by this thread
+		 */
+		@Setup(Level.Trial)
+		public void createIds() {
+			Random random = new Random();
+			byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+			for (int i = 0; i < IDS; i++) {
+				random.nextBytes(raw);
+				ids[i] = ObjectId.fromRaw(raw);
+			}
+		}
+
+		RefData nextData() {
+			next = (next + 1) % IDS;
+			return RefDataUtil.id(ids[next]);
+		}
+	}
+
+	private RepositoryKey repository;
+
+	private RefKey ref;
+
+	private RefData initial;
+
+	private RedisRefTable table;
+
+	protected void populate() throws Exception {
+		repository = RepositoryKey.fromInt(1);
+		ref = RefKey.create(repository, "refs/heads/master");
+		initial = RefDataUtil.id(randomId());
+		table = new RedisRefTable(connections);
+		if (!table.compareAndPut(ref, RefDataUtil.NONE, initial))
+			throw new IllegalStateException("Ref not created");
+	}
+
+	/**
+	 * Compare and set the contended ref
+	 * 
+	 * @param writer
+	 * @return true if the update won, false if it lost and the ref was re-read
+	 * @throws Exception
+	 */
+	@Benchmark
+	public boolean update(Writer writer) throws Exception {
+		RefData expected = writer.expected != null ? writer.expected
+				: initial;
+		RefData data = writer.nextData();
+		if (table.compareAndPut(ref, expected, data)) {
+			writer.expected = data;
+			return true;
+		}
+		writer.expected = table.getAll(Context.READ_REPAIR, repository).get(
+				ref);
+		return false;
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.generated.storage.dht.proto.GitStore.RefData;
+import org.eclipse.jgit.storage.dht.RefDataUtil;
+import org.eclipse.jgit.storage.dht.RefKey;
+import org.eclipse.jgit.storage.dht.RepositoryKey;
+import org.eclipse.jgit.storage.dht.spi.Context;
+import org.gitective.redis.RedisRefTable;
+import org.gitective.redis.RedisRefTable.Update;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks reading all refs of a repository with many refs
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RefTableBenchmark extends RedisBenchmark {
+
+	/**
+	 * Number of refs in the repository
+	 */
+	@Param({ "10000" })
+	public int refs;
+
+	private RepositoryKey repository;
+
+	private RedisRefTable cached;
+
+	private RedisRefTable uncached;
+
+	protected void populate() throws Exception {
+		repository = RepositoryKey.fromInt(1);
+		cached = new RedisRefTable(connections);
+		uncached = new RedisRefTable(connections).setCacheSize(0);
+		List<Update> updates = new ArrayList<Update>(refs);
+		for (int i = 0; i < refs; i++)
+			updates.add(new Update(RefKey.create(repository,
+					"refs/heads/branch-" + i), RefDataUtil.NONE,
+					RefDataUtil.id(randomId())));
+		for (boolean applied : cached.compareAndPut(updates, false))
+			if (!applied)
+				throw new IllegalStateException("Ref not created");
+	}
+
+	/**
+	 * Get all refs when the parsed refs are cached and unchanged
+	 * 
+	 * @return refs
+	 * @throws Exception
+	 */
+	@Benchmark
+	public Map<RefKey, RefData> getAllCached() throws Exception {
+		return cached.getAll(Context.READ_REPAIR, repository);
+	}
+
+	/**
+	 * Get and parse all refs
+	 * 
+	 * @return refs
+	 * @throws Exception
+	 */
+	@Benchmark
+	public Map<RefKey, RefData> getAllUncached() throws Exception {
+		return uncached.getAll(Context.READ_REPAIR, repository);
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.Constants;
+import org.gitective.redis.ConnectionProvider;
+import org.gitective.redis.MultiplexedTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Benchmark of many threads sending single commands over a multiplexed
+ * transport compared to a connection pool
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(16)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TransportBenchmark {
+
+	private static final byte[] PING = Constants.encode("PING");
+
+	/**
+	 * Server type
+	 */
+	@Param({ RedisFixture.STANDIN })
+	public String server;
+
+	/**
+	 * Number of multiplexed connections
+	 */
+	@Param({ "1", "4" })
+	public int connections;
+
+	private RedisFixture fixture;
+
+	private ConnectionProvider pool;
+
+	private MultiplexedTransport transport;
+
+	/**
+	 * Open fixture
+	 * 
+	 * @throws Exception
+	 */
+	@Setup(Level.Trial)
+	public void open() throws Exception {
+		fixture = new RedisFixture(server);
+		pool = fixture.createProvider(RedisFixture.POOL);
+		transport = fixture.createTransport(connections);
+	}
+
+	/**
+	 * Close fixture
+	 */
+	@TearDown(Level.Trial)
+	public void close() {
+		fixture.close();
+	}
+
+	/**
+	 * Ping over a pooled connection
+	 * 
+	 * @return reply
+	 */
+	@Benchmark
+	public String pool() {
+		Jedis connection = pool.acquire();
+		try {
+			return connection.ping();
+		} finally {
+			pool.release(connection);
+		}
+	}
+
+	/**
+	 * Ping over the multiplexed transport
+	 * 
+	 * @return reply
+	 */
+	@Benchmark
+	public Object multiplexed() {
+		return transport.call(PING);
+	}
+}
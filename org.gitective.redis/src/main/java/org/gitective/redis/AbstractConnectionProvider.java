@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Base connection provider for a single node that owns every key
+ */
+public abstract class AbstractConnectionProvider implements ConnectionProvider {
+
+	public Jedis acquire(byte[] key) {
+		return acquire();
+	}
+
+	public Jedis acquireReader(byte[] key, long maxLag) {
+		return acquire(key);
+	}
+
+	public ConnectionProvider route(byte[] key) {
+		return this;
+	}
+
+	/**
+	 * Disconnect connection, so it reconnects before it is next used, and
+	 * release it
+	 */
+	public ConnectionProvider releaseBroken(Jedis connection) {
+		if (connection == null)
+			return this;
+		try {
+			connection.disconnect();
+		} catch (JedisException ignored) {
+			// Connection is dropped
+		}
+		return release(connection);
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor that runs at most a fixed number of tasks at once on a delegate
+ * executor and queues the rest
+ * <p>
+ * Tasks the delegate rejects, such as once it has been shut down, run on the
+ * thread that scheduled them rather than being lost.
+ */
+public class BoundedExecutor implements Executor {
+
+	/**
+	 * Create bounded executor backed by a new thread pool
+	 * <p>
+	 * Virtual threads are used when requested and the running JVM supports
+	 * them, otherwise a fixed pool of daemon threads is created.
+	 * 
+	 * @param concurrency
+	 * @param virtualThreads
+	 * @return executor
+	 */
+	public static BoundedExecutor create(int concurrency,
+			boolean virtualThreads) {
+		ExecutorService delegate = null;
+		if (virtualThreads)
+			delegate = newVirtualThreadExecutor();
+		if (delegate == null)
+			delegate = Executors.newFixedThreadPool(concurrency,
+					new ThreadFactory() {
+
+						private final AtomicInteger count = new AtomicInteger();
+
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "redis-dht-"
+									+ count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		return new BoundedExecutor(delegate, concurrency);
+	}
+
+	/**
+	 * Create virtual thread executor
+	 * 
+	 * @return executor or null if virtual threads are not available
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method method = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private final Executor delegate;
+
+	private final int limit;
+
+	private final Queue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+
+	private final AtomicInteger active = new AtomicInteger();
+
+	/**
+	 * Create executor running at most limit tasks at once on delegate
+	 * 
+	 * @param delegate
+	 * @param limit
+	 */
+	public BoundedExecutor(Executor delegate, int limit) {
+		if (limit < 1)
+			throw new IllegalArgumentException("Limit must be positive");
+		this.delegate = delegate;
+		this.limit = limit;
+	}
+
+	/**
+	 * Get maximum number of tasks run at once
+	 * 
+	 * @return limit
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Get number of tasks currently running
+	 * 
+	 * @return active count
+	 */
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	/**
+	 * Shut down the delegate if it is an executor service, letting the tasks
+	 * it was given finish
+	 * <p>
+	 * Tasks still queued, and tasks executed after this, run on the thread
+	 * that schedules them.
+	 */
+	public void shutdown() {
+		if (delegate instanceof ExecutorService)
+			((ExecutorService) delegate).shutdown();
+	}
+
+	public void execute(Runnable task) {
+		queue.add(task);
+		schedule();
+	}
+
+	private void schedule() {
+		while (!queue.isEmpty()) {
+			int running = active.get();
+			if (running >= limit)
+				return;
+			if (!active.compareAndSet(running, running + 1))
+				continue;
+			final Runnable task = queue.poll();
+			if (task == null) {
+				active.decrementAndGet();
+				continue;
+			}
+			try {
+				delegate.execute(new Runnable() {
+
+					public void run() {
+						try {
+							task.run();
+						} finally {
+							active.decrementAndGet();
+							schedule();
+						}
+					}
+				});
+			} catch (RuntimeException e) {
+				// Rejected by the delegate, run it here while holding its slot
+				try {
+					task.run();
+				} finally {
+					active.decrementAndGet();
+				}
+			}
+		}
+	}
+}
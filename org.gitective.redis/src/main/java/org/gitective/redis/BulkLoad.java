@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.storage.dht.DhtException;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Bulk load into a database
+ * <p>
+ * Write buffers created while a load is running flush in the background over
+ * several connections at once, and every node has its RDB snapshots turned off
+ * until the load ends. Nodes with the append-only file enabled stop syncing it
+ * to disk until the load ends, but still append every write to it, so the file
+ * grows by the whole load until the node's own rewrite rules compact it.
+ * Buffered writes are not ordered across flushes, so a load should only add
+ * data.
+ * 
+ * @see RedisDatabase#beginBulkLoad(int, ProgressMonitor)
+ */
+public class BulkLoad {
+
+	/**
+	 * Default number of flushes running at once
+	 */
+	public static final int DEFAULT_CONNECTIONS = 4;
+
+	/**
+	 * Number of buffered operations that triggers a flush during a load
+	 */
+	public static final int MAX_OPERATIONS = 10000;
+
+	private static final String SAVE = "save";
+
+	private static final String APPEND_ONLY = "appendonly";
+
+	private static final String APPEND_FSYNC = "appendfsync";
+
+	private final Collection<ConnectionProvider> nodes;
+
+	private final Map<ConnectionProvider, String> saveConfig = new IdentityHashMap<ConnectionProvider, String>();
+
+	private final Map<ConnectionProvider, String> fsyncConfig = new IdentityHashMap<ConnectionProvider, String>();
+
+	private final Semaphore slots;
+
+	private final BoundedExecutor executor;
+
+	private final ProgressMonitor monitor;
+
+	private final AtomicLong operations = new AtomicLong();
+
+	private final AtomicLong bytes = new AtomicLong();
+
+	private final long start = System.currentTimeMillis();
+
+	private long reported;
+
+	/**
+	 * Create bulk load
+	 * 
+	 * @param nodes
+	 * @param connections
+	 * @param monitor
+	 */
+	BulkLoad(Collection<ConnectionProvider> nodes, int connections,
+			ProgressMonitor monitor) {
+		this.nodes = nodes;
+		this.monitor = monitor != null ? monitor : NullProgressMonitor.INSTANCE;
+		slots = new Semaphore(connections);
+		executor = BoundedExecutor.create(connections, false);
+	}
+
+	/**
+	 * Turn off snapshots and append-only file syncs on every node
+	 * <p>
+	 * Nodes already changed are restored and the flush threads stopped if this
+	 * fails.
+	 * 
+	 * @return this load
+	 */
+	BulkLoad begin() {
+		try {
+			for (ConnectionProvider node : nodes) {
+				Jedis connection = node.acquire();
+				try {
+					String save = config(connection, SAVE);
+					if (save != null) {
+						saveConfig.put(node, save);
+						connection.configSet(SAVE, "");
+					}
+					String fsync = config(connection, APPEND_FSYNC);
+					if (fsync != null
+							&& "yes".equals(config(connection, APPEND_ONLY))) {
+						fsyncConfig.put(node, fsync);
+						connection.configSet(APPEND_FSYNC, "no");
+					}
+				} finally {
+					node.release(connection);
+				}
+			}
+		} catch (RuntimeException e) {
+			try {
+				restore();
+			} catch (RuntimeException ignored) {
+				// Report the failure to begin instead
+			} finally {
+				executor.shutdown();
+			}
+			throw e;
+		}
+		monitor.beginTask("Writing to Redis (KiB)", ProgressMonitor.UNKNOWN);
+		return this;
+	}
+
+	private static String config(Jedis connection, String name) {
+		List<String> config = connection.configGet(name);
+		return config != null && config.size() == 2 ? config.get(1) : null;
+	}
+
+	/**
+	 * Restore the snapshot and append-only file configuration of every node
+	 * and stop the flush threads
+	 * 
+	 * @return this load
+	 */
+	BulkLoad end() {
+		try {
+			restore();
+		} finally {
+			executor.shutdown();
+			synchronized (monitor) {
+				monitor.endTask();
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Restore the configuration of every node changed, even if restoring
+	 * another node fails
+	 */
+	private void restore() {
+		RuntimeException error = null;
+		for (Entry<ConnectionProvider, String> node : saveConfig.entrySet())
+			try {
+				set(node.getKey(), SAVE, node.getValue());
+			} catch (RuntimeException e) {
+				if (error == null)
+					error = e;
+			}
+		for (Entry<ConnectionProvider, String> node : fsyncConfig.entrySet())
+			try {
+				set(node.getKey(), APPEND_FSYNC, node.getValue());
+			} catch (RuntimeException e) {
+				if (error == null)
+					error = e;
+			}
+		if (error != null)
+			throw error;
+	}
+
+	private static void set(ConnectionProvider node, String name, String value) {
+		Jedis connection = node.acquire();
+		try {
+			connection.configSet(name, value);
+		} finally {
+			node.release(connection);
+		}
+	}
+
+	/**
+	 * Run a flush in the background, waiting while every connection is busy
+	 * 
+	 * @param flush
+	 * @param count
+	 *            number of operations flushed
+	 * @param size
+	 *            number of bytes flushed
+	 * @return task completing when the flush is done
+	 * @throws DhtException
+	 */
+	FutureTask<Void> submit(final Callable<Void> flush, final int count,
+			final long size) throws DhtException {
+		try {
+			slots.acquire();
+		} catch (InterruptedException e) {
+			throw new DhtException(e);
+		}
+		FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+
+			public Void call() throws Exception {
+				try {
+					flush.call();
+				} finally {
+					slots.release();
+				}
+				flushed(count, size);
+				return null;
+			}
+		});
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			slots.release();
+			throw new DhtException(e);
+		}
+		return task;
+	}
+
+	private void flushed(int count, long size) {
+		operations.addAndGet(count);
+		long kilobytes = bytes.addAndGet(size) / 1024;
+		synchronized (monitor) {
+			if (kilobytes > reported) {
+				monitor.update((int) (kilobytes - reported));
+				reported = kilobytes;
+			}
+		}
+	}
+
+	/**
+	 * Get number of operations written so far
+	 * 
+	 * @return count
+	 */
+	public long getOperations() {
+		return operations.get();
+	}
+
+	/**
+	 * Get number of bytes written so far
+	 * 
+	 * @return count
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Get average number of bytes written per second since the load began
+	 * 
+	 * @return rate
+	 */
+	public long getBytesPerSecond() {
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		return bytes.get() * 1000 / elapsed;
+	}
+
+	/**
+	 * Get average number of operations written per second since the load
+	 * began
+	 * 
+	 * @return rate
+	 */
+	public long getOperationsPerSecond() {
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		return operations.get() * 1000 / elapsed;
+	}
+}
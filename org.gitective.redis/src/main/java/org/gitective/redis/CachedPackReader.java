@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import org.eclipse.jgit.generated.storage.dht.proto.GitStore.CachedPackInfo;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.gitective.redis.RedisChunkTable.Layout;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Streaming reader of the chunks of a cached pack
+ * <p>
+ * Chunk data is written to the output in the order of the pack's chunk list
+ * while a bounded window of the following chunks is read ahead, pipelined
+ * over one connection per node. Only the chunks in the window are held in
+ * memory, however large the pack.
+ * <p>
+ * The DHT storage copies cached packs through its own chunk reads and its SPI
+ * offers no hook to replace them, so packs only take this path when the
+ * caller copies them with this reader.
+ */
+public class CachedPackReader {
+
+	/**
+	 * Default number of chunks read ahead
+	 */
+	public static final int DEFAULT_WINDOW = 8;
+
+	/**
+	 * Bytes at the end of chunk data that are not part of the pack, matching
+	 * the trailer {@link org.eclipse.jgit.storage.dht.PackChunk} leaves off
+	 * when copying a whole chunk
+	 */
+	private static final int CHUNK_TRAILER = 4;
+
+	/**
+	 * Chunk read sent over a node's pipeline
+	 */
+	private static class Read {
+
+		final ChunkKey chunk;
+
+		final Layout layout;
+
+		final Node node;
+
+		boolean received;
+
+		Object reply;
+
+		JedisDataException error;
+
+		Read(ChunkKey chunk, Layout layout, Node node) {
+			this.chunk = chunk;
+			this.layout = layout;
+			this.node = node;
+		}
+	}
+
+	/**
+	 * Pipeline to a node and the reads sent over it that have no reply yet
+	 */
+	private static class Node {
+
+		final Pipeline pipeline;
+
+		final Jedis connection;
+
+		final Queue<Read> sent = new LinkedList<Read>();
+
+		Node(Pipeline pipeline, Jedis connection) {
+			this.pipeline = pipeline;
+			this.connection = connection;
+		}
+	}
+
+	private final RedisChunkTable table;
+
+	private int window = DEFAULT_WINDOW;
+
+	/**
+	 * Create reader of chunks stored in table
+	 * 
+	 * @param table
+	 */
+	public CachedPackReader(RedisChunkTable table) {
+		this.table = table;
+	}
+
+	/**
+	 * Set number of chunks read ahead of the one being written
+	 * 
+	 * @param window
+	 * @return this reader
+	 */
+	public CachedPackReader setWindow(int window) {
+		this.window = Math.max(1, window);
+		return this;
+	}
+
+	/**
+	 * Get number of chunks read ahead of the one being written
+	 * 
+	 * @return window
+	 */
+	public int getWindow() {
+		return window;
+	}
+
+	/**
+	 * Copy the chunks of a cached pack to a stream
+	 * 
+	 * @param pack
+	 * @param out
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	public long copy(CachedPackInfo pack, OutputStream out) throws IOException {
+		List<String> names = pack.getChunkList().getChunkKeyList();
+		List<ChunkKey> chunks = new ArrayList<ChunkKey>(names.size());
+		for (String name : names)
+			chunks.add(ChunkKey.fromString(name));
+		return copy(chunks, out);
+	}
+
+	/**
+	 * Copy the pack data of chunks to a stream in the given order
+	 * 
+	 * @param chunks
+	 * @param out
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	public long copy(List<ChunkKey> chunks, OutputStream out)
+			throws IOException {
+		TableOperation operation = table.begin("copyCachedPack");
+		Map<Object, Node> nodes = new IdentityHashMap<Object, Node>();
+		Layout layout = table.getLayout();
+		Queue<Read> reads = new LinkedList<Read>();
+		long written = 0;
+		try {
+			int next = 0;
+			while (next < chunks.size() && reads.size() < window)
+				reads.add(send(chunks.get(next++), layout, nodes, operation));
+
+			while (!reads.isEmpty()) {
+				Read read = reads.remove();
+				Object reply;
+				try {
+					reply = receive(read);
+				} catch (JedisDataException e) {
+					if (read.layout != layout
+							|| !RedisChunkTable.isWrongType(e))
+						throw e;
+					// Stored in the other layout, likely mid-migration
+					read = send(read.chunk, layout.other(), nodes, operation);
+					reply = receive(read);
+				}
+				if (next < chunks.size())
+					reads.add(send(chunks.get(next++), layout, nodes,
+							operation));
+
+				byte[] data = table.receiveData(reply, read.layout, operation);
+				if (data == null)
+					throw new DhtException("Missing chunk "
+							+ read.chunk.asString());
+				int length = data.length - CHUNK_TRAILER;
+				if (length < 0)
+					throw new DhtException("Invalid chunk "
+							+ read.chunk.asString());
+				out.write(data, 0, length);
+				written += length;
+			}
+			operation.succeed();
+			return written;
+		} catch (JedisException e) {
+			throw new DhtException(e);
+		} finally {
+			drain(nodes.values());
+			operation.end();
+		}
+	}
+
+	private Read send(ChunkKey chunk, Layout layout, Map<Object, Node> nodes,
+			TableOperation operation) {
+		byte[] row = chunk.asBytes();
+		Object owner = table.getProvider().route(row);
+		Node node = nodes.get(owner);
+		if (node == null) {
+			MultiplexedTransport transport = table.readTransport();
+			if (transport != null)
+				node = new Node(new Pipeline(transport), null);
+			else {
+				Jedis connection = table.acquireReader(row);
+				node = new Node(new Pipeline(connection.getClient()),
+						connection);
+			}
+			nodes.put(owner, node);
+		}
+		RedisChunkTable.requestData(node.pipeline, row, layout, operation);
+		Read read = new Read(chunk, layout, node);
+		node.sent.add(read);
+		return read;
+	}
+
+	/**
+	 * Receive replies from a read's node until the read's own reply arrives
+	 * <p>
+	 * Replies to reads sent after a retry was sent ahead of them are kept on
+	 * their reads until those are written.
+	 * 
+	 * @param read
+	 * @return reply
+	 */
+	private static Object receive(Read read) {
+		Node node = read.node;
+		while (!read.received) {
+			Read head = node.sent.remove();
+			try {
+				head.reply = node.pipeline.receive();
+			} catch (JedisDataException e) {
+				head.error = e;
+			}
+			head.received = true;
+		}
+		if (read.error != null)
+			throw read.error;
+		return read.reply;
+	}
+
+	/**
+	 * Read every outstanding reply so connections are returned clean, then
+	 * release them
+	 * 
+	 * @param nodes
+	 */
+	private void drain(Iterable<Node> nodes) {
+		for (Node node : nodes) {
+			if (node.connection == null)
+				continue;
+			try {
+				while (!node.sent.isEmpty()) {
+					node.sent.remove();
+					try {
+						node.pipeline.receive();
+					} catch (JedisDataException ignored) {
+						// Reply to a read no longer needed
+					}
+				}
+			} catch (JedisException ignored) {
+				// Replies may be left unread on the connection
+				table.releaseBroken(node.connection);
+				continue;
+			}
+			table.release(node.connection);
+		}
+	}
+}
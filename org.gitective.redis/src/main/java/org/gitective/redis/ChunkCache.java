@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.generated.storage.dht.proto.GitStore.ChunkMeta;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.PackChunk;
+
+/**
+ * Byte-bounded in-process cache of chunks
+ * <p>
+ * New chunks enter a small LRU window. Chunks leaving the window are only
+ * admitted to the main LRU region if they have been requested more often than
+ * the least recently used chunk there, as estimated by a count-min sketch of
+ * recent requests (W-TinyLFU). This keeps a single large clone from flushing the
+ * chunks that every fetch reads.
+ */
+public class ChunkCache {
+
+	/**
+	 * Percentage of the cache's bytes used by the admission window
+	 */
+	private static final int WINDOW_PERCENT = 1;
+
+	/**
+	 * Number of average chunks the admission window holds at least, so a new
+	 * chunk stays long enough to be requested again
+	 */
+	private static final int WINDOW_MIN_CHUNKS = 4;
+
+	/**
+	 * Chunk size assumed when sizing the frequency sketch
+	 */
+	private static final int AVERAGE_CHUNK_SIZE = 16 * 1024;
+
+	/**
+	 * Cached chunk
+	 */
+	private static class Entry {
+
+		final ChunkKey key;
+
+		final byte[] data;
+
+		final byte[] index;
+
+		final ChunkMeta meta;
+
+		final long size;
+
+		Entry(PackChunk.Members members) {
+			key = members.getChunkKey();
+			data = members.getChunkData();
+			index = members.hasChunkIndex() ? members.getChunkIndex() : null;
+			meta = members.hasMeta() ? members.getMeta() : null;
+			size = data.length + (index != null ? index.length : 0);
+		}
+
+		PackChunk.Members toMembers() {
+			PackChunk.Members members = new PackChunk.Members();
+			members.setChunkKey(key);
+			members.setChunkData(data);
+			if (index != null)
+				members.setChunkIndex(index);
+			if (meta != null)
+				members.setMeta(meta);
+			return members;
+		}
+	}
+
+	/**
+	 * Count-min sketch of 4-bit counters that are halved periodically so old
+	 * popularity fades
+	 */
+	private static class FrequencySketch {
+
+		private static final int[] SEEDS = { 0x97cb3127, 0x61c88647,
+				0x85ebca6b, 0xc2b2ae35 };
+
+		private static final int MAX_COUNT = 15;
+
+		private final int[][] counters;
+
+		private final int mask;
+
+		private final int sampleSize;
+
+		private int additions;
+
+		FrequencySketch(int width) {
+			int size = Integer.highestOneBit(Math.max(width, 64) - 1) << 1;
+			counters = new int[SEEDS.length][size];
+			mask = size - 1;
+			sampleSize = 10 * size;
+		}
+
+		private int index(int hash, int row) {
+			int h = hash * SEEDS[row];
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		int frequency(Object key) {
+			int hash = key.hashCode();
+			int min = MAX_COUNT;
+			for (int row = 0; row < counters.length; row++)
+				min = Math.min(min, counters[row][index(hash, row)]);
+			return min;
+		}
+
+		void increment(Object key) {
+			int hash = key.hashCode();
+			for (int row = 0; row < counters.length; row++) {
+				int i = index(hash, row);
+				if (counters[row][i] < MAX_COUNT)
+					counters[row][i]++;
+			}
+			if (++additions == sampleSize) {
+				for (int[] row : counters)
+					for (int i = 0; i < row.length; i++)
+						row[i] >>>= 1;
+				additions /= 2;
+			}
+		}
+	}
+
+	private final long maxBytes;
+
+	private final long windowMaxBytes;
+
+	private final LinkedHashMap<ChunkKey, Entry> window = new LinkedHashMap<ChunkKey, Entry>(
+			16, 0.75f, true);
+
+	private final LinkedHashMap<ChunkKey, Entry> main = new LinkedHashMap<ChunkKey, Entry>(
+			16, 0.75f, true);
+
+	private final FrequencySketch sketch;
+
+	private long windowBytes;
+
+	private long mainBytes;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Create cache holding at most the given number of chunk bytes
+	 * 
+	 * @param maxBytes
+	 */
+	public ChunkCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		windowMaxBytes = Math.max(1, Math.min(maxBytes / 2, Math.max(
+				WINDOW_MIN_CHUNKS * AVERAGE_CHUNK_SIZE, maxBytes
+						* WINDOW_PERCENT / 100)));
+		sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE / 2,
+				maxBytes / AVERAGE_CHUNK_SIZE));
+	}
+
+	/**
+	 * Get cached chunk
+	 * 
+	 * @param key
+	 * @return chunk members or null if not cached
+	 */
+	public synchronized PackChunk.Members get(ChunkKey key) {
+		sketch.increment(key);
+		Entry entry = window.get(key);
+		if (entry == null)
+			entry = main.get(key);
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.toMembers();
+	}
+
+	/**
+	 * Is chunk cached?
+	 * <p>
+	 * Unlike {@link #get(ChunkKey)} this does not count as an access.
+	 * 
+	 * @param key
+	 * @return true if cached, false otherwise
+	 */
+	public synchronized boolean contains(ChunkKey key) {
+		return window.containsKey(key) || main.containsKey(key);
+	}
+
+	/**
+	 * Offer chunk to cache
+	 * 
+	 * @param members
+	 * @return this cache
+	 */
+	public synchronized ChunkCache put(PackChunk.Members members) {
+		ChunkKey key = members.getChunkKey();
+		if (window.containsKey(key) || main.containsKey(key))
+			return this;
+		Entry entry = new Entry(members);
+		if (entry.size > maxBytes - windowMaxBytes)
+			return this;
+
+		window.put(key, entry);
+		windowBytes += entry.size;
+		Iterator<Entry> eldest = window.values().iterator();
+		while (windowBytes > windowMaxBytes && eldest.hasNext()) {
+			Entry candidate = eldest.next();
+			eldest.remove();
+			windowBytes -= candidate.size;
+			admit(candidate);
+		}
+		return this;
+	}
+
+	/**
+	 * Move candidate from the window into the main region if it is requested
+	 * more often than the least recently used chunk there, evicting as many
+	 * chunks as needed to make room for it
+	 * <p>
+	 * The candidate is compared with that one chunk before anything is
+	 * evicted, so a refused candidate never costs the cache a chunk.
+	 * 
+	 * @param candidate
+	 */
+	private void admit(Entry candidate) {
+		long mainMaxBytes = maxBytes - windowMaxBytes;
+		Iterator<Entry> victims = main.values().iterator();
+		if (mainBytes + candidate.size > mainMaxBytes && victims.hasNext()) {
+			Entry victim = victims.next();
+			if (sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+				evictions.incrementAndGet();
+				return;
+			}
+			victims.remove();
+			mainBytes -= victim.size;
+			evictions.incrementAndGet();
+		}
+		while (mainBytes + candidate.size > mainMaxBytes && victims.hasNext()) {
+			Entry victim = victims.next();
+			victims.remove();
+			mainBytes -= victim.size;
+			evictions.incrementAndGet();
+		}
+		main.put(candidate.key, candidate);
+		mainBytes += candidate.size;
+	}
+
+	/**
+	 * Remove chunk from cache
+	 * 
+	 * @param key
+	 * @return this cache
+	 */
+	public synchronized ChunkCache remove(ChunkKey key) {
+		Entry entry = window.remove(key);
+		if (entry != null)
+			windowBytes -= entry.size;
+		entry = main.remove(key);
+		if (entry != null)
+			mainBytes -= entry.size;
+		return this;
+	}
+
+	/**
+	 * Get number of bytes currently cached
+	 * 
+	 * @return size in bytes
+	 */
+	public synchronized long getSize() {
+		return windowBytes + mainBytes;
+	}
+
+	/**
+	 * Get number of chunks currently cached
+	 * 
+	 * @return count
+	 */
+	public synchronized int getCount() {
+		return window.size() + main.size();
+	}
+
+	/**
+	 * Get maximum number of bytes cached
+	 * 
+	 * @return size in bytes
+	 */
+	public long getMaxSize() {
+		return maxBytes;
+	}
+
+	/**
+	 * Get number of lookups that found a cached chunk
+	 * 
+	 * @return hit count
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Get number of lookups that did not find a cached chunk
+	 * 
+	 * @return miss count
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Get number of chunks evicted or refused admission
+	 * 
+	 * @return eviction count
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codec that chunk row values are compressed with
+ * <p>
+ * Encoded values start with a one byte header holding the id of the codec that
+ * compressed them, so rows written with different codecs can be read by the
+ * same table.
+ */
+public abstract class ChunkCodec {
+
+	/**
+	 * Values stored as given
+	 */
+	public static final ChunkCodec NONE = new ChunkCodec(0, "none") {
+
+		protected byte[] compress(byte[] value) {
+			return null;
+		}
+
+		protected byte[] decompress(byte[] value, int offset)
+				throws IOException {
+			byte[] raw = new byte[value.length - offset];
+			System.arraycopy(value, offset, raw, 0, raw.length);
+			return raw;
+		}
+	};
+
+	/**
+	 * Deflate tuned for speed, suited to chunk indexes and meta
+	 */
+	public static final ChunkCodec DEFLATE_FAST = new DeflateCodec(1,
+			"deflate-fast", Deflater.BEST_SPEED);
+
+	/**
+	 * Deflate at the default level
+	 */
+	public static final ChunkCodec DEFLATE = new DeflateCodec(2, "deflate",
+			Deflater.DEFAULT_COMPRESSION);
+
+	private static final ChunkCodec[] CODECS = new ChunkCodec[256];
+
+	static {
+		register(NONE);
+		register(DEFLATE_FAST);
+		register(DEFLATE);
+	}
+
+	/**
+	 * Register codec so values it encoded can be decoded
+	 * 
+	 * @param codec
+	 */
+	public static synchronized void register(ChunkCodec codec) {
+		ChunkCodec existing = CODECS[codec.id];
+		if (existing != null && existing != codec)
+			throw new IllegalArgumentException("Codec id " + codec.id
+					+ " already registered to " + existing.name);
+		CODECS[codec.id] = codec;
+	}
+
+	/**
+	 * Get registered codec by name
+	 * 
+	 * @param name
+	 * @return codec or null if none registered with that name
+	 */
+	public static synchronized ChunkCodec get(String name) {
+		for (ChunkCodec codec : CODECS)
+			if (codec != null && codec.name.equals(name))
+				return codec;
+		return null;
+	}
+
+	/**
+	 * Decode value encoded by any registered codec
+	 * 
+	 * @param value
+	 * @return raw value
+	 * @throws IOException
+	 */
+	public static byte[] decode(byte[] value) throws IOException {
+		if (value.length == 0)
+			throw new IOException("Missing codec header");
+		ChunkCodec codec = CODECS[value[0] & 0xff];
+		if (codec == null)
+			throw new IOException("Unknown codec " + (value[0] & 0xff));
+		return codec.decompress(value, 1);
+	}
+
+	private final int id;
+
+	private final String name;
+
+	/**
+	 * Create codec
+	 * 
+	 * @param id
+	 *            id written in the header of encoded values, between 0 and
+	 *            255
+	 * @param name
+	 */
+	protected ChunkCodec(int id, String name) {
+		if (id < 0 || id > 255)
+			throw new IllegalArgumentException("Codec id must be 0-255");
+		this.id = id;
+		this.name = name;
+	}
+
+	/**
+	 * Get id written in the header of values encoded by this codec
+	 * 
+	 * @return id
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Get name of this codec
+	 * 
+	 * @return name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Encode value with this codec, storing it uncompressed when compression
+	 * would not make it smaller
+	 * 
+	 * @param value
+	 * @return encoded value with header
+	 */
+	public byte[] encode(byte[] value) {
+		byte[] compressed = compress(value);
+		if (compressed == null) {
+			byte[] encoded = new byte[value.length + 1];
+			encoded[0] = (byte) NONE.id;
+			System.arraycopy(value, 0, encoded, 1, value.length);
+			return encoded;
+		}
+		compressed[0] = (byte) id;
+		return compressed;
+	}
+
+	/**
+	 * Compress value
+	 * 
+	 * @param value
+	 * @return compressed value starting at offset 1, leaving room for the
+	 *         header, or null if compressing would not make it smaller
+	 */
+	protected abstract byte[] compress(byte[] value);
+
+	/**
+	 * Decompress value compressed by this codec
+	 * 
+	 * @param value
+	 * @param offset
+	 *            offset compressed value starts at
+	 * @return raw value
+	 * @throws IOException
+	 */
+	protected abstract byte[] decompress(byte[] value, int offset)
+			throws IOException;
+
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * Deflate codec storing the raw length before the compressed stream so
+	 * values inflate into exactly sized arrays
+	 */
+	private static class DeflateCodec extends ChunkCodec {
+
+		private static final int PREFIX = 5;
+
+		private final int level;
+
+		private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+
+			protected Deflater initialValue() {
+				return new Deflater(level, true);
+			}
+		};
+
+		private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+
+			protected Inflater initialValue() {
+				return new Inflater(true);
+			}
+		};
+
+		DeflateCodec(int id, String name, int level) {
+			super(id, name);
+			this.level = level;
+		}
+
+		protected byte[] compress(byte[] value) {
+			if (value.length <= PREFIX)
+				return null;
+			// Output only has room for a result smaller than the raw value
+			byte[] buffer = new byte[value.length];
+			Deflater deflater = deflaters.get();
+			int length;
+			try {
+				deflater.setInput(value);
+				deflater.finish();
+				length = deflater.deflate(buffer, PREFIX, buffer.length
+						- PREFIX);
+				if (!deflater.finished())
+					return null;
+			} finally {
+				deflater.reset();
+			}
+			buffer[1] = (byte) (value.length >>> 24);
+			buffer[2] = (byte) (value.length >>> 16);
+			buffer[3] = (byte) (value.length >>> 8);
+			buffer[4] = (byte) value.length;
+			byte[] compressed = new byte[PREFIX + length];
+			System.arraycopy(buffer, 0, compressed, 0, compressed.length);
+			return compressed;
+		}
+
+		protected byte[] decompress(byte[] value, int offset)
+				throws IOException {
+			if (value.length < offset + PREFIX - 1)
+				throw new IOException("Truncated " + getName() + " value");
+			int length = (value[offset] & 0xff) << 24
+					| (value[offset + 1] & 0xff) << 16
+					| (value[offset + 2] & 0xff) << 8
+					| (value[offset + 3] & 0xff);
+			int start = offset + PREFIX - 1;
+			byte[] raw = new byte[length];
+			Inflater inflater = inflaters.get();
+			try {
+				inflater.setInput(value, start, value.length - start);
+				int read = 0;
+				while (read < length) {
+					int n = inflater.inflate(raw, read, length - read);
+					if (n == 0 && (inflater.finished() || inflater.needsInput()))
+						break;
+					read += n;
+				}
+				if (read != length)
+					throw new IOException("Truncated " + getName() + " value");
+			} catch (DataFormatException e) {
+				IOException error = new IOException("Corrupt " + getName()
+						+ " value");
+				error.initCause(e);
+				throw error;
+			} finally {
+				inflater.reset();
+			}
+			return raw;
+		}
+	}
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.generated.storage.dht.proto.GitStore.ChunkMeta;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.PackChunk;
+
+/**
+ * Read-ahead of the chunks a chunk's meta hints will be read next
+ * <p>
+ * Once chunks are read, the fragments and prefetch hints in their meta are
+ * loaded in the background into a staging buffer, and later reads of those
+ * chunks are served from the buffer. A read of a chunk still being prefetched
+ * waits for it, up to a timeout, instead of reading it again. Staged chunks
+ * beyond the byte budget are dropped oldest first.
+ * 
+ * @see RedisChunkTable#setPrefetcher(ChunkPrefetcher)
+ */
+public class ChunkPrefetcher {
+
+	/**
+	 * Default number of bytes of chunks staged at once
+	 */
+	public static final long DEFAULT_BUDGET = 32 * 1024 * 1024;
+
+	/**
+	 * Default number of chunk prefetches running at once
+	 */
+	public static final int DEFAULT_THREADS = 2;
+
+	/**
+	 * Default number of milliseconds a read waits for a chunk being prefetched
+	 */
+	public static final long DEFAULT_WAIT = 10 * 1000;
+
+	/**
+	 * Chunk being prefetched or waiting to be read
+	 */
+	private static class Staged {
+
+		final CountDownLatch loaded = new CountDownLatch(1);
+
+		volatile PackChunk.Members members;
+
+		volatile long size;
+	}
+
+	private static long size(PackChunk.Members members) {
+		long size = members.getChunkData().length;
+		if (members.hasChunkIndex())
+			size += members.getChunkIndex().length;
+		return size;
+	}
+
+	private final ConcurrentHashMap<ChunkKey, Staged> staged = new ConcurrentHashMap<ChunkKey, Staged>();
+
+	private final Queue<ChunkKey> order = new ConcurrentLinkedQueue<ChunkKey>();
+
+	private final AtomicLong bytes = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final long budget;
+
+	private final Executor executor;
+
+	private volatile long wait = DEFAULT_WAIT;
+
+	/**
+	 * Create prefetcher with the default budget and threads
+	 */
+	public ChunkPrefetcher() {
+		this(DEFAULT_BUDGET, BoundedExecutor.create(DEFAULT_THREADS, false));
+	}
+
+	/**
+	 * Create prefetcher staging up to budget bytes of chunks loaded on
+	 * executor
+	 * 
+	 * @param budget
+	 * @param executor
+	 */
+	public ChunkPrefetcher(long budget, Executor executor) {
+		this.budget = budget;
+		this.executor = executor;
+	}
+
+	/**
+	 * Set number of milliseconds a read waits for a chunk being prefetched
+	 * before reading it itself
+	 * 
+	 * @param millis
+	 * @return this prefetcher
+	 */
+	public ChunkPrefetcher setWait(long millis) {
+		wait = millis;
+		return this;
+	}
+
+	/**
+	 * Get number of bytes of chunks staged at once
+	 * 
+	 * @return budget
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Get number of bytes of chunks currently staged
+	 * 
+	 * @return byte count
+	 */
+	public long getStagedBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Get number of reads served from the staging buffer
+	 * 
+	 * @return hit count
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Get number of prefetched chunks dropped before being read
+	 * 
+	 * @return drop count
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Take staged chunks, waiting for the ones still being prefetched
+	 * 
+	 * @param keys
+	 * @param out
+	 *            collection staged chunks are added to
+	 * @return keys of chunks that were not staged
+	 */
+	Collection<ChunkKey> take(Collection<ChunkKey> keys,
+			Collection<PackChunk.Members> out) {
+		List<ChunkKey> missing = new ArrayList<ChunkKey>(keys.size());
+		for (ChunkKey chunk : keys) {
+			Staged entry = staged.get(chunk);
+			if (entry == null) {
+				missing.add(chunk);
+				continue;
+			}
+			// The entry stays staged while waiting so the load that fills it
+			// still finds and accounts it
+			try {
+				if (!entry.loaded.await(wait, TimeUnit.MILLISECONDS)) {
+					missing.add(chunk);
+					continue;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				missing.add(chunk);
+				continue;
+			}
+			PackChunk.Members members = entry.members;
+			if (members == null) {
+				missing.add(chunk);
+				continue;
+			}
+			// An entry evicted meanwhile has already been unaccounted
+			if (staged.remove(chunk, entry)) {
+				order.remove(chunk);
+				bytes.addAndGet(-entry.size);
+			}
+			hits.incrementAndGet();
+			out.add(members);
+		}
+		return missing;
+	}
+
+	/**
+	 * Start prefetching the chunks hinted at by the meta of loaded chunks
+	 * 
+	 * @param table
+	 * @param loaded
+	 */
+	void prefetch(final RedisChunkTable table,
+			Collection<PackChunk.Members> loaded) {
+		if (bytes.get() >= budget)
+			return;
+
+		Set<ChunkKey> hinted = new LinkedHashSet<ChunkKey>();
+		for (PackChunk.Members members : loaded) {
+			ChunkMeta meta = members.hasMeta() ? members.getMeta() : table
+					.getCachedMeta(members.getChunkKey());
+			if (meta != null)
+				addHints(meta, hinted);
+		}
+		for (PackChunk.Members members : loaded)
+			hinted.remove(members.getChunkKey());
+		ChunkCache cache = table.getCache();
+
+		final Map<ChunkKey, Staged> scheduled = new LinkedHashMap<ChunkKey, Staged>();
+		for (ChunkKey chunk : hinted) {
+			if (cache != null && cache.contains(chunk))
+				continue;
+			Staged entry = new Staged();
+			if (staged.putIfAbsent(chunk, entry) == null)
+				scheduled.put(chunk, entry);
+		}
+		if (scheduled.isEmpty())
+			return;
+
+		try {
+			executor.execute(new Runnable() {
+
+				public void run() {
+					load(table, scheduled);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			release(scheduled);
+		}
+	}
+
+	private static void addHints(ChunkMeta meta, Set<ChunkKey> hinted) {
+		for (String fragment : meta.getFragmentList())
+			hinted.add(ChunkKey.fromString(fragment));
+		// Sequential chunks are likely read next so they go ahead of edges
+		if (meta.hasCommitPrefetch())
+			addKeys(meta.getCommitPrefetch().getSequentialList(), hinted);
+		if (meta.hasTreePrefetch())
+			addKeys(meta.getTreePrefetch().getSequentialList(), hinted);
+		if (meta.hasCommitPrefetch())
+			addKeys(meta.getCommitPrefetch().getEdgeList(), hinted);
+		if (meta.hasTreePrefetch())
+			addKeys(meta.getTreePrefetch().getEdgeList(), hinted);
+	}
+
+	private static void addKeys(List<String> keys, Set<ChunkKey> hinted) {
+		for (String key : keys)
+			hinted.add(ChunkKey.fromString(key));
+	}
+
+	/**
+	 * Load scheduled chunks into their staging entries
+	 * 
+	 * @param table
+	 * @param scheduled
+	 *            entries created for the chunks, which are filled even if a
+	 *            read has taken them meanwhile
+	 */
+	private void load(RedisChunkTable table, Map<ChunkKey, Staged> scheduled) {
+		try {
+			for (PackChunk.Members members : table.prefetch(scheduled.keySet())) {
+				ChunkKey chunk = members.getChunkKey();
+				Staged entry = scheduled.get(chunk);
+				if (entry == null)
+					continue;
+				entry.size = size(members);
+				entry.members = members;
+				if (staged.get(chunk) == entry) {
+					order.add(chunk);
+					bytes.addAndGet(entry.size);
+				}
+			}
+		} catch (DhtException e) {
+			// Chunks that failed to load are read again when requested
+		} catch (RuntimeException e) {
+			// Chunks that failed to load are read again when requested
+		} finally {
+			release(scheduled);
+		}
+		evict();
+	}
+
+	/**
+	 * Wake readers waiting on scheduled chunks and forget the ones that were
+	 * not loaded
+	 * 
+	 * @param scheduled
+	 */
+	private void release(Map<ChunkKey, Staged> scheduled) {
+		for (Map.Entry<ChunkKey, Staged> chunk : scheduled.entrySet()) {
+			Staged entry = chunk.getValue();
+			if (entry.members == null)
+				staged.remove(chunk.getKey(), entry);
+			entry.loaded.countDown();
+		}
+	}
+
+	/**
+	 * Drop the oldest staged chunks until the staging buffer is within budget
+	 */
+	private void evict() {
+		while (bytes.get() > budget) {
+			ChunkKey chunk = order.poll();
+			if (chunk == null)
+				return;
+			Staged entry = staged.get(chunk);
+			if (entry != null && entry.members != null
+					&& staged.remove(chunk, entry)) {
+				bytes.addAndGet(-entry.size);
+				dropped.incrementAndGet();
+			}
+		}
+	}
+}
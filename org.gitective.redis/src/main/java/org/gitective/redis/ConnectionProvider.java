@@ -25,6 +25,9 @@ import redis.clients.jedis.Jedis;
 
 /**
  * Connection provider interface
+ * <p>
+ * Providers over a single node can extend {@link AbstractConnectionProvider},
+ * which sends every key to that node.
  */
 public interface ConnectionProvider {
 
@@ -35,6 +38,38 @@ public interface ConnectionProvider {
 	 */
 	Jedis acquire();
 
+	/**
+	 * Acquire connection to the node that owns key
+	 * 
+	 * @param key
+	 * @return connection
+	 */
+	Jedis acquire(byte[] key);
+
+	/**
+	 * Acquire connection for reading key, from a replica of the node that owns
+	 * it no further behind than the given bound when there is one
+	 * 
+	 * @param key
+	 * @param maxLag
+	 *            staleness bound in seconds,
+	 *            {@link ReplicaConnectionProvider#ANY_LAG} for any replica, or
+	 *            a negative value to read from the node itself
+	 * @return connection
+	 */
+	Jedis acquireReader(byte[] key, long maxLag);
+
+	/**
+	 * Get node that owns key
+	 * <p>
+	 * Keys routed to the same node can be sent over one connection acquired
+	 * from it.
+	 * 
+	 * @param key
+	 * @return node, this provider if it is a single node
+	 */
+	ConnectionProvider route(byte[] key);
+
 	/**
 	 * Release redis connection
 	 * 
@@ -43,4 +78,13 @@ public interface ConnectionProvider {
 	 */
 	ConnectionProvider release(Jedis connection);
 
+	/**
+	 * Release redis connection left unusable by a failure, such as one with
+	 * replies still unread after its socket failed
+	 * 
+	 * @param connection
+	 * @return this provider
+	 */
+	ConnectionProvider releaseBroken(Jedis connection);
+
 }
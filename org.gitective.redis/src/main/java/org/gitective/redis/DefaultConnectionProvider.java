@@ -22,14 +22,17 @@
 package org.gitective.redis;
 
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Protocol;
 
 /**
  * Default connection provider
  */
-public class DefaultConnectionProvider implements ConnectionProvider {
+public class DefaultConnectionProvider extends AbstractConnectionProvider {
 
 	private final String host;
 
+	private final int port;
+
 	/**
 	 * Create connection provider bound to localhost
 	 */
@@ -43,11 +46,22 @@ public class DefaultConnectionProvider implements ConnectionProvider {
 	 * @param host
 	 */
 	public DefaultConnectionProvider(String host) {
+		this(host, Protocol.DEFAULT_PORT);
+	}
+
+	/**
+	 * Create connection provider bound to given host and port
+	 * 
+	 * @param host
+	 * @param port
+	 */
+	public DefaultConnectionProvider(String host, int port) {
 		this.host = host;
+		this.port = port;
 	}
 
 	public Jedis acquire() {
-		return new Jedis(host);
+		return new Jedis(host, port);
 	}
 
 	public ConnectionProvider release(Jedis connection) {
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics sink that keeps {@link OperationStats} per table and operation and
+ * registers each as an MBean
+ * <p>
+ * Operations are registered under
+ * <code>org.gitective.redis:type=Operation,table=...,name=...</code> and
+ * connection waits under
+ * <code>org.gitective.redis:type=ConnectionWait,table=...</code>. A failure to
+ * register, such as a second sink using the same names, leaves the statistics
+ * collected but not exposed.
+ */
+public class JmxMetricsSink implements MetricsSink {
+
+	/**
+	 * Domain of registered MBeans
+	 */
+	public static final String DOMAIN = "org.gitective.redis";
+
+	private static final JmxMetricsSink DEFAULT = new JmxMetricsSink();
+
+	/**
+	 * Get sink shared by all clients that have not been given another sink
+	 * 
+	 * @return default sink
+	 */
+	public static JmxMetricsSink getDefault() {
+		return DEFAULT;
+	}
+
+	private final MBeanServer server;
+
+	private final ConcurrentMap<String, ConcurrentMap<String, OperationStats>> operations = new ConcurrentHashMap<String, ConcurrentMap<String, OperationStats>>();
+
+	private final ConcurrentMap<String, OperationStats> waits = new ConcurrentHashMap<String, OperationStats>();
+
+	/**
+	 * Create sink registering with the platform MBean server
+	 */
+	public JmxMetricsSink() {
+		this(ManagementFactory.getPlatformMBeanServer());
+	}
+
+	/**
+	 * Create sink registering with given MBean server
+	 * 
+	 * @param server
+	 */
+	public JmxMetricsSink(MBeanServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Get statistics of table operation
+	 * 
+	 * @param table
+	 * @param operation
+	 * @return stats
+	 */
+	public OperationStats getStats(String table, String operation) {
+		ConcurrentMap<String, OperationStats> tableStats = operations
+				.get(table);
+		if (tableStats == null) {
+			tableStats = new ConcurrentHashMap<String, OperationStats>();
+			ConcurrentMap<String, OperationStats> existing = operations
+					.putIfAbsent(table, tableStats);
+			if (existing != null)
+				tableStats = existing;
+		}
+		OperationStats stats = tableStats.get(operation);
+		if (stats == null)
+			stats = register(tableStats, operation, DOMAIN
+					+ ":type=Operation,table=" + table + ",name=" + operation);
+		return stats;
+	}
+
+	/**
+	 * Get statistics of time waited for connections by table
+	 * 
+	 * @param table
+	 * @return stats
+	 */
+	public OperationStats getWaitStats(String table) {
+		OperationStats stats = waits.get(table);
+		if (stats == null)
+			stats = register(waits, table, DOMAIN
+					+ ":type=ConnectionWait,table=" + table);
+		return stats;
+	}
+
+	private OperationStats register(ConcurrentMap<String, OperationStats> map,
+			String key, String name) {
+		OperationStats stats = new OperationStats();
+		OperationStats existing = map.putIfAbsent(key, stats);
+		if (existing != null)
+			return existing;
+		try {
+			server.registerMBean(stats, new ObjectName(name));
+		} catch (JMException ignored) {
+			// Statistics are still collected
+		}
+		return stats;
+	}
+
+	public void operation(String table, String operation, long nanos,
+			long commands, long bytesOut, long bytesIn, boolean failed) {
+		getStats(table, operation).record(nanos, commands, bytesOut, bytesIn,
+				failed);
+	}
+
+	public void connectionWait(String table, long nanos) {
+		getWaitStats(table).record(nanos, 0, 0, 0, false);
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies
+ * <p>
+ * Each power of two range is split into eight linear buckets so recorded
+ * values are kept within 12.5% of their real value without any allocation.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 3;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) Math.max(value, 0);
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long lowerBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+	}
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong total = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record value
+	 * 
+	 * @param value
+	 * @return this histogram
+	 */
+	public LatencyHistogram record(long value) {
+		counts.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		total.addAndGet(value);
+		long current;
+		while (value > (current = max.get()))
+			if (max.compareAndSet(current, value))
+				break;
+		return this;
+	}
+
+	/**
+	 * Get number of recorded values
+	 * 
+	 * @return count
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Get mean of recorded values
+	 * 
+	 * @return mean or 0 if empty
+	 */
+	public double getMean() {
+		long recorded = count.get();
+		return recorded > 0 ? (double) total.get() / recorded : 0;
+	}
+
+	/**
+	 * Get largest recorded value
+	 * 
+	 * @return max
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Get value that the given fraction of recorded values are at or below
+	 * 
+	 * @param quantile
+	 *            between 0 and 1
+	 * @return upper bound of the value's bucket, or 0 if empty
+	 */
+	public long getQuantile(double quantile) {
+		long recorded = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			recorded += counts.get(i);
+		if (recorded == 0)
+			return 0;
+		long rank = (long) Math.ceil(quantile * recorded);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank && seen > 0)
+				return Math.min(i + 1 < BUCKETS ? lowerBound(i + 1) - 1
+						: Long.MAX_VALUE, max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Clear all recorded values
+	 * 
+	 * @return this histogram
+	 */
+	public LatencyHistogram reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		count.set(0);
+		total.set(0);
+		max.set(0);
+		return this;
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+/**
+ * Receiver of table operation measurements
+ * <p>
+ * Methods are called on the thread that completed the operation and should not
+ * block.
+ * 
+ * @see JmxMetricsSink
+ */
+public interface MetricsSink {
+
+	/**
+	 * Record completed table operation
+	 * 
+	 * @param table
+	 * @param operation
+	 * @param nanos
+	 *            latency of the operation
+	 * @param commands
+	 *            number of Redis commands sent
+	 * @param bytesOut
+	 *            payload bytes of the keys, fields, and values sent
+	 * @param bytesIn
+	 *            payload bytes of the values received
+	 * @param failed
+	 *            true if the operation failed
+	 */
+	void operation(String table, String operation, long nanos, long commands,
+			long bytesOut, long bytesIn, boolean failed);
+
+	/**
+	 * Record time spent waiting to acquire a connection
+	 * 
+	 * @param table
+	 * @param nanos
+	 */
+	void connectionWait(String table, long nanos);
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Transport that multiplexes commands from many threads over a few sockets
+ * <p>
+ * Commands sent at the same time by different threads are coalesced into a
+ * single pipelined write and replies are matched back to their commands by
+ * order, so a handful of connections serve any number of threads. Each send
+ * goes to the less loaded of two neighbouring connections taken in turn. A
+ * failed connection fails its outstanding replies and is replaced on the next
+ * send.
+ * 
+ * @see RedisDatabase#setTransport(MultiplexedTransport)
+ */
+public class MultiplexedTransport {
+
+	/**
+	 * Default number of connections
+	 */
+	public static final int DEFAULT_CONNECTIONS = 2;
+
+	private static final AtomicInteger TRANSPORTS = new AtomicInteger();
+
+	private final String host;
+
+	private final int port;
+
+	private final AtomicReferenceArray<RespConnection> connections;
+
+	private final String name = "redis-mux-" + TRANSPORTS.incrementAndGet();
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	private int timeout = Protocol.DEFAULT_TIMEOUT;
+
+	private volatile boolean closed;
+
+	/**
+	 * Create transport to host and port with the default number of connections
+	 * 
+	 * @param host
+	 * @param port
+	 */
+	public MultiplexedTransport(String host, int port) {
+		this(host, port, DEFAULT_CONNECTIONS);
+	}
+
+	/**
+	 * Create transport to host and port
+	 * 
+	 * @param host
+	 * @param port
+	 * @param connections
+	 */
+	public MultiplexedTransport(String host, int port, int connections) {
+		if (connections < 1)
+			throw new IllegalArgumentException(
+					"Connection count must be positive");
+		this.host = host;
+		this.port = port;
+		this.connections = new AtomicReferenceArray<RespConnection>(
+				connections);
+	}
+
+	/**
+	 * Set milliseconds to wait when connecting and for replies
+	 * 
+	 * @param timeout
+	 * @return this transport
+	 */
+	public MultiplexedTransport setTimeout(int timeout) {
+		this.timeout = timeout;
+		return this;
+	}
+
+	/**
+	 * Get milliseconds to wait when connecting and for replies
+	 * 
+	 * @return timeout
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Send command without waiting for its reply
+	 * 
+	 * @param command
+	 *            command name followed by its arguments
+	 * @return reply
+	 */
+	public Reply send(byte[]... command) {
+		return connection().send(command);
+	}
+
+	/**
+	 * Send command and wait for its reply
+	 * 
+	 * @param command
+	 *            command name followed by its arguments
+	 * @return reply value
+	 * @throws JedisDataException
+	 *             if the server replied with an error
+	 * @throws JedisConnectionException
+	 *             if the connection failed or the reply timed out
+	 */
+	public Object call(byte[]... command) {
+		return send(command).get(timeout);
+	}
+
+	/**
+	 * Close all connections, failing every reply not yet received
+	 */
+	public synchronized void close() {
+		closed = true;
+		for (int i = 0; i < connections.length(); i++) {
+			RespConnection connection = connections.getAndSet(i, null);
+			if (connection != null)
+				connection.close();
+		}
+	}
+
+	private RespConnection connection() {
+		int count = connections.length();
+		int index = (next.getAndIncrement() & Integer.MAX_VALUE) % count;
+		RespConnection first = connection(index);
+		if (count == 1)
+			return first;
+		RespConnection second = connection((index + 1) % count);
+		return second.getPending() < first.getPending() ? second : first;
+	}
+
+	private RespConnection connection(int index) {
+		RespConnection connection = connections.get(index);
+		if (connection != null && !connection.isFailed())
+			return connection;
+		synchronized (this) {
+			if (closed)
+				throw new JedisConnectionException("Transport closed");
+			connection = connections.get(index);
+			if (connection == null || connection.isFailed()) {
+				connection = new RespConnection(host, port, timeout, name
+						+ "-" + index);
+				connections.set(index, connection);
+			}
+			return connection;
+		}
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.util.Arrays;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+
+/**
+ * Bloom filter of the objects of a repository
+ * <p>
+ * Filters are stored in Redis as a single string of a 16 byte header, holding
+ * the epoch the filter was built at and its size in bits, followed by the
+ * filter's bitmap, so new objects can be added with SETBIT. Bit positions are
+ * derived from the first eight bytes of an object's id, which are already
+ * uniformly distributed.
+ * <p>
+ * Objects added after the filter was built are also appended to a log after
+ * the bitmap, eight bytes of hash each, so a local copy is brought up to date
+ * by reading only the log entries it has not seen. The log is dropped once it
+ * grows larger than the bitmap, moving the epoch on so local copies are loaded
+ * again in full.
+ */
+public class ObjectFilter {
+
+	/**
+	 * Number of bits set per object
+	 */
+	public static final int HASHES = 7;
+
+	/**
+	 * Bits per object a rebuilt filter is sized for, giving a false positive
+	 * rate of about 1% at {@link #HASHES} hashes
+	 */
+	public static final int BITS_PER_OBJECT = 10;
+
+	/**
+	 * Size of the header before the bitmap
+	 */
+	public static final int HEADER = 16;
+
+	private static final int MIN_BITS = 1024;
+
+	/**
+	 * Create empty filter sized for twice the given number of objects, leaving
+	 * room for the repository to grow before it needs rebuilding
+	 * 
+	 * @param objects
+	 * @return filter
+	 */
+	public static ObjectFilter create(long objects) {
+		long bits = Math.max(MIN_BITS, 2 * objects * BITS_PER_OBJECT);
+		bits = (bits + 7) & ~7L;
+		if (bits / 8 > Integer.MAX_VALUE - HEADER)
+			throw new IllegalArgumentException("Too many objects: " + objects);
+		byte[] value = new byte[HEADER + (int) (bits / 8)];
+		writeLong(value, 0, System.currentTimeMillis());
+		writeLong(value, 8, bits);
+		return new ObjectFilter(value);
+	}
+
+	/**
+	 * Get hash code of object, the first eight bytes of its id
+	 * 
+	 * @param id
+	 * @return hash
+	 */
+	public static long hash(AnyObjectId id) {
+		byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		id.copyRawTo(raw, 0);
+		return readLong(raw, 0);
+	}
+
+	/**
+	 * Get hash code of object from its raw id
+	 * 
+	 * @param raw
+	 * @param offset
+	 * @return hash
+	 */
+	public static long hash(byte[] raw, int offset) {
+		return readLong(raw, offset);
+	}
+
+	private static long readLong(byte[] buffer, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++)
+			value = (value << 8) | (buffer[offset + i] & 0xff);
+		return value;
+	}
+
+	private static void writeLong(byte[] buffer, int offset, long value) {
+		for (int i = 7; i >= 0; i--) {
+			buffer[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	private final byte[] value;
+
+	private final long bits;
+
+	private long logged;
+
+	/**
+	 * Create filter from its stored value
+	 * 
+	 * @param value
+	 *            header followed by bitmap and log
+	 */
+	public ObjectFilter(byte[] value) {
+		if (value.length < HEADER)
+			throw new IllegalArgumentException("Missing filter header");
+		long bitmap = Math.min((readLong(value, 8) + 7) / 8, value.length
+				- HEADER);
+		bits = Math.min(readLong(value, 8), 8 * bitmap);
+		int end = HEADER + (int) bitmap;
+		if (end < value.length) {
+			this.value = Arrays.copyOf(value, end);
+			update(Arrays.copyOfRange(value, end, value.length));
+		} else
+			this.value = value;
+	}
+
+	/**
+	 * Get epoch filter was built at, moved on each time its log is dropped
+	 * 
+	 * @return time in milliseconds
+	 */
+	public long getEpoch() {
+		return readLong(value, 0);
+	}
+
+	/**
+	 * Get number of bits in the filter
+	 * 
+	 * @return bits
+	 */
+	public long getBits() {
+		return bits;
+	}
+
+	/**
+	 * Get stored value of filter, without a log
+	 * 
+	 * @return header followed by bitmap
+	 */
+	public byte[] getValue() {
+		return value;
+	}
+
+	/**
+	 * Get bit position of the given hash of an object
+	 * 
+	 * @param hash
+	 * @param i
+	 * @return position within the bitmap
+	 */
+	private long position(long hash, int i) {
+		long h1 = hash >>> 32;
+		long h2 = hash & 0xffffffffL;
+		return (h1 + i * h2) % bits;
+	}
+
+	/**
+	 * Add object to filter
+	 * 
+	 * @param hash
+	 *            hash of the object
+	 * @return this filter
+	 */
+	public synchronized ObjectFilter add(long hash) {
+		for (int i = 0; i < HASHES; i++) {
+			long position = position(hash, i);
+			value[HEADER + (int) (position >>> 3)] |= 0x80 >>> (position & 7);
+		}
+		return this;
+	}
+
+	/**
+	 * Add objects read from the stored filter's log
+	 * 
+	 * @param log
+	 *            entries following the last one added, a partial entry at the
+	 *            end is ignored
+	 * @return this filter
+	 */
+	public synchronized ObjectFilter update(byte[] log) {
+		int entries = log.length / 8;
+		for (int i = 0; i < entries; i++)
+			add(readLong(log, i * 8));
+		logged += entries;
+		return this;
+	}
+
+	/**
+	 * Get offset in the stored filter of the first log entry not yet added to
+	 * this filter
+	 * 
+	 * @return offset
+	 */
+	public synchronized long getLogOffset() {
+		return value.length + 8 * logged;
+	}
+
+	/**
+	 * Might the object be in the repository?
+	 * 
+	 * @param id
+	 * @return false if the object is definitely not in the repository
+	 */
+	public boolean mightContain(AnyObjectId id) {
+		long hash = hash(id);
+		for (int i = 0; i < HASHES; i++) {
+			long position = position(hash, i);
+			if ((value[HEADER + (int) (position >>> 3)] & (0x80 >>> (position & 7))) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Estimate the false positive rate from the fraction of bits set
+	 * 
+	 * @return rate between 0 and 1
+	 */
+	public double getFalsePositiveRate() {
+		long set = 0;
+		for (int i = HEADER; i < value.length; i++)
+			set += Integer.bitCount(value[i] & 0xff);
+		return Math.pow((double) set / bits, HASHES);
+	}
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.generated.storage.dht.proto.GitStore;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.DhtException;
+import org.eclipse.jgit.storage.dht.ObjectIndexKey;
+import org.eclipse.jgit.storage.dht.ObjectInfo;
+import org.eclipse.jgit.storage.dht.RepositoryKey;
+import org.eclipse.jgit.util.RawParseUtils;
+
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Tool that rewrites the per-object rows of an object index into buckets
+ * <p>
+ * Rows are found with SCAN, so the server must run Redis 2.8 or newer, and
+ * each node of a sharded database is migrated separately. Tables should read
+ * with {@link RedisObjectIndexTable#setLegacyReads(boolean)} enabled until
+ * every node has been migrated.
+ * <p>
+ * Before any rows are migrated, the buckets of each repository not sized yet
+ * are sized from the number of rows the node holds for it, counting its chunk
+ * rows too. A sharded database holds only part of each repository on a node,
+ * so its repositories should be sized with
+ * {@link RedisObjectIndexTable#sizeBuckets(RepositoryKey, long)} first.
+ * <p>
+ * The memory saved is the change in the node's used memory, which is only
+ * accurate when nothing else writes to the node during the migration.
+ */
+public class ObjectIndexMigration {
+
+	/**
+	 * Default number of keys requested per SCAN call
+	 */
+	public static final int DEFAULT_SCAN_COUNT = 1000;
+
+	private static final byte[] SCAN = Constants.encode("SCAN");
+
+	private static final byte[] MATCH = Constants.encode("MATCH");
+
+	private static final byte[] COUNT = Constants.encode("COUNT");
+
+	private static final byte[] HGETALL = Constants.encode("HGETALL");
+
+	private static final byte[] INFO = Constants.encode("INFO");
+
+	private static final byte[] MEMORY = Constants.encode("memory");
+
+	private static final byte[] START = Constants.encode("0");
+
+	/**
+	 * Pattern matching object index and chunk rows, which are told apart by
+	 * their fields
+	 */
+	private static final byte[] ROWS = Constants.encode("??.????????.*");
+
+	private static final String USED_MEMORY = "used_memory:";
+
+	private final RedisObjectIndexTable table;
+
+	private final MultiplexedTransport node;
+
+	private int scanCount = DEFAULT_SCAN_COUNT;
+
+	private boolean sizeBuckets = true;
+
+	private long rows;
+
+	private long entries;
+
+	private long memoryBefore = -1;
+
+	private long memoryAfter = -1;
+
+	/**
+	 * Create migration of the rows stored on a node
+	 * 
+	 * @param table
+	 *            table bucketed entries are written with
+	 * @param node
+	 *            transport to the node whose rows are migrated
+	 */
+	public ObjectIndexMigration(RedisObjectIndexTable table,
+			MultiplexedTransport node) {
+		this.table = table;
+		this.node = node;
+	}
+
+	/**
+	 * Set number of keys requested per SCAN call
+	 * 
+	 * @param scanCount
+	 * @return this migration
+	 */
+	public ObjectIndexMigration setScanCount(int scanCount) {
+		this.scanCount = scanCount;
+		return this;
+	}
+
+	/**
+	 * Set whether the buckets of repositories not sized yet are sized from
+	 * the node's rows before they are migrated, or else get the table's
+	 * bucket digits
+	 * 
+	 * @param sizeBuckets
+	 * @return this migration
+	 */
+	public ObjectIndexMigration setSizeBuckets(boolean sizeBuckets) {
+		this.sizeBuckets = sizeBuckets;
+		return this;
+	}
+
+	/**
+	 * Migrate all object index rows on the node
+	 * 
+	 * @return this migration
+	 * @throws DhtException
+	 */
+	@SuppressWarnings("unchecked")
+	public ObjectIndexMigration run() throws DhtException {
+		if (table.getEncoding() != RedisObjectIndexTable.Encoding.BUCKET)
+			throw new IllegalStateException(
+					"Table must write the bucket encoding");
+		memoryBefore = usedMemory();
+		RedisWriteBuffer buffer = new RedisWriteBuffer(table.getProvider());
+		byte[] count = Constants.encode(Integer.toString(scanCount));
+		if (sizeBuckets)
+			sizeBuckets(count);
+		byte[] cursor = START;
+		do {
+			List<Object> page = (List<Object>) node.call(SCAN, cursor, MATCH,
+					ROWS, COUNT, count);
+			cursor = (byte[]) page.get(0);
+			migrate((List<Object>) page.get(1), buffer);
+			buffer.flush();
+		} while (!Arrays.equals(cursor, START));
+		memoryAfter = usedMemory();
+		return this;
+	}
+
+	/**
+	 * Size the buckets of every repository with rows on the node from the
+	 * number of rows it has
+	 * 
+	 * @param count
+	 * @throws DhtException
+	 */
+	@SuppressWarnings("unchecked")
+	private void sizeBuckets(byte[] count) throws DhtException {
+		Map<Integer, long[]> repositories = new HashMap<Integer, long[]>();
+		byte[] cursor = START;
+		do {
+			List<Object> page = (List<Object>) node.call(SCAN, cursor, MATCH,
+					ROWS, COUNT, count);
+			cursor = (byte[]) page.get(0);
+			for (Object key : (List<Object>) page.get(1)) {
+				Integer repo;
+				try {
+					repo = Integer.valueOf(ObjectIndexKey.fromBytes(
+							(byte[]) key).getRepositoryId());
+				} catch (IllegalArgumentException e) {
+					continue;
+				}
+				long[] rows = repositories.get(repo);
+				if (rows == null)
+					repositories.put(repo, rows = new long[1]);
+				rows[0]++;
+			}
+		} while (!Arrays.equals(cursor, START));
+		for (Map.Entry<Integer, long[]> repo : repositories.entrySet())
+			table.sizeBuckets(RepositoryKey.fromInt(repo.getKey().intValue()),
+					repo.getValue()[0]);
+	}
+
+	/**
+	 * Migrate the object index rows among the given keys
+	 * 
+	 * @param keys
+	 * @param buffer
+	 * @throws DhtException
+	 */
+	@SuppressWarnings("unchecked")
+	private void migrate(List<Object> keys, RedisWriteBuffer buffer)
+			throws DhtException {
+		Reply[] replies = new Reply[keys.size()];
+		for (int i = 0; i < replies.length; i++)
+			replies[i] = node.send(HGETALL, (byte[]) keys.get(i));
+		for (int i = 0; i < replies.length; i++) {
+			List<Object> values;
+			try {
+				values = (List<Object>) replies[i].get(node.getTimeout());
+			} catch (JedisDataException e) {
+				// Not a hash, such as a chunk stored as a blob
+				continue;
+			}
+			byte[] key = (byte[]) keys.get(i);
+			ObjectIndexKey objId = parse(key, values);
+			if (objId == null)
+				continue;
+			try {
+				for (int j = 0; j < values.size(); j += 2)
+					table.add(objId, new ObjectInfo(
+							ChunkKey.fromBytes((byte[]) values.get(j)), 0,
+							GitStore.ObjectInfo.parseFrom((byte[]) values
+									.get(j + 1))), buffer);
+			} catch (InvalidProtocolBufferException e) {
+				throw new DhtException(e);
+			}
+			buffer.del(key);
+			entries += values.size() / 2;
+			rows++;
+		}
+	}
+
+	/**
+	 * Parse key of a row whose fields are all chunk keys
+	 * 
+	 * @param key
+	 * @param values
+	 * @return object index key or null if the row is not an object index row
+	 */
+	private static ObjectIndexKey parse(byte[] key, List<Object> values) {
+		if (values.isEmpty())
+			return null;
+		try {
+			for (int i = 0; i < values.size(); i += 2)
+				ChunkKey.fromBytes((byte[]) values.get(i));
+			return ObjectIndexKey.fromBytes(key);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get memory used by the node
+	 * 
+	 * @return bytes or -1 if the node does not report it
+	 */
+	private long usedMemory() {
+		String info = RawParseUtils.decode((byte[]) node.call(INFO, MEMORY));
+		for (String line : info.split("\r\n"))
+			if (line.startsWith(USED_MEMORY))
+				return Long.parseLong(line.substring(USED_MEMORY.length()));
+		return -1;
+	}
+
+	/**
+	 * Get number of object rows migrated
+	 * 
+	 * @return rows
+	 */
+	public long getRows() {
+		return rows;
+	}
+
+	/**
+	 * Get number of chunk entries migrated
+	 * 
+	 * @return entries
+	 */
+	public long getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Get memory used by the node before the migration
+	 * 
+	 * @return bytes or -1 if unknown
+	 */
+	public long getMemoryBefore() {
+		return memoryBefore;
+	}
+
+	/**
+	 * Get memory used by the node after the migration
+	 * 
+	 * @return bytes or -1 if unknown
+	 */
+	public long getMemoryAfter() {
+		return memoryAfter;
+	}
+
+	/**
+	 * Get memory saved on the node by the migration
+	 * 
+	 * @return bytes or -1 if unknown
+	 */
+	public long getMemorySaved() {
+		if (memoryBefore < 0 || memoryAfter < 0)
+			return -1;
+		return memoryBefore - memoryAfter;
+	}
+
+	/**
+	 * Migrate the object index rows of a single Redis node
+	 * 
+	 * @param args
+	 *            host, port, and optionally the number of bucket digits every
+	 *            repository not sized yet gets instead of being sized from its
+	 *            rows
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err
+					.println("Usage: ObjectIndexMigration <host> <port> [bucket digits]");
+			System.exit(1);
+		}
+		String host = args[0];
+		int port = Integer.parseInt(args[1]);
+		RedisObjectIndexTable table = new RedisObjectIndexTable(
+				new DefaultConnectionProvider(host, port));
+		table.setEncoding(RedisObjectIndexTable.Encoding.BUCKET);
+		if (args.length > 2)
+			table.setBucketDigits(Integer.parseInt(args[2]));
+		MultiplexedTransport node = new MultiplexedTransport(host, port);
+		try {
+			ObjectIndexMigration migration = new ObjectIndexMigration(table,
+					node).setSizeBuckets(args.length <= 2).run();
+			System.out.println("Migrated " + migration.getRows()
+					+ " rows with " + migration.getEntries() + " entries");
+			System.out.println("Memory before: " + migration.getMemoryBefore()
+					+ " bytes, after: " + migration.getMemoryAfter()
+					+ " bytes, saved: " + migration.getMemorySaved()
+					+ " bytes");
+		} finally {
+			node.close();
+		}
+	}
+}
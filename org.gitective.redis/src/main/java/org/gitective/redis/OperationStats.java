@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of one operation of one table
+ */
+public class OperationStats implements OperationStatsMBean {
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	private final AtomicLong errors = new AtomicLong();
+
+	private final AtomicLong commands = new AtomicLong();
+
+	private final AtomicLong bytesOut = new AtomicLong();
+
+	private final AtomicLong bytesIn = new AtomicLong();
+
+	/**
+	 * Record operation
+	 * 
+	 * @param nanos
+	 * @param commands
+	 * @param bytesOut
+	 * @param bytesIn
+	 * @param failed
+	 * @return this stats
+	 */
+	public OperationStats record(long nanos, long commands, long bytesOut,
+			long bytesIn, boolean failed) {
+		latency.record(nanos);
+		if (commands != 0)
+			this.commands.addAndGet(commands);
+		if (bytesOut != 0)
+			this.bytesOut.addAndGet(bytesOut);
+		if (bytesIn != 0)
+			this.bytesIn.addAndGet(bytesIn);
+		if (failed)
+			errors.incrementAndGet();
+		return this;
+	}
+
+	/**
+	 * Get latency histogram in nanoseconds
+	 * 
+	 * @return histogram
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	public long getCount() {
+		return latency.getCount();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	public long getCommands() {
+		return commands.get();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	public double getMeanLatency() {
+		return latency.getMean() / 1000;
+	}
+
+	public long getLatency50() {
+		return micros(latency.getQuantile(0.5));
+	}
+
+	public long getLatency95() {
+		return micros(latency.getQuantile(0.95));
+	}
+
+	public long getLatency99() {
+		return micros(latency.getQuantile(0.99));
+	}
+
+	public long getMaxLatency() {
+		return micros(latency.getMax());
+	}
+
+	public void reset() {
+		latency.reset();
+		errors.set(0);
+		commands.set(0);
+		bytesOut.set(0);
+		bytesIn.set(0);
+	}
+}
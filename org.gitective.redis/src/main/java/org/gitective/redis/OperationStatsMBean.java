@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+/**
+ * Management interface of {@link OperationStats}
+ */
+public interface OperationStatsMBean {
+
+	/**
+	 * @return number of operations
+	 */
+	long getCount();
+
+	/**
+	 * @return number of failed operations
+	 */
+	long getErrors();
+
+	/**
+	 * @return number of Redis commands sent
+	 */
+	long getCommands();
+
+	/**
+	 * @return payload bytes sent
+	 */
+	long getBytesOut();
+
+	/**
+	 * @return payload bytes received
+	 */
+	long getBytesIn();
+
+	/**
+	 * @return mean latency in microseconds
+	 */
+	double getMeanLatency();
+
+	/**
+	 * @return median latency in microseconds
+	 */
+	long getLatency50();
+
+	/**
+	 * @return 95th percentile latency in microseconds
+	 */
+	long getLatency95();
+
+	/**
+	 * @return 99th percentile latency in microseconds
+	 */
+	long getLatency99();
+
+	/**
+	 * @return maximum latency in microseconds
+	 */
+	long getMaxLatency();
+
+	/**
+	 * Clear all statistics
+	 */
+	void reset();
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Connection provider that pins a connection to the thread that acquired it
+ * <p>
+ * Every acquire on a thread that already has a pinned connection returns that
+ * connection, so the many acquire and release pairs of a single DHT read cost
+ * one borrow from the wrapped provider instead of one each. A pinned connection
+ * is returned to the wrapped provider once it has been idle for the idle
+ * timeout. Wrapping a whole logical operation in {@link #pin()} and
+ * {@link #unpin()} keeps the connection pinned until the operation ends.
+ * <p>
+ * Callers on one thread must read every pipelined reply before acquiring
+ * again, which the tables always do. Every key is routed to the pinned
+ * connection, so wrap each node of a {@link ShardedConnectionProvider}, and
+ * the primary and each replica of a {@link ReplicaConnectionProvider}, rather
+ * than those providers themselves.
+ */
+public class PinnedConnectionProvider extends AbstractConnectionProvider {
+
+	/**
+	 * Default number of milliseconds a pinned connection may be idle before it
+	 * is returned
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 1000;
+
+	private static final AtomicInteger REAPERS = new AtomicInteger();
+
+	/**
+	 * Connection pinned to a thread
+	 */
+	private static class Pin {
+
+		final Jedis connection;
+
+		int references;
+
+		long lastUsed;
+
+		boolean unpinned;
+
+		Pin(Jedis connection) {
+			this.connection = connection;
+		}
+	}
+
+	private final ConnectionProvider provider;
+
+	private final long idleTimeout;
+
+	private final ThreadLocal<Pin> pins = new ThreadLocal<Pin>();
+
+	private final Set<Pin> pinned = Collections
+			.newSetFromMap(new ConcurrentHashMap<Pin, Boolean>());
+
+	private ScheduledExecutorService reaper;
+
+	private volatile boolean closed;
+
+	/**
+	 * Create provider pinning connections of given provider with the default
+	 * idle timeout
+	 * 
+	 * @param provider
+	 */
+	public PinnedConnectionProvider(ConnectionProvider provider) {
+		this(provider, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/**
+	 * Create provider pinning connections of given provider
+	 * 
+	 * @param provider
+	 * @param idleTimeout
+	 *            milliseconds a connection may be idle before it is returned,
+	 *            0 to return it as soon as it is no longer in use
+	 */
+	public PinnedConnectionProvider(ConnectionProvider provider,
+			long idleTimeout) {
+		this.provider = provider;
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Get wrapped provider
+	 * 
+	 * @return provider
+	 */
+	public ConnectionProvider getProvider() {
+		return provider;
+	}
+
+	/**
+	 * Get number of connections currently pinned to threads
+	 * 
+	 * @return count
+	 */
+	public int getPinnedCount() {
+		return pinned.size();
+	}
+
+	public Jedis acquire() {
+		Pin pin = pins.get();
+		if (pin != null)
+			synchronized (pin) {
+				if (!pin.unpinned) {
+					pin.references++;
+					return pin.connection;
+				}
+			}
+
+		pin = new Pin(provider.acquire());
+		pin.references = 1;
+		pins.set(pin);
+		pinned.add(pin);
+		if (idleTimeout > 0)
+			startReaper();
+		return pin.connection;
+	}
+
+	public ConnectionProvider release(Jedis connection) {
+		Pin pin = pins.get();
+		if (pin == null || pin.connection != connection) {
+			provider.release(connection);
+			return this;
+		}
+
+		synchronized (pin) {
+			if (--pin.references > 0)
+				return this;
+			pin.lastUsed = System.currentTimeMillis();
+			if (!closed && idleTimeout > 0 && connection.isConnected())
+				return this;
+			pin.unpinned = true;
+		}
+		unpin(pin);
+		return this;
+	}
+
+	/**
+	 * Pin a connection to the calling thread until {@link #unpin()} is called
+	 * 
+	 * @return this provider
+	 */
+	public PinnedConnectionProvider pin() {
+		acquire();
+		return this;
+	}
+
+	/**
+	 * End pinning started by {@link #pin()}
+	 * 
+	 * @return this provider
+	 */
+	public PinnedConnectionProvider unpin() {
+		Pin pin = pins.get();
+		if (pin == null)
+			throw new IllegalStateException("No connection pinned");
+		release(pin.connection);
+		return this;
+	}
+
+	/**
+	 * Stop returning idle connections in the background and return every
+	 * connection that is not in use
+	 * <p>
+	 * Connections in use are returned when released.
+	 */
+	public void close() {
+		closed = true;
+		synchronized (this) {
+			if (reaper != null)
+				reaper.shutdownNow();
+		}
+		reap(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Disconnect connection and release it
+	 * <p>
+	 * A pinned connection stays pinned while it is still in use, and
+	 * reconnects when it is next used. It is returned to the wrapped provider
+	 * as broken if still disconnected once unpinned.
+	 */
+	public ConnectionProvider releaseBroken(Jedis connection) {
+		Pin pin = pins.get();
+		if (pin == null || pin.connection != connection) {
+			provider.releaseBroken(connection);
+			return this;
+		}
+		try {
+			connection.disconnect();
+		} catch (JedisException ignored) {
+			// Connection is dropped
+		}
+		return release(connection);
+	}
+
+	private void unpin(Pin pin) {
+		if (pins.get() == pin)
+			pins.remove();
+		pinned.remove(pin);
+		if (pin.connection.isConnected())
+			provider.release(pin.connection);
+		else
+			provider.releaseBroken(pin.connection);
+	}
+
+	private synchronized void startReaper() {
+		if (reaper != null || closed)
+			return;
+		final String name = "redis-pin-reaper-" + REAPERS.incrementAndGet();
+		reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long interval = Math.max(idleTimeout / 2, 1);
+		reaper.scheduleWithFixedDelay(new Runnable() {
+
+			public void run() {
+				reap(System.currentTimeMillis() - idleTimeout);
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Return connections not in use since the given time
+	 * 
+	 * @param before
+	 */
+	private void reap(long before) {
+		for (Iterator<Pin> iter = pinned.iterator(); iter.hasNext();) {
+			Pin pin = iter.next();
+			synchronized (pin) {
+				if (pin.references > 0 || pin.unpinned
+						|| pin.lastUsed > before)
+					continue;
+				pin.unpinned = true;
+			}
+			iter.remove();
+			try {
+				if (pin.connection.isConnected())
+					provider.release(pin.connection);
+				else
+					provider.releaseBroken(pin.connection);
+			} catch (JedisException ignored) {
+				// Connection is dropped
+			}
+		}
+	}
+}
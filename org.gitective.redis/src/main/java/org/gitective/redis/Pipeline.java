@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.util.LinkedList;
+import java.util.Queue;
+
+import org.eclipse.jgit.lib.Constants;
+
+import redis.clients.jedis.Client;
+
+/**
+ * Commands pipelined over a connection or a multiplexed transport
+ * <p>
+ * Replies are received in the order their commands were sent. Every reply
+ * must be received before a connection is released, while replies left on a
+ * transport are simply dropped.
+ */
+class Pipeline {
+
+	private static final byte[] GET = Constants.encode("GET");
+
+	private static final byte[] GETRANGE = Constants.encode("GETRANGE");
+
+	private static final byte[] HGET = Constants.encode("HGET");
+
+	private static final byte[] HGETALL = Constants.encode("HGETALL");
+
+	private static final byte[] HMGET = Constants.encode("HMGET");
+
+	private final Client client;
+
+	private final MultiplexedTransport transport;
+
+	private final Queue<Reply> replies = new LinkedList<Reply>();
+
+	/**
+	 * Create pipeline over connection
+	 * 
+	 * @param client
+	 */
+	Pipeline(Client client) {
+		this.client = client;
+		transport = null;
+	}
+
+	/**
+	 * Create pipeline over transport
+	 * 
+	 * @param transport
+	 */
+	Pipeline(MultiplexedTransport transport) {
+		client = null;
+		this.transport = transport;
+	}
+
+	void get(byte[] key) {
+		if (client != null)
+			client.get(key);
+		else
+			replies.add(transport.send(GET, key));
+	}
+
+	void getRange(byte[] key, int start, int end) {
+		if (client != null)
+			client.substr(key, start, end);
+		else
+			replies.add(transport.send(GETRANGE, key,
+					Constants.encode(Integer.toString(start)),
+					Constants.encode(Integer.toString(end))));
+	}
+
+	void hget(byte[] key, byte[] field) {
+		if (client != null)
+			client.hget(key, field);
+		else
+			replies.add(transport.send(HGET, key, field));
+	}
+
+	void hgetAll(byte[] key) {
+		if (client != null)
+			client.hgetAll(key);
+		else
+			replies.add(transport.send(HGETALL, key));
+	}
+
+	void hmget(byte[] key, byte[]... fields) {
+		if (client != null)
+			client.hmget(key, fields);
+		else {
+			byte[][] command = new byte[fields.length + 2][];
+			command[0] = HMGET;
+			command[1] = key;
+			System.arraycopy(fields, 0, command, 2, fields.length);
+			replies.add(transport.send(command));
+		}
+	}
+
+	/**
+	 * Receive reply to the oldest command not yet received
+	 * 
+	 * @return reply, decoded as Jedis decodes replies
+	 * @throws redis.clients.jedis.exceptions.JedisDataException
+	 *             if the server replied with an error
+	 * @throws redis.clients.jedis.exceptions.JedisConnectionException
+	 *             if the connection failed
+	 */
+	Object receive() {
+		if (client != null)
+			return client.getOne();
+		return replies.remove().get(transport.getTimeout());
+	}
+}
@@ -27,7 +27,7 @@ import redis.clients.jedis.JedisPool;
 /**
  * Pool-based connection provider
  */
-public class PoolConnectionProvider implements ConnectionProvider {
+public class PoolConnectionProvider extends AbstractConnectionProvider {
 
 	private final JedisPool pool;
 
@@ -50,4 +50,10 @@ public class PoolConnectionProvider implements ConnectionProvider {
 		return this;
 	}
 
+	public ConnectionProvider releaseBroken(Jedis connection) {
+		if (connection != null)
+			pool.returnBrokenResource(connection);
+		return this;
+	}
+
 }
@@ -21,22 +21,68 @@
  */
 package org.gitective.redis;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.DhtException;
 import org.eclipse.jgit.storage.dht.spi.cache.CacheKey;
 import org.eclipse.jgit.storage.dht.spi.cache.CacheService;
 
+import redis.clients.jedis.Client;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
 
 /**
  * Redis-backed cache service
+ * <p>
+ * The cache can be pointed at a dedicated Redis instance by passing it its own
+ * {@link ConnectionProvider}. That instance should be configured with a
+ * <code>maxmemory</code> limit and an LRU <code>maxmemory-policy</code> so
+ * cache churn never competes with the repository data. Entries can also be
+ * given a time to live and values above a maximum size are not cached.
  */
 public class RedisCacheService extends RedisClient implements CacheService {
 
+	/**
+	 * Set a value only if its key is missing, giving it a time to live when it
+	 * is set
+	 * <p>
+	 * ARGV holds the value and the time to live in seconds. A key that already
+	 * exists keeps its own time to live.
+	 */
+	public static final RedisScript PUT_IF_ABSENT = new RedisScript(
+			"if redis.call('SETNX', KEYS[1], ARGV[1]) == 0 then return 0 end\n"
+					+ "redis.call('EXPIRE', KEYS[1], ARGV[2])\n"
+					+ "return 1");
+
+	private static final KeyFunction<CacheKey> KEY = new KeyFunction<CacheKey>() {
+
+		public byte[] key(CacheKey value) {
+			return value.getBytes();
+		}
+	};
+
+	private static final KeyFunction<Change> CHANGE_KEY = new KeyFunction<Change>() {
+
+		public byte[] key(Change value) {
+			return value.getKey().getBytes();
+		}
+	};
+
+	private int timeToLive;
+
+	private int maxEntrySize;
+
 	/**
 	 */
 	public RedisCacheService() {
@@ -57,31 +103,220 @@ public class RedisCacheService extends RedisClient implements CacheService {
 		super(pool);
 	}
 
+	/**
+	 * Set number of seconds cached entries live for
+	 * 
+	 * @param seconds
+	 *            time to live, 0 to never expire
+	 * @return this service
+	 */
+	public RedisCacheService setTimeToLive(int seconds) {
+		timeToLive = seconds;
+		return this;
+	}
+
+	/**
+	 * Set largest value in bytes that will be stored
+	 * 
+	 * @param bytes
+	 *            maximum size, 0 for no limit
+	 * @return this service
+	 */
+	public RedisCacheService setMaxEntrySize(int bytes) {
+		maxEntrySize = bytes;
+		return this;
+	}
+
 	public void get(final Collection<CacheKey> keys,
-			final AsyncCallback<Map<CacheKey, byte[]>> callback) {
-		Jedis connection = acquire();
+			AsyncCallback<Map<CacheKey, byte[]>> callback) {
+		final TableOperation operation = begin("get");
+		final AsyncCallback<Map<CacheKey, byte[]>> measured = operation
+				.wrap(callback);
+		dispatch(measured, new Runnable() {
+
+			public void run() {
+				load(keys, measured, operation);
+			}
+		});
+	}
+
+	private void load(Collection<CacheKey> keys,
+			AsyncCallback<Map<CacheKey, byte[]>> callback,
+			final TableOperation operation) {
+		final Map<CacheKey, byte[]> cached = Collections
+				.synchronizedMap(new HashMap<CacheKey, byte[]>());
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final List<CacheKey> group : partition(keys, KEY))
+			tasks.add(new Callable<Void>() {
+
+				public Void call() {
+					fetch(group, cached, operation);
+					return null;
+				}
+			});
 		try {
-			Map<CacheKey, byte[]> cached = new HashMap<CacheKey, byte[]>();
-			for (CacheKey key : keys) {
-				byte[] value = connection.get(key.getBytes());
-				if (value != null)
-					cached.put(key, value);
+			invokeAll(tasks);
+		} catch (DhtException e) {
+			callback.onFailure(e);
+			return;
+		}
+		callback.onSuccess(cached);
+	}
+
+	/**
+	 * Fetch cached values that are all stored on one node
+	 * 
+	 * @param keys
+	 * @param cached
+	 * @param operation
+	 */
+	private void fetch(List<CacheKey> keys, Map<CacheKey, byte[]> cached,
+			TableOperation operation) {
+		Jedis connection = acquire(keys.get(0).getBytes());
+		try {
+			Client client = connection.getClient();
+			List<CacheKey[]> batches = new ArrayList<CacheKey[]>();
+			Iterator<CacheKey> iter = keys.iterator();
+			int remaining = keys.size();
+			while (remaining > 0) {
+				CacheKey[] batch = new CacheKey[Math.min(getBatchSize(),
+						remaining)];
+				byte[][] raw = new byte[batch.length][];
+				for (int i = 0; i < batch.length; i++) {
+					batch[i] = iter.next();
+					raw[i] = batch[i].getBytes();
+				}
+				client.mget(raw);
+				operation.command(size(raw));
+				batches.add(batch);
+				remaining -= batch.length;
+			}
+			for (CacheKey[] keyBatch : batches) {
+				List<byte[]> values = client.getBinaryMultiBulkReply();
+				operation.received(values);
+				for (int i = 0; i < keyBatch.length; i++) {
+					byte[] value = values.get(i);
+					if (value != null)
+						cached.put(keyBatch[i], value);
+				}
 			}
-			callback.onSuccess(cached);
+		} catch (JedisException e) {
+			// Replies may be left unread on the connection
+			releaseBroken(connection);
+			connection = null;
+			throw e;
 		} finally {
-			release(connection);
+			if (connection != null)
+				release(connection);
 		}
 	}
 
 	public void modify(final Collection<Change> changes,
-			final AsyncCallback<Void> callback) {
-		Jedis connection = acquire();
+			AsyncCallback<Void> callback) {
+		final TableOperation operation = begin("modify");
+		final AsyncCallback<Void> measured = operation.wrap(callback);
+		dispatch(measured, new Runnable() {
+
+			public void run() {
+				store(changes, measured, operation);
+			}
+		});
+	}
+
+	private void store(Collection<Change> changes,
+			AsyncCallback<Void> callback, final TableOperation operation) {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final List<Change> group : partition(changes, CHANGE_KEY))
+			tasks.add(new Callable<Void>() {
+
+				public Void call() throws DhtException {
+					write(group, operation);
+					return null;
+				}
+			});
 		try {
-			for (Change change : changes)
-				connection.set(change.getKey().getBytes(), change.getData());
-			callback.onSuccess(null);
+			invokeAll(tasks);
+		} catch (DhtException e) {
+			callback.onFailure(e);
+			return;
+		}
+		callback.onSuccess(null);
+	}
+
+	/**
+	 * Write changes to keys that are all stored on one node
+	 * 
+	 * @param changes
+	 * @param operation
+	 * @throws DhtException
+	 */
+	private void write(List<Change> changes, TableOperation operation)
+			throws DhtException {
+		JedisDataException error = null;
+		Jedis connection = acquire(changes.get(0).getKey().getBytes());
+		try {
+			Client client = connection.getClient();
+			byte[] seconds = Constants.encode(Integer.toString(timeToLive));
+			boolean loaded = false;
+			int replies = 0;
+			for (Change change : changes) {
+				byte[] key = change.getKey().getBytes();
+				byte[] data = change.getData();
+				boolean oversized = change.getType() != Change.Type.REMOVE
+						&& maxEntrySize > 0 && data.length > maxEntrySize;
+				if (oversized && change.getType() == Change.Type.PUT_IF_ABSENT)
+					continue;
+				if (oversized || change.getType() == Change.Type.REMOVE) {
+					client.del(key);
+					operation.command(key.length);
+					replies++;
+				} else if (change.getType() == Change.Type.PUT_IF_ABSENT
+						&& timeToLive > 0) {
+					// Set and expire in one script so a key that exists has
+					// its time to live left alone and a set key always expires
+					if (!loaded) {
+						client.scriptLoad(PUT_IF_ABSENT.getScript());
+						operation.command(PUT_IF_ABSENT.getScript().length);
+						replies++;
+						loaded = true;
+					}
+					client.evalsha(PUT_IF_ABSENT.getSha(), 1, key, data, seconds);
+					operation.command(key.length + data.length);
+					replies++;
+				} else if (change.getType() == Change.Type.PUT_IF_ABSENT) {
+					client.setnx(key, data);
+					operation.command(key.length + data.length);
+					replies++;
+				} else if (timeToLive > 0) {
+					client.setex(key, timeToLive, data);
+					operation.command(key.length + data.length);
+					replies++;
+				} else {
+					client.set(key, data);
+					operation.command(key.length + data.length);
+					replies++;
+				}
+			}
+
+			// Every reply must be read, even after a failure, so the
+			// connection is left clean
+			for (int i = 0; i < replies; i++)
+				try {
+					client.getOne();
+				} catch (JedisDataException e) {
+					if (error == null)
+						error = e;
+				}
+		} catch (JedisException e) {
+			// Replies may be left unread on the connection
+			releaseBroken(connection);
+			connection = null;
+			throw e;
 		} finally {
-			release(connection);
+			if (connection != null)
+				release(connection);
 		}
+		if (error != null)
+			throw new DhtException(error);
 	}
 }
@@ -21,14 +21,25 @@
  */
 package org.gitective.redis;
 
-import com.google.protobuf.InvalidProtocolBufferException;
-
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.eclipse.jgit.generated.storage.dht.proto.GitStore.ChunkMeta;
 import org.eclipse.jgit.lib.Constants;
@@ -37,24 +48,264 @@ import org.eclipse.jgit.storage.dht.ChunkKey;
 import org.eclipse.jgit.storage.dht.DhtException;
 import org.eclipse.jgit.storage.dht.PackChunk;
 import org.eclipse.jgit.storage.dht.PackChunk.Members;
+import org.eclipse.jgit.storage.dht.RepositoryKey;
 import org.eclipse.jgit.storage.dht.spi.ChunkTable;
 import org.eclipse.jgit.storage.dht.spi.Context;
 import org.eclipse.jgit.storage.dht.spi.WriteBuffer;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
 
 /**
  * Redis-backed chunk table
  */
 public class RedisChunkTable extends RedisClient implements ChunkTable {
 
+	/**
+	 * Way chunks are stored in Redis
+	 * <p>
+	 * Chunks are read in either layout, whichever one is configured for
+	 * writes, so a table can be switched to a new layout before its existing
+	 * chunks are migrated.
+	 */
+	public enum Layout {
+
+		/**
+		 * Hash with a field for each of the data, index, and meta values
+		 */
+		HASH,
+
+		/**
+		 * Single string value of a fixed header followed by the encoded meta,
+		 * index, and data, read with one GET, or a GETRANGE for meta
+		 */
+		BLOB;
+
+		/**
+		 * Get the layout that is not this one
+		 * 
+		 * @return layout
+		 */
+		public Layout other() {
+			return this == HASH ? BLOB : HASH;
+		}
+	}
+
+	/**
+	 * Version byte at the start of every blob
+	 */
+	private static final byte BLOB_VERSION = 1;
+
+	/**
+	 * Size of the blob header of a version byte and the 32-bit lengths of the
+	 * meta, index, and data values
+	 */
+	private static final int BLOB_HEADER = 13;
+
+	/**
+	 * Bytes read after the blob header when reading meta, enough to cover
+	 * typical meta with a single GETRANGE
+	 */
+	private static final int META_READ_AHEAD = 1024;
+
+	/**
+	 * Merge some of a chunk's values into its blob, converting a hash row to
+	 * a blob
+	 * <p>
+	 * ARGV holds the encoded meta, index, and data with empty values for the
+	 * ones to keep. A chunk moved to tiered storage is left as is, since its
+	 * values are only held by the tier store, and 0 is returned.
+	 */
+	public static final RedisScript MERGE_BLOB = new RedisScript(
+			"local parts = {ARGV[1], ARGV[2], ARGV[3]}\n"
+					+ "local kind = redis.call('TYPE', KEYS[1])['ok']\n"
+					+ "if kind == 'string' then\n"
+					+ "  local old = redis.call('GET', KEYS[1])\n"
+					+ "  local offset = 14\n"
+					+ "  for i = 1, 3 do\n"
+					+ "    local length = struct.unpack('>I4', old, 2 + 4 * (i - 1))\n"
+					+ "    if parts[i] == '' then\n"
+					+ "      parts[i] = string.sub(old, offset, offset + length - 1)\n"
+					+ "    end\n"
+					+ "    offset = offset + length\n"
+					+ "  end\n"
+					+ "elseif kind == 'hash' then\n"
+					+ "  if redis.call('HEXISTS', KEYS[1], 'tier') == 1 then return 0 end\n"
+					+ "  local old = redis.call('HMGET', KEYS[1], 'meta', 'index', 'data', 'zmeta', 'zindex', 'zdata')\n"
+					+ "  for i = 1, 3 do\n"
+					+ "    if parts[i] == '' then\n"
+					+ "      if old[i] then parts[i] = '\\0' .. old[i] elseif old[i + 3] then parts[i] = old[i + 3] end\n"
+					+ "    end\n"
+					+ "  end\n"
+					+ "  redis.call('DEL', KEYS[1])\n"
+					+ "end\n"
+					+ "redis.call('SET', KEYS[1], struct.pack('>BI4I4I4', 1, #parts[1], #parts[2], #parts[3]) .. parts[1] .. parts[2] .. parts[3])\n"
+					+ "return 1");
+
+	private static final byte[] EMPTY = new byte[0];
+
 	private static final byte[] DATA = Constants.encode("data");
 
 	private static final byte[] INDEX = Constants.encode("index");
 
 	private static final byte[] META = Constants.encode("meta");
 
+	/**
+	 * Fields holding values written with a codec other than
+	 * {@link ChunkCodec#NONE}, each starting with a codec header
+	 * <p>
+	 * Every value is stored in the field for its own format, so values written
+	 * by separate puts with different codecs are each read correctly. A raw
+	 * value is read in preference to an encoded one.
+	 */
+	private static final byte[] ZDATA = Constants.encode("zdata");
+
+	private static final byte[] ZINDEX = Constants.encode("zindex");
+
+	private static final byte[] ZMETA = Constants.encode("zmeta");
+
+	/**
+	 * Field of a chunk moved to tiered storage holding its segment pointer
+	 */
+	private static final byte[] TIER = Constants.encode("tier");
+
+	/**
+	 * Number of recorded chunk accesses that triggers writing them to Redis
+	 */
+	private static final int ACCESS_BATCH = 1024;
+
+	/**
+	 * Score of chunks in a recency set that have been moved to tiered storage,
+	 * keeping them out of every idle range
+	 */
+	private static final double TIERED_SCORE = Double.MAX_VALUE;
+
+	/**
+	 * Replace a chunk with a pointer to its copy in tiered storage, unless the
+	 * chunk has been removed or written to since it was copied
+	 * <p>
+	 * ARGV holds the segment pointer and the total length of the chunk's
+	 * values when it was copied. Returns 1 if moved, 2 if already moved, 0 if
+	 * missing, and -1 if changed.
+	 */
+	public static final RedisScript MOVE_TO_TIER = new RedisScript(
+			"local kind = redis.call('TYPE', KEYS[1])['ok']\n"
+					+ "local size = 0\n"
+					+ "if kind == 'string' then\n"
+					+ "  size = redis.call('STRLEN', KEYS[1]) - 13\n"
+					+ "elseif kind == 'hash' then\n"
+					+ "  if redis.call('HEXISTS', KEYS[1], 'tier') == 1 then return 2 end\n"
+					+ "  for _, value in ipairs(redis.call('HMGET', KEYS[1], 'data', 'index', 'meta', 'zdata', 'zindex', 'zmeta')) do\n"
+					+ "    if value then size = size + #value end\n"
+					+ "  end\n"
+					+ "else\n"
+					+ "  return 0\n"
+					+ "end\n"
+					+ "if size ~= tonumber(ARGV[2]) then return -1 end\n"
+					+ "redis.call('DEL', KEYS[1])\n"
+					+ "redis.call('HSET', KEYS[1], 'tier', ARGV[1])\n"
+					+ "return 1");
+
+	/**
+	 * Add chunks missing from a recency set with the given score
+	 * <p>
+	 * ARGV holds the score followed by the chunks.
+	 */
+	public static final RedisScript SEED_RECENCY = new RedisScript(
+			"local added = 0\n"
+					+ "for i = 2, #ARGV do\n"
+					+ "  if not redis.call('ZSCORE', KEYS[1], ARGV[i]) then\n"
+					+ "    redis.call('ZADD', KEYS[1], ARGV[1], ARGV[i])\n"
+					+ "    added = added + 1\n"
+					+ "  end\n"
+					+ "end\n"
+					+ "return added");
+
+	private static final Long MOVED = Long.valueOf(1);
+
+	private static final Long ALREADY_MOVED = Long.valueOf(2);
+
+	private static final Long CHANGED = Long.valueOf(-1);
+
+	private static final String WRONG_TYPE = "wrong kind of value";
+
+	/**
+	 * Fields read for a whole chunk: the raw data, index, and meta, the
+	 * encoded data, index, and meta, and the tier pointer
+	 */
+	private static final byte[][] ROW_FIELDS = { DATA, INDEX, META, ZDATA,
+			ZINDEX, ZMETA, TIER };
+
+	/**
+	 * Offset of a value's encoded field from its raw field in row values
+	 */
+	private static final int ENCODED = 3;
+
+	/**
+	 * Position of the tier pointer in row values
+	 */
+	private static final int TIER_VALUE = 6;
+
+	private static final int FIELDS_SIZE = DATA.length + INDEX.length
+			+ META.length + ZDATA.length + ZINDEX.length + ZMETA.length
+			+ TIER.length;
+
+	private static final KeyFunction<ChunkKey> ROW = new KeyFunction<ChunkKey>() {
+
+		public byte[] key(ChunkKey value) {
+			return value.asBytes();
+		}
+	};
+
+	/**
+	 * Default number of parsed chunk meta kept in memory
+	 */
+	public static final int DEFAULT_META_CACHE_SIZE = 16 * 1024;
+
+	/**
+	 * Least recently used parsed chunk meta
+	 */
+	private static class MetaCache extends LinkedHashMap<ChunkKey, ChunkMeta> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+
+		MetaCache(int capacity) {
+			super(16, 0.75F, true);
+			this.capacity = capacity;
+		}
+
+		protected boolean removeEldestEntry(
+				Map.Entry<ChunkKey, ChunkMeta> eldest) {
+			return size() > capacity;
+		}
+	}
+
+	private ChunkCache cache;
+
+	private ChunkPrefetcher prefetcher;
+
+	private SegmentStore tierStore;
+
+	private final ConcurrentMap<ChunkKey, Long> accesses = new ConcurrentHashMap<ChunkKey, Long>();
+
+	private final AtomicBoolean flushingAccesses = new AtomicBoolean();
+
+	private volatile MetaCache metaCache = new MetaCache(
+			DEFAULT_META_CACHE_SIZE);
+
+	private ChunkCodec dataCodec = ChunkCodec.NONE;
+
+	private ChunkCodec indexCodec = ChunkCodec.NONE;
+
+	private ChunkCodec metaCodec = ChunkCodec.NONE;
+
+	private Layout layout = Layout.HASH;
+
 	/**
 	 * 
 	 */
@@ -76,85 +327,1490 @@ public class RedisChunkTable extends RedisClient implements ChunkTable {
 		super(pool);
 	}
 
-	public void get(Context options, Set<ChunkKey> keys,
+	/**
+	 * Set in-process cache that chunks are served from before Redis
+	 * 
+	 * @param cache
+	 *            cache or null to always read from Redis
+	 * @return this table
+	 */
+	public RedisChunkTable setCache(ChunkCache cache) {
+		this.cache = cache;
+		return this;
+	}
+
+	/**
+	 * Get in-process chunk cache
+	 * 
+	 * @return cache or null if not configured
+	 */
+	public ChunkCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Set prefetcher that reads ahead the chunks hinted at by the meta of
+	 * chunks read from this table
+	 * 
+	 * @param prefetcher
+	 *            prefetcher or null to only read requested chunks
+	 * @return this table
+	 */
+	public RedisChunkTable setPrefetcher(ChunkPrefetcher prefetcher) {
+		this.prefetcher = prefetcher;
+		return this;
+	}
+
+	/**
+	 * Get prefetcher
+	 * 
+	 * @return prefetcher or null if not configured
+	 */
+	public ChunkPrefetcher getPrefetcher() {
+		return prefetcher;
+	}
+
+	/**
+	 * Set store that cold chunks are moved to
+	 * <p>
+	 * While a store is set, reads and writes of chunks are recorded in a
+	 * sorted set per repository so {@link #demote(RepositoryKey, long)} can
+	 * find chunks that have gone cold. Chunks already moved are read from the
+	 * store whether or not recording is on, so a store must be set to read
+	 * them, and it must be the store they were moved to.
+	 * 
+	 * @param store
+	 *            store or null to keep every chunk in Redis
+	 * @return this table
+	 */
+	public RedisChunkTable setTierStore(SegmentStore store) {
+		tierStore = store;
+		return this;
+	}
+
+	/**
+	 * Get store that cold chunks are moved to
+	 * 
+	 * @return store or null if not configured
+	 */
+	public SegmentStore getTierStore() {
+		return tierStore;
+	}
+
+	/**
+	 * Set number of parsed chunk meta kept in memory
+	 * <p>
+	 * Meta never changes once a chunk is written, so cached meta is served
+	 * without going to Redis.
+	 * 
+	 * @param entries
+	 *            number of chunks, or 0 to always read meta from Redis
+	 * @return this table
+	 */
+	public RedisChunkTable setMetaCacheSize(int entries) {
+		metaCache = entries > 0 ? new MetaCache(entries) : null;
+		return this;
+	}
+
+	/**
+	 * Set codecs that chunk data, index, and meta values are written with
+	 * <p>
+	 * Every value is written with {@link ChunkCodec#NONE} by default. Rows are
+	 * read whatever codecs their values were written with. Values written with
+	 * {@link ChunkCodec#NONE} keep the uncompressed format that earlier
+	 * versions of this table read.
+	 * 
+	 * @param data
+	 * @param index
+	 * @param meta
+	 * @return this table
+	 */
+	public RedisChunkTable setCodecs(ChunkCodec data, ChunkCodec index,
+			ChunkCodec meta) {
+		dataCodec = data;
+		indexCodec = index;
+		metaCodec = meta;
+		return this;
+	}
+
+	/**
+	 * Get codec that chunk data is written with
+	 * 
+	 * @return codec
+	 */
+	public ChunkCodec getDataCodec() {
+		return dataCodec;
+	}
+
+	/**
+	 * Get codec that chunk indexes are written with
+	 * 
+	 * @return codec
+	 */
+	public ChunkCodec getIndexCodec() {
+		return indexCodec;
+	}
+
+	/**
+	 * Get codec that chunk meta is written with
+	 * 
+	 * @return codec
+	 */
+	public ChunkCodec getMetaCodec() {
+		return metaCodec;
+	}
+
+	/**
+	 * Set layout that chunks are written in
+	 * <p>
+	 * Chunks still stored as blobs must be migrated before switching back to
+	 * the hash layout, since hash fields cannot be added to a blob.
+	 * 
+	 * @see #migrate(Collection, Layout, WriteBuffer)
+	 * @param layout
+	 * @return this table
+	 */
+	public RedisChunkTable setLayout(Layout layout) {
+		this.layout = layout;
+		return this;
+	}
+
+	/**
+	 * Get layout that chunks are written in
+	 * 
+	 * @return layout
+	 */
+	public Layout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * Is the given failure a reply to a command against a key of another type?
+	 * 
+	 * @param e
+	 * @return true if wrong type, false otherwise
+	 */
+	static boolean isWrongType(JedisDataException e) {
+		String message = e.getMessage();
+		return message != null && message.contains(WRONG_TYPE);
+	}
+
+	private static int readInt(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xff) << 24
+				| (buffer[offset + 1] & 0xff) << 16
+				| (buffer[offset + 2] & 0xff) << 8
+				| (buffer[offset + 3] & 0xff);
+	}
+
+	private static void writeInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+
+	/**
+	 * Pack encoded meta, index, and data values into a blob
+	 * 
+	 * @param meta
+	 * @param index
+	 * @param data
+	 * @return blob
+	 */
+	private static byte[] pack(byte[] meta, byte[] index, byte[] data) {
+		byte[] blob = new byte[BLOB_HEADER + meta.length + index.length
+				+ data.length];
+		blob[0] = BLOB_VERSION;
+		writeInt(blob, 1, meta.length);
+		writeInt(blob, 5, index.length);
+		writeInt(blob, 9, data.length);
+		int offset = BLOB_HEADER;
+		System.arraycopy(meta, 0, blob, offset, meta.length);
+		offset += meta.length;
+		System.arraycopy(index, 0, blob, offset, index.length);
+		offset += index.length;
+		System.arraycopy(data, 0, blob, offset, data.length);
+		return blob;
+	}
+
+	/**
+	 * Check blob header
+	 * 
+	 * @param blob
+	 * @return length of the blob's values
+	 * @throws IOException
+	 */
+	private static long checkHeader(byte[] blob) throws IOException {
+		if (blob.length < BLOB_HEADER || blob[0] != BLOB_VERSION)
+			throw new IOException("Invalid chunk blob header");
+		return (readInt(blob, 1) & 0xffffffffL)
+				+ (readInt(blob, 5) & 0xffffffffL)
+				+ (readInt(blob, 9) & 0xffffffffL);
+	}
+
+	private static byte[] slice(byte[] blob, int offset, int length) {
+		if (length == 0)
+			return null;
+		byte[] value = new byte[length];
+		System.arraycopy(blob, offset, value, 0, length);
+		return value;
+	}
+
+	/**
+	 * Unpack a blob into the values of a hash row holding only encoded values
+	 * 
+	 * @param blob
+	 * @return values
+	 * @throws IOException
+	 */
+	private static List<byte[]> unpack(byte[] blob) throws IOException {
+		if (checkHeader(blob) != blob.length - BLOB_HEADER)
+			throw new IOException("Truncated chunk blob");
+		int metaLength = readInt(blob, 1);
+		int indexLength = readInt(blob, 5);
+		int offset = BLOB_HEADER;
+		byte[] meta = slice(blob, offset, metaLength);
+		offset += metaLength;
+		byte[] index = slice(blob, offset, indexLength);
+		offset += indexLength;
+		byte[] data = slice(blob, offset, blob.length - offset);
+		return Arrays.asList(null, null, null, data, index, meta);
+	}
+
+	/**
+	 * Get a value from its raw or encoded field
+	 * 
+	 * @param raw
+	 * @param encoded
+	 * @return decoded value or null if missing
+	 * @throws IOException
+	 */
+	private static byte[] decode(byte[] raw, byte[] encoded)
+			throws IOException {
+		if (raw != null)
+			return raw;
+		return encoded != null ? ChunkCodec.decode(encoded) : null;
+	}
+
+	/**
+	 * Get a decoded value from the values of a row
+	 * 
+	 * @param values
+	 * @param field
+	 *            0 for data, 1 for index, or 2 for meta
+	 * @return value or null if missing
+	 * @throws IOException
+	 */
+	private static byte[] decode(List<byte[]> values, int field)
+			throws IOException {
+		return decode(values.get(field), values.get(ENCODED + field));
+	}
+
+	/**
+	 * Does the row hold chunk data in either format?
+	 * 
+	 * @param values
+	 * @return true if present, false otherwise
+	 */
+	private static boolean hasData(List<byte[]> values) {
+		return values.get(0) != null || values.get(ENCODED) != null;
+	}
+
+	/**
+	 * Create chunk members from the raw and encoded data, index, and meta
+	 * values of a row
+	 * 
+	 * @param chunk
+	 * @param values
+	 * @return members or null if the row has no chunk data
+	 * @throws IOException
+	 */
+	protected PackChunk.Members decode(ChunkKey chunk, List<byte[]> values)
+			throws IOException {
+		byte[] buffer = decode(values, 0);
+		if (buffer == null)
+			return null;
+
+		PackChunk.Members members = new PackChunk.Members();
+		members.setChunkKey(chunk);
+		members.setChunkData(buffer);
+
+		buffer = decode(values, 1);
+		if (buffer != null)
+			members.setChunkIndex(buffer);
+
+		buffer = decode(values, 2);
+		if (buffer != null)
+			members.setMeta(ChunkMeta.parseFrom(buffer));
+		return members;
+	}
+
+	public void get(final Context options, final Set<ChunkKey> keys,
 			AsyncCallback<Collection<Members>> callback) {
-		List<PackChunk.Members> out = new ArrayList<PackChunk.Members>(
+		final TableOperation operation = begin("get");
+		final AsyncCallback<Collection<Members>> measured = operation
+				.wrap(callback);
+		dispatch(measured, new Runnable() {
+
+			public void run() {
+				load(options, keys, measured, operation);
+			}
+		});
+	}
+
+	private void load(Context options, Set<ChunkKey> keys,
+			AsyncCallback<Collection<Members>> callback,
+			final TableOperation operation) {
+		final List<PackChunk.Members> out = Collections
+				.synchronizedList(new ArrayList<PackChunk.Members>(keys.size()));
+		Collection<ChunkKey> missing = keys;
+		ChunkCache cache = this.cache;
+		if (cache != null) {
+			missing = new ArrayList<ChunkKey>(keys.size());
+			for (ChunkKey chunk : keys) {
+				PackChunk.Members members = cache.get(chunk);
+				if (members != null)
+					out.add(members);
+				else
+					missing.add(chunk);
+			}
+		}
+		ChunkPrefetcher prefetcher = this.prefetcher;
+		if (prefetcher != null && !missing.isEmpty())
+			missing = prefetcher.take(missing, out);
+
+		try {
+			fetch(missing, out, operation);
+		} catch (DhtException e) {
+			callback.onFailure(e);
+			return;
+		}
+		if (prefetcher != null)
+			prefetcher.prefetch(this, out);
+		accessed(out);
+		callback.onSuccess(out);
+	}
+
+	/**
+	 * Fetch chunks from every node they are stored on
+	 * 
+	 * @param keys
+	 * @param out
+	 * @param operation
+	 * @throws DhtException
+	 */
+	private void fetch(Collection<ChunkKey> keys,
+			final Collection<PackChunk.Members> out,
+			final TableOperation operation) throws DhtException {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final List<ChunkKey> group : partition(keys, ROW))
+			tasks.add(new Callable<Void>() {
+
+				public Void call() throws DhtException {
+					fetch(group, out, operation);
+					return null;
+				}
+			});
+		invokeAll(tasks);
+	}
+
+	/**
+	 * Read chunks ahead of their request for the prefetcher
+	 * 
+	 * @param keys
+	 * @return chunks found
+	 * @throws DhtException
+	 */
+	Collection<PackChunk.Members> prefetch(Collection<ChunkKey> keys)
+			throws DhtException {
+		TableOperation operation = begin("prefetch");
+		try {
+			List<PackChunk.Members> out = Collections
+					.synchronizedList(new ArrayList<PackChunk.Members>(keys
+							.size()));
+			fetch(keys, out, operation);
+			operation.succeed();
+			return out;
+		} finally {
+			operation.end();
+		}
+	}
+
+	/**
+	 * Fetch chunks that are all stored on one node, reading chunks a replica
+	 * is missing from the primary
+	 * 
+	 * @param keys
+	 * @param out
+	 * @param operation
+	 * @throws DhtException
+	 */
+	private void fetch(List<ChunkKey> keys, Collection<PackChunk.Members> out,
+			TableOperation operation) throws DhtException {
+		if (!readsReplicas()) {
+			fetch(keys, out, operation, false);
+			return;
+		}
+
+		List<PackChunk.Members> found = new ArrayList<PackChunk.Members>(
 				keys.size());
-		Jedis jedis = acquire();
+		fetch(keys, found, operation, true);
+		out.addAll(found);
+		if (found.size() == keys.size())
+			return;
+		// Replicas may not have received chunks written moments ago
+		Set<ChunkKey> missing = new LinkedHashSet<ChunkKey>(keys);
+		for (PackChunk.Members members : found)
+			missing.remove(members.getChunkKey());
+		if (!missing.isEmpty())
+			fetch(new ArrayList<ChunkKey>(missing), out, operation, false);
+	}
+
+	/**
+	 * Fetch chunks that are all stored on one node
+	 * 
+	 * @param keys
+	 * @param out
+	 * @param operation
+	 * @param replica
+	 *            whether the chunks may be read from a replica
+	 * @throws DhtException
+	 */
+	private void fetch(List<ChunkKey> keys, Collection<PackChunk.Members> out,
+			TableOperation operation, boolean replica) throws DhtException {
+		Layout layout = this.layout;
+		List<ChunkKey> moved = new ArrayList<ChunkKey>();
+		MultiplexedTransport transport = readTransport();
+		Jedis jedis = null;
+		Pipeline pipeline;
+		if (transport != null)
+			pipeline = new Pipeline(transport);
+		else {
+			byte[] first = keys.get(0).asBytes();
+			jedis = replica ? acquireReader(first) : acquire(first);
+			pipeline = new Pipeline(jedis.getClient());
+		}
+
+		DhtException error;
 		try {
-			for (ChunkKey chunk : keys) {
+			error = fetch(keys, layout, out, operation, pipeline, moved, true);
+			if (error == null && !moved.isEmpty())
+				error = fetch(moved, layout.other(), out, operation, pipeline,
+						null, true);
+		} catch (JedisConnectionException e) {
+			// Replies may be left unread on the connection
+			releaseBroken(jedis);
+			jedis = null;
+			throw e;
+		} finally {
+			if (jedis != null)
+				release(jedis);
+		}
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * Fetch chunks stored in the given layout
+	 * 
+	 * @param keys
+	 * @param layout
+	 * @param out
+	 * @param operation
+	 * @param pipeline
+	 * @param moved
+	 *            list to add chunks stored in the other layout to, or null if
+	 *            they are failures
+	 * @param tiered
+	 *            whether chunks moved to tiered storage are read, or skipped
+	 * @return first failure or null if all chunks were read
+	 */
+	private DhtException fetch(List<ChunkKey> keys, Layout layout,
+			Collection<PackChunk.Members> out, TableOperation operation,
+			Pipeline pipeline, List<ChunkKey> moved, boolean tiered) {
+		DhtException error = null;
+		ChunkKey[] batch = new ChunkKey[Math.min(getBatchSize(), keys.size())];
+		Iterator<ChunkKey> iter = keys.iterator();
+		while (iter.hasNext()) {
+			int count = 0;
+			while (count < batch.length && iter.hasNext()) {
+				ChunkKey chunk = iter.next();
 				byte[] row = chunk.asBytes();
-				byte[] buffer = jedis.hget(row, DATA);
-				if (buffer == null)
+				if (layout == Layout.BLOB) {
+					pipeline.get(row);
+					operation.command(row.length);
+				} else {
+					pipeline.hmget(row, ROW_FIELDS);
+					operation.command(row.length + FIELDS_SIZE);
+				}
+				batch[count++] = chunk;
+			}
+			// Every reply must be read, even after a failure, so the
+			// connection is left clean
+			for (int i = 0; i < count; i++) {
+				Object reply;
+				try {
+					reply = pipeline.receive();
+				} catch (JedisDataException e) {
+					if (moved != null && isWrongType(e))
+						moved.add(batch[i]);
+					else if (error == null)
+						error = new DhtException(e);
+					continue;
+				}
+				if (error != null)
 					continue;
+				try {
+					collect(batch[i], values(reply, layout, operation), out,
+							tiered);
+				} catch (IOException e) {
+					error = new DhtException(e);
+				}
+			}
+		}
+		return error;
+	}
 
-				PackChunk.Members members = new PackChunk.Members();
-				members.setChunkKey(chunk);
-				members.setChunkData(buffer);
-
-				buffer = jedis.hget(row, INDEX);
-				if (buffer != null)
-					members.setChunkIndex(buffer);
-
-				buffer = jedis.hget(row, META);
-				if (buffer != null)
-					try {
-						members.setMeta(ChunkMeta.parseFrom(buffer));
-					} catch (InvalidProtocolBufferException e) {
-						callback.onFailure(new DhtException(e));
-						return;
-					}
-				out.add(members);
-			}
-			callback.onSuccess(out);
-		} finally {
-			release(jedis);
+	/**
+	 * Get raw and encoded data, index, and meta values and the tier pointer
+	 * from a row or blob reply
+	 * 
+	 * @param reply
+	 * @param layout
+	 * @param operation
+	 * @return values or null if the chunk is missing
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<byte[]> values(Object reply, Layout layout,
+			TableOperation operation) throws IOException {
+		if (layout == Layout.BLOB) {
+			byte[] blob = (byte[]) reply;
+			operation.received(blob);
+			return blob != null ? unpack(blob) : null;
 		}
+		List<byte[]> values = (List<byte[]>) reply;
+		operation.received(values);
+		return values;
 	}
 
-	public void getMeta(Context options, Set<ChunkKey> keys,
-			AsyncCallback<Map<ChunkKey, ChunkMeta>> callback) {
-		Map<ChunkKey, ChunkMeta> out = new HashMap<ChunkKey, ChunkMeta>();
-		Jedis jedis = acquire();
+	/**
+	 * Decode row values and add the chunk to the output and cache
+	 * 
+	 * @param chunk
+	 * @param values
+	 * @param out
+	 * @param tiered
+	 *            whether a chunk moved to tiered storage is read, or skipped
+	 * @throws IOException
+	 */
+	private void collect(ChunkKey chunk, List<byte[]> values,
+			Collection<PackChunk.Members> out, boolean tiered)
+			throws IOException {
+		if (values == null)
+			return;
+		if (isTiered(values)) {
+			if (!tiered)
+				return;
+			values = readTier(values.get(TIER_VALUE));
+		}
+		PackChunk.Members members = decode(chunk, values);
+		if (members == null)
+			return;
+		out.add(members);
+		ChunkCache cache = this.cache;
+		if (cache != null)
+			cache.put(members);
+		if (members.hasMeta())
+			cacheMeta(chunk, members.getMeta());
+	}
+
+	/**
+	 * Cache parsed chunk meta
+	 * 
+	 * @param chunk
+	 * @param meta
+	 */
+	private void cacheMeta(ChunkKey chunk, ChunkMeta meta) {
+		MetaCache cache = metaCache;
+		if (cache != null)
+			synchronized (cache) {
+				cache.put(chunk, meta);
+			}
+	}
+
+	/**
+	 * Get parsed meta of chunk if cached
+	 * 
+	 * @param chunk
+	 * @return meta or null if not cached
+	 */
+	ChunkMeta getCachedMeta(ChunkKey chunk) {
+		MetaCache cache = metaCache;
+		if (cache == null)
+			return null;
+		synchronized (cache) {
+			return cache.get(chunk);
+		}
+	}
+
+	/**
+	 * Is the row a pointer to a chunk moved to tiered storage?
+	 * 
+	 * @param values
+	 *            values of a row
+	 * @return true if moved, false otherwise
+	 */
+	private static boolean isTiered(List<byte[]> values) {
+		return values.size() > TIER_VALUE && values.get(TIER_VALUE) != null;
+	}
+
+	/**
+	 * Read the blob of a chunk moved to tiered storage
+	 * 
+	 * @param pointer
+	 * @return encoded data, index, and meta values of the chunk
+	 * @throws IOException
+	 */
+	private List<byte[]> readTier(byte[] pointer) throws IOException {
+		SegmentStore store = tierStore;
+		if (store == null)
+			throw new IOException(
+					"Chunk is in tiered storage but no segment store is set");
+		return unpack(store.read(pointer));
+	}
+
+	private static byte[] recencyKey(int repo) {
+		return Constants.encode("cr:"
+				+ String.format("%08x", Integer.valueOf(repo)));
+	}
+
+	/**
+	 * Record chunk accesses when a tier store is set, writing them in the
+	 * background once enough have been recorded
+	 * 
+	 * @param chunks
+	 */
+	private void accessed(Collection<PackChunk.Members> chunks) {
+		if (tierStore == null)
+			return;
+		Long now = Long.valueOf(System.currentTimeMillis());
+		for (PackChunk.Members members : chunks)
+			accesses.put(members.getChunkKey(), now);
+		if (accesses.size() < ACCESS_BATCH
+				|| !flushingAccesses.compareAndSet(false, true))
+			return;
+
+		Runnable flush = new Runnable() {
+
+			public void run() {
+				try {
+					flushAccesses();
+				} catch (DhtException e) {
+					// Recency is advisory, a failed write only leaves the
+					// chunks looking as cold as before
+				} catch (RuntimeException e) {
+					// Recency is advisory, as above
+				} finally {
+					flushingAccesses.set(false);
+				}
+			}
+		};
+		Executor executor = getExecutor();
 		try {
-			for (ChunkKey chunk : keys) {
-				byte[] value = jedis.hget(chunk.asBytes(), META);
-				if (value != null)
-					out.put(chunk, ChunkMeta.parseFrom(value));
+			if (executor != null)
+				executor.execute(flush);
+			else {
+				Thread thread = new Thread(flush, "redis-dht-recency");
+				thread.setDaemon(true);
+				thread.start();
 			}
-			callback.onSuccess(out);
-		} catch (InvalidProtocolBufferException e) {
+		} catch (RejectedExecutionException e) {
+			flushingAccesses.set(false);
+		}
+	}
+
+	/**
+	 * Write recorded chunk accesses to the recency set of each repository
+	 * 
+	 * @throws DhtException
+	 */
+	public void flushAccesses() throws DhtException {
+		if (accesses.isEmpty())
+			return;
+		RedisWriteBuffer writes = new RedisWriteBuffer(getProvider())
+				.setMaxOperations(ACCESS_BATCH).setMetrics(getMetrics());
+		for (Map.Entry<ChunkKey, Long> access : accesses.entrySet()) {
+			ChunkKey chunk = access.getKey();
+			writes.zadd(recencyKey(chunk.getRepositoryId()), access
+					.getValue().doubleValue(), chunk.asBytes());
+			accesses.remove(chunk, access.getValue());
+		}
+		writes.flush();
+	}
+
+	public void getMeta(final Context options, final Set<ChunkKey> keys,
+			AsyncCallback<Map<ChunkKey, ChunkMeta>> callback) {
+		final TableOperation operation = begin("getMeta");
+		final AsyncCallback<Map<ChunkKey, ChunkMeta>> measured = operation
+				.wrap(callback);
+		dispatch(measured, new Runnable() {
+
+			public void run() {
+				loadMeta(options, keys, measured, operation);
+			}
+		});
+	}
+
+	private void loadMeta(Context options, Set<ChunkKey> keys,
+			AsyncCallback<Map<ChunkKey, ChunkMeta>> callback,
+			final TableOperation operation) {
+		final Map<ChunkKey, ChunkMeta> out = Collections
+				.synchronizedMap(new HashMap<ChunkKey, ChunkMeta>());
+		Collection<ChunkKey> missing = keys;
+		MetaCache cache = metaCache;
+		if (cache != null) {
+			missing = new ArrayList<ChunkKey>(keys.size());
+			synchronized (cache) {
+				for (ChunkKey chunk : keys) {
+					ChunkMeta meta = cache.get(chunk);
+					if (meta != null)
+						out.put(chunk, meta);
+					else
+						missing.add(chunk);
+				}
+			}
+		}
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final List<ChunkKey> group : partition(missing, ROW))
+			tasks.add(new Callable<Void>() {
+
+				public Void call() throws DhtException {
+					fetchMeta(group, out, operation);
+					return null;
+				}
+			});
+		try {
+			invokeAll(tasks);
+		} catch (DhtException e) {
+			callback.onFailure(e);
 			return;
+		}
+		callback.onSuccess(out);
+	}
+
+	/**
+	 * Request a chunk's data over a pipeline
+	 * 
+	 * @param pipeline
+	 * @param row
+	 * @param layout
+	 * @param operation
+	 */
+	static void requestData(Pipeline pipeline, byte[] row, Layout layout,
+			TableOperation operation) {
+		if (layout == Layout.BLOB) {
+			pipeline.get(row);
+			operation.command(row.length);
+		} else {
+			pipeline.hmget(row, DATA, ZDATA, TIER);
+			operation.command(row.length + DATA.length + ZDATA.length
+					+ TIER.length);
+		}
+	}
+
+	/**
+	 * Get decoded chunk data from the reply to a data request
+	 * 
+	 * @see #requestData(Pipeline, byte[], Layout, TableOperation)
+	 * @param reply
+	 * @param layout
+	 * @param operation
+	 * @return data or null if the chunk is missing
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	byte[] receiveData(Object reply, Layout layout, TableOperation operation)
+			throws IOException {
+		if (layout == Layout.BLOB) {
+			byte[] blob = (byte[]) reply;
+			operation.received(blob);
+			if (blob == null)
+				return null;
+			return decode(unpack(blob), 0);
+		}
+		List<byte[]> values = (List<byte[]>) reply;
+		operation.received(values);
+		if (values.get(2) != null)
+			return decode(readTier(values.get(2)), 0);
+		return decode(values.get(0), values.get(1));
+	}
+
+	/**
+	 * Fetch meta of chunks that are all stored on one node, reading meta a
+	 * replica is missing from the primary
+	 * 
+	 * @param keys
+	 * @param out
+	 * @param operation
+	 * @throws DhtException
+	 */
+	private void fetchMeta(List<ChunkKey> keys, Map<ChunkKey, ChunkMeta> out,
+			TableOperation operation) throws DhtException {
+		if (!readsReplicas()) {
+			fetchMeta(keys, out, operation, false);
+			return;
+		}
+
+		fetchMeta(keys, out, operation, true);
+		// Replicas may not have received chunks written moments ago
+		List<ChunkKey> missing = new ArrayList<ChunkKey>();
+		for (ChunkKey chunk : keys)
+			if (!out.containsKey(chunk))
+				missing.add(chunk);
+		if (!missing.isEmpty())
+			fetchMeta(missing, out, operation, false);
+	}
+
+	/**
+	 * Fetch meta of chunks that are all stored on one node
+	 * 
+	 * @param keys
+	 * @param out
+	 * @param operation
+	 * @param replica
+	 *            whether the meta may be read from a replica
+	 * @throws DhtException
+	 */
+	private void fetchMeta(List<ChunkKey> keys, Map<ChunkKey, ChunkMeta> out,
+			TableOperation operation, boolean replica) throws DhtException {
+		Layout layout = this.layout;
+		List<ChunkKey> moved = new ArrayList<ChunkKey>();
+		MultiplexedTransport transport = readTransport();
+		Jedis jedis = null;
+		Pipeline pipeline;
+		if (transport != null)
+			pipeline = new Pipeline(transport);
+		else {
+			byte[] first = keys.get(0).asBytes();
+			jedis = replica ? acquireReader(first) : acquire(first);
+			pipeline = new Pipeline(jedis.getClient());
+		}
+
+		DhtException error;
+		try {
+			error = fetchMeta(keys, layout, out, operation, pipeline, moved);
+			if (error == null && !moved.isEmpty())
+				error = fetchMeta(moved, layout.other(), out, operation,
+						pipeline, null);
+		} catch (JedisConnectionException e) {
+			// Replies may be left unread on the connection
+			releaseBroken(jedis);
+			jedis = null;
+			throw e;
 		} finally {
-			release(jedis);
+			if (jedis != null)
+				release(jedis);
 		}
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * Fetch meta of chunks stored in the given layout
+	 * <p>
+	 * Blob meta longer than the read ahead is fetched with a second pipelined
+	 * GETRANGE once the batch's headers have been read.
+	 * 
+	 * @param keys
+	 * @param layout
+	 * @param out
+	 * @param operation
+	 * @param pipeline
+	 * @param moved
+	 *            list to add chunks stored in the other layout to, or null if
+	 *            they are failures
+	 * @return first failure or null if all meta was read
+	 */
+	private DhtException fetchMeta(List<ChunkKey> keys, Layout layout,
+			Map<ChunkKey, ChunkMeta> out, TableOperation operation,
+			Pipeline pipeline, List<ChunkKey> moved) {
+		DhtException error = null;
+		ChunkKey[] batch = new ChunkKey[Math.min(getBatchSize(), keys.size())];
+		int[] remaining = new int[batch.length];
+		Iterator<ChunkKey> iter = keys.iterator();
+		while (iter.hasNext()) {
+			int count = 0;
+			while (count < batch.length && iter.hasNext()) {
+				ChunkKey chunk = iter.next();
+				byte[] row = chunk.asBytes();
+				if (layout == Layout.BLOB) {
+					pipeline.getRange(row, 0, BLOB_HEADER + META_READ_AHEAD - 1);
+					operation.command(row.length);
+				} else {
+					pipeline.hmget(row, META, ZMETA, TIER);
+					operation.command(row.length + META.length + ZMETA.length
+							+ TIER.length);
+				}
+				remaining[count] = 0;
+				batch[count++] = chunk;
+			}
+
+			// Every reply must be read, even after a failure, so the
+			// connection is left clean
+			int partial = 0;
+			for (int i = 0; i < count; i++) {
+				Object reply;
+				try {
+					reply = pipeline.receive();
+				} catch (JedisDataException e) {
+					if (moved != null && isWrongType(e))
+						moved.add(batch[i]);
+					else if (error == null)
+						error = new DhtException(e);
+					continue;
+				}
+				if (error != null)
+					continue;
+				try {
+					if (layout == Layout.BLOB) {
+						byte[] head = (byte[]) reply;
+						operation.received(head);
+						int length = blobMetaLength(head);
+						if (length <= 0)
+							continue;
+						if (BLOB_HEADER + length <= head.length)
+							collectMeta(batch[i], ChunkCodec.decode(slice(head,
+									BLOB_HEADER, length)), out);
+						else {
+							remaining[i] = length;
+							partial++;
+						}
+					} else
+						collectMeta(batch[i], hashMeta(reply, operation), out);
+				} catch (IOException e) {
+					error = new DhtException(e);
+				}
+			}
+			if (partial == 0 || error != null)
+				continue;
+
+			for (int i = 0; i < count; i++)
+				if (remaining[i] > 0) {
+					byte[] row = batch[i].asBytes();
+					pipeline.getRange(row, BLOB_HEADER, BLOB_HEADER
+							+ remaining[i] - 1);
+					operation.command(row.length);
+				}
+			for (int i = 0; i < count; i++) {
+				if (remaining[i] == 0)
+					continue;
+				byte[] meta;
+				try {
+					meta = (byte[]) pipeline.receive();
+				} catch (JedisDataException e) {
+					if (error == null)
+						error = new DhtException(e);
+					continue;
+				}
+				operation.received(meta);
+				if (error != null)
+					continue;
+				try {
+					if (meta == null || meta.length != remaining[i])
+						throw new IOException("Truncated chunk blob");
+					collectMeta(batch[i], ChunkCodec.decode(meta), out);
+				} catch (IOException e) {
+					error = new DhtException(e);
+				}
+			}
+		}
+		return error;
+	}
+
+	/**
+	 * Get length of a blob's meta from the start of the blob
+	 * 
+	 * @param head
+	 * @return length, or 0 if the chunk is missing or has no meta
+	 * @throws IOException
+	 */
+	private static int blobMetaLength(byte[] head) throws IOException {
+		if (head == null || head.length == 0)
+			return 0;
+		checkHeader(head);
+		return readInt(head, 1);
+	}
+
+	/**
+	 * Get decoded meta from a reply to a meta, encoded meta, and tier HMGET
+	 * 
+	 * @param reply
+	 * @param operation
+	 * @return meta or null if missing
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	private byte[] hashMeta(Object reply, TableOperation operation)
+			throws IOException {
+		List<byte[]> values = (List<byte[]>) reply;
+		operation.received(values);
+		if (values.get(2) != null)
+			return decode(readTier(values.get(2)), 2);
+		return decode(values.get(0), values.get(1));
+	}
+
+	/**
+	 * Parse meta and add it to the output and cache
+	 * 
+	 * @param chunk
+	 * @param value
+	 * @param out
+	 * @throws IOException
+	 */
+	private void collectMeta(ChunkKey chunk, byte[] value,
+			Map<ChunkKey, ChunkMeta> out) throws IOException {
+		if (value == null)
+			return;
+		ChunkMeta meta = ChunkMeta.parseFrom(value);
+		out.put(chunk, meta);
+		cacheMeta(chunk, meta);
 	}
 
 	public void put(Members chunk, WriteBuffer buffer) throws DhtException {
-		Jedis jedis = acquire();
+		put(chunk, (RedisWriteBuffer) buffer, layout);
+		accessed(Collections.singletonList(chunk));
+	}
+
+	/**
+	 * Write chunk in the given layout
+	 * 
+	 * @param chunk
+	 * @param writes
+	 * @param layout
+	 * @throws DhtException
+	 */
+	private void put(Members chunk, RedisWriteBuffer writes, Layout layout)
+			throws DhtException {
+		if (layout == Layout.BLOB)
+			putBlob(chunk, writes);
+		else
+			putHash(chunk, writes);
+	}
+
+	/**
+	 * Write chunk as a blob, merging partial chunks into any existing blob or
+	 * hash row
+	 * 
+	 * @param chunk
+	 * @param writes
+	 * @throws DhtException
+	 */
+	private void putBlob(Members chunk, RedisWriteBuffer writes)
+			throws DhtException {
+		final byte[] row = chunk.getChunkKey().asBytes();
+		byte[] data = chunk.hasChunkData() ? dataCodec.encode(chunk
+				.getChunkData()) : EMPTY;
+		byte[] index = chunk.hasChunkIndex() ? indexCodec.encode(chunk
+				.getChunkIndex()) : EMPTY;
+		byte[] meta = chunk.hasMeta() ? metaCodec.encode(chunk.getMeta()
+				.toByteArray()) : EMPTY;
+		if (data != EMPTY && index != EMPTY && meta != EMPTY)
+			writes.set(row, pack(meta, index, data));
+		else
+			writes.eval(MERGE_BLOB, row, meta, index, data);
+	}
+
+	/**
+	 * Write chunk values as hash fields
+	 * 
+	 * @param chunk
+	 * @param writes
+	 * @throws DhtException
+	 */
+	private void putHash(Members chunk, RedisWriteBuffer writes)
+			throws DhtException {
+		final byte[] row = chunk.getChunkKey().asBytes();
+		if (chunk.hasChunkData())
+			putField(row, DATA, ZDATA, dataCodec, chunk.getChunkData(), writes);
+
+		if (chunk.hasChunkIndex())
+			putField(row, INDEX, ZINDEX, indexCodec, chunk.getChunkIndex(),
+					writes);
+
+		if (chunk.hasMeta())
+			putField(row, META, ZMETA, metaCodec, chunk.getMeta()
+					.toByteArray(), writes);
+	}
+
+	/**
+	 * Write a value to the field for the format of its codec
+	 * <p>
+	 * Raw values are read in preference to encoded ones, so an encoded write
+	 * removes any raw copy of the value.
+	 * 
+	 * @param row
+	 * @param field
+	 * @param encodedField
+	 * @param codec
+	 * @param value
+	 * @param writes
+	 * @throws DhtException
+	 */
+	private static void putField(byte[] row, byte[] field,
+			byte[] encodedField, ChunkCodec codec, byte[] value,
+			RedisWriteBuffer writes) throws DhtException {
+		if (codec == ChunkCodec.NONE)
+			writes.hset(row, field, value);
+		else {
+			writes.hset(row, encodedField, codec.encode(value));
+			writes.hdel(row, field);
+		}
+	}
+
+	public void remove(ChunkKey key, WriteBuffer buffer) throws DhtException {
+		ChunkCache cache = this.cache;
+		if (cache != null)
+			cache.remove(key);
+		MetaCache metaCache = this.metaCache;
+		if (metaCache != null)
+			synchronized (metaCache) {
+				metaCache.remove(key);
+			}
+		RedisWriteBuffer writes = (RedisWriteBuffer) buffer;
+		writes.del(key.asBytes());
+		if (tierStore != null) {
+			accesses.remove(key);
+			writes.zrem(recencyKey(key.getRepositoryId()), key.asBytes());
+		}
+	}
+
+	/**
+	 * Move a repository's chunks that have not been read or written for the
+	 * given time to the tier store
+	 * <p>
+	 * Each chunk is appended to the store as a blob and, once the store has
+	 * been synced, replaced in Redis by a hash holding only a pointer to it,
+	 * unless it has been written to since it was read. Moved chunks are read
+	 * from the store by every read path. Only chunks in the repository's
+	 * recency set are considered, so chunks written before a store was set
+	 * must first be added with {@link #track(RepositoryKey, Collection)}.
+	 * 
+	 * @param repo
+	 * @param idleMillis
+	 * @return number of chunks moved
+	 * @throws DhtException
+	 */
+	public int demote(RepositoryKey repo, long idleMillis)
+			throws DhtException {
+		SegmentStore store = tierStore;
+		if (store == null)
+			throw new DhtException("No tier store is set");
+		TableOperation operation = begin("demote");
 		try {
-			final byte[] row = chunk.getChunkKey().asBytes();
+			flushAccesses();
+			byte[] recency = recencyKey(repo.asInt());
+			double cutoff = System.currentTimeMillis() - idleMillis;
+			int demoted = 0;
+			while (true) {
+				Set<byte[]> members;
+				Jedis jedis = acquire(recency);
+				try {
+					members = jedis.zrangeByScore(recency, 0, cutoff, 0,
+							getBatchSize());
+				} finally {
+					release(jedis);
+				}
+				operation.command(recency.length);
+				if (members.isEmpty())
+					break;
+				List<ChunkKey> chunks = new ArrayList<ChunkKey>(members.size());
+				for (byte[] member : members) {
+					operation.received(member);
+					chunks.add(ChunkKey.fromBytes(member));
+				}
+				demoted += demote(chunks, recency, store, operation);
+			}
+			operation.succeed();
+			return demoted;
+		} catch (IOException e) {
+			throw new DhtException(e);
+		} catch (JedisException e) {
+			throw new DhtException(e);
+		} finally {
+			operation.end();
+		}
+	}
 
-			if (chunk.hasChunkData())
-				jedis.hset(row, DATA, chunk.getChunkData());
+	/**
+	 * Move chunks to the tier store and update their recency
+	 * <p>
+	 * Moved chunks are scored out of every idle range, chunks written to
+	 * meanwhile are scored as just accessed, and missing chunks leave the set.
+	 * 
+	 * @param chunks
+	 * @param recency
+	 * @param store
+	 * @param operation
+	 * @return number of chunks moved
+	 * @throws IOException
+	 */
+	private int demote(List<ChunkKey> chunks, byte[] recency,
+			SegmentStore store, TableOperation operation) throws IOException {
+		RedisWriteBuffer writes = new RedisWriteBuffer(getProvider())
+				.setMetrics(getMetrics());
+		double now = System.currentTimeMillis();
+		Set<ChunkKey> found = new HashSet<ChunkKey>();
+		int demoted = 0;
+		for (List<ChunkKey> group : partition(chunks, ROW)) {
+			Map<ChunkKey, List<byte[]>> rows = readRows(group, operation);
+			Map<ChunkKey, byte[]> pointers = new HashMap<ChunkKey, byte[]>();
+			for (Map.Entry<ChunkKey, List<byte[]>> row : rows.entrySet()) {
+				List<byte[]> values = row.getValue();
+				if (isTiered(values))
+					found.add(row.getKey());
+				else
+					pointers.put(row.getKey(), store.append(toBlob(values)));
+			}
+			if (pointers.isEmpty())
+				continue;
+			store.sync();
 
-			if (chunk.hasChunkIndex())
-				jedis.hset(row, INDEX, chunk.getChunkIndex());
+			Jedis jedis = acquire(group.get(0).asBytes());
+			try {
+				for (Map.Entry<ChunkKey, byte[]> pointer : pointers.entrySet()) {
+					ChunkKey chunk = pointer.getKey();
+					byte[] size = Constants.encode(Long.toString(storedSize(rows
+							.get(chunk))));
+					Object result = MOVE_TO_TIER.eval(jedis, 1, chunk.asBytes(),
+							pointer.getValue(), size);
+					operation.command(chunk.asBytes().length
+							+ pointer.getValue().length + size.length);
+					if (MOVED.equals(result)) {
+						demoted++;
+						found.add(chunk);
+						ChunkCache cache = this.cache;
+						if (cache != null)
+							cache.remove(chunk);
+					} else if (ALREADY_MOVED.equals(result))
+						found.add(chunk);
+					else if (CHANGED.equals(result))
+						writes.zadd(recency, now, chunk.asBytes());
+				}
+			} finally {
+				release(jedis);
+			}
+		}
+		for (ChunkKey chunk : chunks)
+			if (found.contains(chunk))
+				writes.zadd(recency, TIERED_SCORE, chunk.asBytes());
+			else
+				writes.zrem(recency, chunk.asBytes());
+		writes.flush();
+		return demoted;
+	}
 
-			if (chunk.hasMeta())
-				jedis.hset(row, META, chunk.getMeta().toByteArray());
+	/**
+	 * Get total length of the raw and encoded values of a row
+	 * 
+	 * @param values
+	 * @return size in bytes
+	 */
+	private static long storedSize(List<byte[]> values) {
+		long size = 0;
+		for (int i = 0; i < TIER_VALUE; i++)
+			size += RedisClient.size(values.get(i));
+		return size;
+	}
 
+	/**
+	 * Add chunks to their repository's recency set, scored as accessed now,
+	 * unless they are already in it
+	 * <p>
+	 * Chunks written before a tier store was set are only found by
+	 * {@link #demote(RepositoryKey, long)} once tracked, and are moved once
+	 * they have gone unaccessed for the idle time after being tracked.
+	 * 
+	 * @param repo
+	 * @param chunks
+	 * @return number of chunks added
+	 * @throws DhtException
+	 */
+	public int track(RepositoryKey repo, Collection<ChunkKey> chunks)
+			throws DhtException {
+		byte[] recency = recencyKey(repo.asInt());
+		byte[] now = Constants.encode(Long.toString(System
+				.currentTimeMillis()));
+		TableOperation operation = begin("track");
+		int added = 0;
+		Jedis jedis = acquire(recency);
+		try {
+			Iterator<ChunkKey> iter = chunks.iterator();
+			while (iter.hasNext()) {
+				List<byte[]> args = new ArrayList<byte[]>();
+				args.add(now);
+				while (args.size() <= getBatchSize() && iter.hasNext())
+					args.add(iter.next().asBytes());
+				byte[][] params = new byte[args.size() + 1][];
+				params[0] = recency;
+				for (int i = 0; i < args.size(); i++)
+					params[i + 1] = args.get(i);
+				Object result = SEED_RECENCY.eval(jedis, 1, params);
+				operation.command(RedisClient.size(params));
+				if (result instanceof Long)
+					added += ((Long) result).intValue();
+			}
+			operation.succeed();
+			return added;
+		} catch (JedisException e) {
+			throw new DhtException(e);
 		} finally {
 			release(jedis);
+			operation.end();
 		}
 	}
 
-	public void remove(ChunkKey key, WriteBuffer buffer) throws DhtException {
-		Jedis jedis = acquire();
+	/**
+	 * Read the encoded values of chunks that are all stored on one node
+	 * 
+	 * @param keys
+	 * @param operation
+	 * @return values of each chunk found
+	 * @throws IOException
+	 */
+	private Map<ChunkKey, List<byte[]>> readRows(List<ChunkKey> keys,
+			TableOperation operation) throws IOException {
+		Map<ChunkKey, List<byte[]>> rows = new HashMap<ChunkKey, List<byte[]>>();
+		Layout layout = this.layout;
+		List<ChunkKey> moved = new ArrayList<ChunkKey>();
+		Jedis jedis = acquire(keys.get(0).asBytes());
 		try {
-			jedis.del(key.asBytes());
+			Pipeline pipeline = new Pipeline(jedis.getClient());
+			readRows(keys, layout, rows, pipeline, moved, operation);
+			if (!moved.isEmpty())
+				readRows(moved, layout.other(), rows, pipeline, null,
+						operation);
+		} catch (JedisConnectionException e) {
+			// Replies may be left unread on the connection
+			releaseBroken(jedis);
+			jedis = null;
+			throw e;
 		} finally {
-			release(jedis);
+			if (jedis != null)
+				release(jedis);
+		}
+		return rows;
+	}
+
+	private void readRows(List<ChunkKey> keys, Layout layout,
+			Map<ChunkKey, List<byte[]>> rows, Pipeline pipeline,
+			List<ChunkKey> moved, TableOperation operation) throws IOException {
+		for (ChunkKey chunk : keys) {
+			byte[] row = chunk.asBytes();
+			if (layout == Layout.BLOB) {
+				pipeline.get(row);
+				operation.command(row.length);
+			} else {
+				pipeline.hmget(row, ROW_FIELDS);
+				operation.command(row.length + FIELDS_SIZE);
+			}
+		}
+		// Every reply must be read, even after a failure, so the connection
+		// is left clean
+		JedisDataException error = null;
+		for (ChunkKey chunk : keys) {
+			Object reply;
+			try {
+				reply = pipeline.receive();
+			} catch (JedisDataException e) {
+				if (moved != null && isWrongType(e))
+					moved.add(chunk);
+				else if (error == null)
+					error = e;
+				continue;
+			}
+			List<byte[]> values = values(reply, layout, operation);
+			if (values != null && (hasData(values) || isTiered(values)))
+				rows.put(chunk, values);
+		}
+		if (error != null)
+			throw new DhtException(error);
+	}
+
+	/**
+	 * Pack the values of a row into a blob
+	 * 
+	 * @param values
+	 * @return blob
+	 */
+	private static byte[] toBlob(List<byte[]> values) {
+		byte[][] encodedValues = new byte[3][];
+		for (int i = 0; i < 3; i++) {
+			byte[] raw = values.get(i);
+			byte[] encoded = values.get(ENCODED + i);
+			if (raw != null)
+				encodedValues[i] = ChunkCodec.NONE.encode(raw);
+			else
+				encodedValues[i] = encoded != null ? encoded : EMPTY;
+		}
+		return pack(encodedValues[2], encodedValues[1], encodedValues[0]);
+	}
+
+	/**
+	 * Rewrite chunks stored in the other layout into the given layout
+	 * <p>
+	 * Chunks keep their key, so a chunk is only ever stored in one layout.
+	 * Switch the table to the target layout with {@link #setLayout(Layout)}
+	 * before migrating so chunks written meanwhile are not left behind.
+	 * 
+	 * @param chunks
+	 * @param target
+	 * @param buffer
+	 *            buffer that rewritten chunks are written to, flushed by the
+	 *            caller
+	 * @return number of chunks rewritten
+	 * @throws DhtException
+	 */
+	public int migrate(Collection<ChunkKey> chunks, Layout target,
+			WriteBuffer buffer) throws DhtException {
+		RedisWriteBuffer writes = (RedisWriteBuffer) buffer;
+		TableOperation operation = begin("migrate");
+		try {
+			int migrated = 0;
+			for (List<ChunkKey> group : partition(chunks, ROW)) {
+				List<PackChunk.Members> found = new ArrayList<PackChunk.Members>(
+						group.size());
+				DhtException error;
+				Jedis jedis = acquire(group.get(0).asBytes());
+				try {
+					error = fetch(group, target.other(), found, operation,
+							new Pipeline(jedis.getClient()),
+							new ArrayList<ChunkKey>(), false);
+				} catch (JedisConnectionException e) {
+					// Replies may be left unread on the connection
+					releaseBroken(jedis);
+					jedis = null;
+					throw e;
+				} finally {
+					if (jedis != null)
+						release(jedis);
+				}
+				if (error != null)
+					throw error;
+				for (PackChunk.Members members : found) {
+					// Hash fields cannot be set on a blob, while a blob write
+					// replaces or converts a hash row itself
+					if (target == Layout.HASH)
+						writes.del(members.getChunkKey().asBytes());
+					put(members, writes, target);
+				}
+				migrated += found.size();
+			}
+			operation.succeed();
+			return migrated;
+		} finally {
+			operation.end();
 		}
 	}
 }
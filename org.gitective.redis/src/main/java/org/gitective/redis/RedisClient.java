@@ -21,7 +21,19 @@
  */
 package org.gitective.redis;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.DhtException;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
@@ -31,6 +43,22 @@ import redis.clients.jedis.JedisPool;
  */
 public class RedisClient {
 
+	/**
+	 * Function providing the key a value is routed by
+	 * 
+	 * @param <V>
+	 */
+	public interface KeyFunction<V> {
+
+		/**
+		 * Get key of value
+		 * 
+		 * @param value
+		 * @return key
+		 */
+		byte[] key(V value);
+	}
+
 	/**
 	 * Are the two given byte arrays equal?
 	 * 
@@ -42,8 +70,41 @@ public class RedisClient {
 		return (old == null && current == null) || Arrays.equals(old, current);
 	}
 
+	/**
+	 * Get total length of the given values
+	 * 
+	 * @param values
+	 *            may contain nulls
+	 * @return size in bytes
+	 */
+	public static long size(byte[]... values) {
+		long size = 0;
+		for (byte[] value : values)
+			if (value != null)
+				size += value.length;
+		return size;
+	}
+
+	/**
+	 * Default number of commands written before replies are read when
+	 * pipelining
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 64;
+
 	private final ConnectionProvider provider;
 
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	private Executor executor;
+
+	private long maxReplicaLag = -1;
+
+	private final String name;
+
+	private MetricsSink metrics = JmxMetricsSink.getDefault();
+
+	private MultiplexedTransport transport;
+
 	/**
 	 * Create redis client using default connection provider
 	 */
@@ -67,6 +128,181 @@ public class RedisClient {
 	 */
 	public RedisClient(ConnectionProvider provider) {
 		this.provider = provider;
+		String type = getClass().getSimpleName();
+		name = type.startsWith("Redis") ? type.substring(5) : type;
+	}
+
+	/**
+	 * Get name operations of this client are recorded under
+	 * 
+	 * @return name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Set sink that operations of this client are recorded to
+	 * 
+	 * @param metrics
+	 *            sink or null to not record operations
+	 * @return this client
+	 */
+	public RedisClient setMetrics(MetricsSink metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	/**
+	 * Get sink that operations of this client are recorded to
+	 * 
+	 * @return sink or null if operations are not recorded
+	 */
+	public MetricsSink getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Begin measuring operation
+	 * 
+	 * @param operation
+	 * @return operation that must be ended by the caller
+	 */
+	protected TableOperation begin(String operation) {
+		return new TableOperation(metrics, name, operation);
+	}
+
+	private void waited(long start) {
+		MetricsSink sink = metrics;
+		if (sink != null)
+			sink.connectionWait(name, System.nanoTime() - start);
+	}
+
+	/**
+	 * Set number of commands written before replies are read when pipelining
+	 * 
+	 * @param batchSize
+	 * @return this client
+	 */
+	public RedisClient setBatchSize(int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Batch size must be positive");
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Get number of commands written before replies are read when pipelining
+	 * 
+	 * @return batch size
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Set executor that asynchronous operations are dispatched to
+	 * <p>
+	 * Operations complete on the calling thread when no executor is set.
+	 * 
+	 * @param executor
+	 * @return this client
+	 */
+	public RedisClient setExecutor(Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * Get executor that asynchronous operations are dispatched to
+	 * 
+	 * @return executor or null if operations run on the calling thread
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Dispatch task to this client's executor
+	 * <p>
+	 * Failures thrown by the task and rejected executions are reported to the
+	 * callback.
+	 * 
+	 * @param callback
+	 * @param task
+	 * @return this client
+	 */
+	protected <T> RedisClient dispatch(final AsyncCallback<T> callback,
+			final Runnable task) {
+		Runnable guarded = new Runnable() {
+
+			public void run() {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					callback.onFailure(new DhtException(e));
+				}
+			}
+		};
+		if (executor == null)
+			guarded.run();
+		else
+			try {
+				executor.execute(guarded);
+			} catch (RejectedExecutionException e) {
+				callback.onFailure(new DhtException(e));
+			}
+		return this;
+	}
+
+	/**
+	 * Set transport that reads of this client are multiplexed over
+	 * <p>
+	 * The transport must be connected to the same server as this client's
+	 * provider, or its primary when the provider has replicas. It is only
+	 * used for reads sent to that server, so not when the provider is sharded
+	 * or this client reads from replicas.
+	 * 
+	 * @param transport
+	 *            transport or null to read over provider connections
+	 * @return this client
+	 */
+	public RedisClient setTransport(MultiplexedTransport transport) {
+		this.transport = transport;
+		return this;
+	}
+
+	/**
+	 * Get transport that reads of this client are multiplexed over
+	 * 
+	 * @return transport or null if reads use provider connections
+	 */
+	public MultiplexedTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Get transport to use for reads
+	 * 
+	 * @return transport or null if reads must use provider connections
+	 */
+	protected MultiplexedTransport readTransport() {
+		MultiplexedTransport current = transport;
+		// Replica reads and keys owned by other nodes are routed by the
+		// provider
+		if (current == null || maxReplicaLag >= 0
+				|| provider instanceof ShardedConnectionProvider)
+			return null;
+		return current;
+	}
+
+	/**
+	 * Get connection provider
+	 * 
+	 * @return provider
+	 */
+	public ConnectionProvider getProvider() {
+		return provider;
 	}
 
 	/**
@@ -75,7 +311,118 @@ public class RedisClient {
 	 * @return connection
 	 */
 	protected Jedis acquire() {
-		return provider.acquire();
+		long start = System.nanoTime();
+		Jedis connection = provider.acquire();
+		waited(start);
+		return connection;
+	}
+
+	/**
+	 * Acquire connection to the node that owns key
+	 * 
+	 * @param key
+	 * @return connection
+	 */
+	protected Jedis acquire(byte[] key) {
+		long start = System.nanoTime();
+		Jedis connection = provider.acquire(key);
+		waited(start);
+		return connection;
+	}
+
+	/**
+	 * Set how far behind the primary a replica may be for this client's reads
+	 * to be sent to it
+	 * <p>
+	 * Only applies when the provider is, or shards over, a
+	 * {@link ReplicaConnectionProvider}.
+	 * 
+	 * @see ConnectionProvider#acquireReader(byte[], long)
+	 * 
+	 * @param seconds
+	 *            staleness bound, {@link ReplicaConnectionProvider#ANY_LAG} for
+	 *            any replica, or a negative value to read from the primary
+	 * @return this client
+	 */
+	public RedisClient setMaxReplicaLag(long seconds) {
+		maxReplicaLag = seconds;
+		return this;
+	}
+
+	/**
+	 * Acquire connection for reading key, from a replica if this client allows
+	 * replica reads
+	 * 
+	 * @param key
+	 * @return connection
+	 */
+	protected Jedis acquireReader(byte[] key) {
+		long start = System.nanoTime();
+		Jedis connection = provider.acquireReader(key, maxReplicaLag);
+		waited(start);
+		return connection;
+	}
+
+	/**
+	 * Are reads of this client sent to replicas, which may not have received
+	 * the latest writes?
+	 * 
+	 * @return true if reads may go to replicas, false if they go to the
+	 *         primary
+	 */
+	protected boolean readsReplicas() {
+		return maxReplicaLag >= 0;
+	}
+
+	/**
+	 * Split values into groups that are each owned by a single node
+	 * 
+	 * @param values
+	 * @param keys
+	 * @return non-empty groups of values
+	 */
+	protected <V> Collection<List<V>> partition(Collection<V> values,
+			KeyFunction<V> keys) {
+		if (values.isEmpty())
+			return Collections.emptyList();
+		if (values.size() == 1)
+			return Collections.singletonList((List<V>) new ArrayList<V>(
+					values));
+
+		Map<ConnectionProvider, List<V>> groups = new IdentityHashMap<ConnectionProvider, List<V>>();
+		for (V value : values) {
+			ConnectionProvider node = provider.route(keys.key(value));
+			List<V> group = groups.get(node);
+			if (group == null) {
+				group = new ArrayList<V>();
+				groups.put(node, group);
+			}
+			group.add(value);
+		}
+		return groups.values();
+	}
+
+	/**
+	 * Run per-node tasks, in parallel when this client is sharded
+	 * 
+	 * @param tasks
+	 * @throws DhtException
+	 */
+	protected void invokeAll(List<Callable<Void>> tasks) throws DhtException {
+		if (tasks.size() > 1 && provider instanceof ShardedConnectionProvider) {
+			((ShardedConnectionProvider) provider).invokeAll(tasks);
+			return;
+		}
+		try {
+			for (Callable<Void> task : tasks)
+				task.call();
+		} catch (DhtException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new DhtException(e);
+		}
 	}
 
 	/**
@@ -89,4 +436,16 @@ public class RedisClient {
 		return this;
 	}
 
+	/**
+	 * Release connection left unusable by a failure, such as a pipelined read
+	 * that failed with replies still unread
+	 * 
+	 * @param connection
+	 * @return this client
+	 */
+	protected RedisClient releaseBroken(Jedis connection) {
+		provider.releaseBroken(connection);
+		return this;
+	}
+
 }
@@ -22,9 +22,15 @@
 package org.gitective.redis;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Executor;
 
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.storage.dht.DhtException;
 import org.eclipse.jgit.storage.dht.DhtRepository;
 import org.eclipse.jgit.storage.dht.DhtRepositoryBuilder;
+import org.eclipse.jgit.storage.dht.RepositoryKey;
 import org.eclipse.jgit.storage.dht.spi.ChunkTable;
 import org.eclipse.jgit.storage.dht.spi.Database;
 import org.eclipse.jgit.storage.dht.spi.ObjectIndexTable;
@@ -55,12 +61,41 @@ public class RedisDatabase implements Database {
 
 	private final RedisChunkTable chunk;
 
+	private int writeBufferBytes = RedisWriteBuffer.DEFAULT_MAX_BYTES;
+
+	private int writeBufferOperations = RedisWriteBuffer.DEFAULT_MAX_OPERATIONS;
+
+	private boolean transactionalWrites;
+
+	private MetricsSink metrics = JmxMetricsSink.getDefault();
+
+	private volatile BulkLoad bulk;
+
 	/**
-	 * Create a redis-backed database
+	 * Create a redis-backed database connected to localhost
 	 */
 	public RedisDatabase() {
-		provider = new PoolConnectionProvider(new JedisPool("localhost",
-				Protocol.DEFAULT_PORT));
+		this("localhost", Protocol.DEFAULT_PORT);
+	}
+
+	/**
+	 * Create a redis-backed database connected to given host and port
+	 * 
+	 * @param host
+	 * @param port
+	 */
+	public RedisDatabase(String host, int port) {
+		this(new PoolConnectionProvider(new JedisPool(host, port)));
+	}
+
+	/**
+	 * Create a redis-backed database using given connection provider
+	 * 
+	 * @see ShardedConnectionProvider
+	 * @param provider
+	 */
+	public RedisDatabase(ConnectionProvider provider) {
+		this.provider = provider;
 		repositoryIndex = new RedisRepositoryIndexTable(provider);
 		repository = new RedisRepositoryTable(provider);
 		ref = new RedisRefTable(provider);
@@ -102,25 +137,341 @@ public class RedisDatabase implements Database {
 	}
 
 	public WriteBuffer newWriteBuffer() {
-		return new RedisWriteBuffer();
+		BulkLoad load = bulk;
+		int operations = writeBufferOperations;
+		if (load != null)
+			operations = Math.max(operations, BulkLoad.MAX_OPERATIONS);
+		return new RedisWriteBuffer(provider).setMaxBytes(writeBufferBytes)
+				.setMaxOperations(operations)
+				.setTransactional(transactionalWrites).setMetrics(metrics)
+				.setBulkLoad(load);
+	}
+
+	/**
+	 * Begin bulk loading into this database
+	 * <p>
+	 * Until {@link #endBulkLoad()} is called, write buffers created by this
+	 * database flush in the background over the given number of connections
+	 * and buffer more operations per flush, no node takes RDB snapshots, and
+	 * nodes with the append-only file enabled stop syncing it to disk. The
+	 * connection provider should allow at least that many connections per
+	 * node.
+	 * 
+	 * @param connections
+	 *            number of flushes running at once
+	 * @param monitor
+	 *            monitor updated with the kilobytes written, or null
+	 * @return load, for reporting throughput
+	 */
+	public synchronized BulkLoad beginBulkLoad(int connections,
+			ProgressMonitor monitor) {
+		if (bulk != null)
+			throw new IllegalStateException("Bulk load already running");
+		bulk = new BulkLoad(nodes(), connections, monitor).begin();
+		return bulk;
+	}
+
+	/**
+	 * End bulk load, restoring every node's snapshot and append-only file
+	 * configuration, stopping the load's flush threads, and starting a
+	 * background save of every node
+	 * <p>
+	 * Write buffers used by the load must have been flushed.
+	 * 
+	 * @return this database
+	 */
+	public synchronized RedisDatabase endBulkLoad() {
+		BulkLoad load = bulk;
+		if (load == null)
+			return this;
+		bulk = null;
+		load.end();
+		return save(false);
+	}
+
+	/**
+	 * Set thresholds at which new write buffers flush
+	 * 
+	 * @param bytes
+	 * @param operations
+	 * @return this database
+	 */
+	public RedisDatabase setWriteBufferSize(int bytes, int operations) {
+		writeBufferBytes = bytes;
+		writeBufferOperations = operations;
+		return this;
+	}
+
+	/**
+	 * Set whether new write buffers flush inside a MULTI/EXEC transaction
+	 * 
+	 * @param transactional
+	 * @return this database
+	 */
+	public RedisDatabase setTransactionalWrites(boolean transactional) {
+		transactionalWrites = transactional;
+		return this;
+	}
+
+	/**
+	 * Set how far behind the primary a replica may be for ref reads to be sent
+	 * to it
+	 * 
+	 * @param seconds
+	 *            staleness bound in seconds, negative to only read refs from
+	 *            the primary
+	 * @return this database
+	 */
+	public RedisDatabase setRefReplicaLag(long seconds) {
+		ref.setMaxReplicaLag(seconds);
+		return this;
+	}
+
+	/**
+	 * Set how far behind the primary a replica may be for chunk reads to be
+	 * sent to it
+	 * <p>
+	 * Chunks never change once written, so
+	 * {@link ReplicaConnectionProvider#ANY_LAG} is safe here. Chunks a replica
+	 * does not have yet are read again from the primary.
+	 * 
+	 * @param seconds
+	 *            staleness bound in seconds, negative to only read chunks
+	 *            from the primary, which is the default
+	 * @return this database
+	 */
+	public RedisDatabase setChunkReplicaLag(long seconds) {
+		chunk.setMaxReplicaLag(seconds);
+		return this;
+	}
+
+	/**
+	 * Set how far behind the primary a replica may be for object index reads
+	 * to be sent to it
+	 * <p>
+	 * Entries a replica does not have yet are read again from the primary,
+	 * except by lookups that accept missing entries.
+	 * 
+	 * @param seconds
+	 *            staleness bound in seconds, negative to only read the index
+	 *            from the primary, which is the default
+	 * @return this database
+	 */
+	public RedisDatabase setObjectIndexReplicaLag(long seconds) {
+		objectIndex.setMaxReplicaLag(seconds);
+		return this;
+	}
+
+	/**
+	 * Set executor that chunk and object index lookups are dispatched to
+	 * 
+	 * @see BoundedExecutor#create(int, boolean)
+	 * @param executor
+	 *            executor or null to run lookups on the calling thread
+	 * @return this database
+	 */
+	public RedisDatabase setExecutor(Executor executor) {
+		chunk.setExecutor(executor);
+		objectIndex.setExecutor(executor);
+		return this;
+	}
+
+	/**
+	 * Set transport that chunk and object index reads are multiplexed over
+	 * 
+	 * @param transport
+	 *            transport connected to this database's server, or null to
+	 *            read over provider connections
+	 * @return this database
+	 */
+	public RedisDatabase setTransport(MultiplexedTransport transport) {
+		chunk.setTransport(transport);
+		objectIndex.setTransport(transport);
+		return this;
+	}
+
+	/**
+	 * Set in-process cache that chunks are served from before Redis
+	 * 
+	 * @param cache
+	 *            cache or null to always read chunks from Redis
+	 * @return this database
+	 */
+	public RedisDatabase setChunkCache(ChunkCache cache) {
+		chunk.setCache(cache);
+		return this;
+	}
+
+	/**
+	 * Set number of parsed chunk meta kept in memory
+	 * 
+	 * @see RedisChunkTable#setMetaCacheSize(int)
+	 * @param entries
+	 * @return this database
+	 */
+	public RedisDatabase setChunkMetaCacheSize(int entries) {
+		chunk.setMetaCacheSize(entries);
+		return this;
+	}
+
+	/**
+	 * Set codecs that chunk data, index, and meta values are written with
+	 * 
+	 * @see RedisChunkTable#setCodecs(ChunkCodec, ChunkCodec, ChunkCodec)
+	 * @param data
+	 * @param index
+	 * @param meta
+	 * @return this database
+	 */
+	public RedisDatabase setChunkCodecs(ChunkCodec data, ChunkCodec index,
+			ChunkCodec meta) {
+		chunk.setCodecs(data, index, meta);
+		return this;
+	}
+
+	/**
+	 * Set encoding that object index entries are written and read in
+	 * 
+	 * @see RedisObjectIndexTable#setEncoding(RedisObjectIndexTable.Encoding)
+	 * @see ObjectIndexMigration
+	 * @param encoding
+	 * @return this database
+	 */
+	public RedisDatabase setObjectIndexEncoding(
+			RedisObjectIndexTable.Encoding encoding) {
+		objectIndex.setEncoding(encoding);
+		return this;
+	}
+
+	/**
+	 * Set whether object index adds keep each repository's object filter up to
+	 * date and lookups that allow missing objects consult it
+	 * 
+	 * @see RedisObjectIndexTable#setFilter(boolean)
+	 * @param filtered
+	 * @return this database
+	 */
+	public RedisDatabase setObjectFilter(boolean filtered) {
+		objectIndex.setFilter(filtered);
+		return this;
+	}
+
+	/**
+	 * Rebuild a repository's object filter from its object index
+	 * 
+	 * @see RedisObjectIndexTable#rebuildFilter(RepositoryKey)
+	 * @param repo
+	 * @return rebuilt filter
+	 * @throws DhtException
+	 */
+	public ObjectFilter rebuildObjectFilter(RepositoryKey repo)
+			throws DhtException {
+		return objectIndex.rebuildFilter(repo);
 	}
 
 	/**
-	 * Save database to disk
+	 * Set layout that chunks are written in
+	 * 
+	 * @see RedisChunkTable#setLayout(RedisChunkTable.Layout)
+	 * @param layout
+	 * @return this database
+	 */
+	public RedisDatabase setChunkLayout(RedisChunkTable.Layout layout) {
+		chunk.setLayout(layout);
+		return this;
+	}
+
+	/**
+	 * Rewrite a repository's chunks into the chunk layout this database writes
+	 * <p>
+	 * Chunks remain readable while they are migrated.
+	 * 
+	 * @param repo
+	 * @return number of chunks rewritten
+	 * @throws DhtException
+	 */
+	public int migrateChunks(RepositoryKey repo) throws DhtException {
+		WriteBuffer buffer = newWriteBuffer();
+		int migrated = chunk.migrate(repository.getChunks(repo),
+				chunk.getLayout(), buffer);
+		buffer.flush();
+		return migrated;
+	}
+
+	/**
+	 * Set local segment store that cold chunks are moved to
+	 * 
+	 * @see RedisChunkTable#setTierStore(SegmentStore)
+	 * @param store
+	 *            store or null to keep every chunk in Redis
+	 * @return this database
+	 */
+	public RedisDatabase setChunkTierStore(SegmentStore store) {
+		chunk.setTierStore(store);
+		return this;
+	}
+
+	/**
+	 * Move a repository's chunks that have been idle for the given time to the
+	 * chunk tier store
+	 * <p>
+	 * Chunks the repository lists that are not yet tracked, such as those
+	 * written before a store was set, are first tracked as accessed now.
+	 * 
+	 * @see RedisChunkTable#track(RepositoryKey, java.util.Collection)
+	 * @see RedisChunkTable#demote(RepositoryKey, long)
+	 * @param repo
+	 * @param idleMillis
+	 * @return number of chunks moved
+	 * @throws DhtException
+	 */
+	public int demoteChunks(RepositoryKey repo, long idleMillis)
+			throws DhtException {
+		chunk.track(repo, repository.getChunks(repo));
+		return chunk.demote(repo, idleMillis);
+	}
+
+	/**
+	 * Set sink that table operations and write buffer flushes are recorded to
+	 * 
+	 * @param metrics
+	 *            sink or null to not record operations
+	 * @return this database
+	 */
+	public RedisDatabase setMetrics(MetricsSink metrics) {
+		this.metrics = metrics;
+		repositoryIndex.setMetrics(metrics);
+		repository.setMetrics(metrics);
+		ref.setMetrics(metrics);
+		objectIndex.setMetrics(metrics);
+		chunk.setMetrics(metrics);
+		return this;
+	}
+
+	/**
+	 * Save database to disk, on every node when sharded
 	 * 
 	 * @param synchronously
 	 * @return this database
 	 */
 	public RedisDatabase save(boolean synchronously) {
-		Jedis connection = provider.acquire();
-		try {
-			if (synchronously)
-				connection.save();
-			else
-				connection.bgsave();
-		} finally {
-			provider.release(connection);
+		for (ConnectionProvider node : nodes()) {
+			Jedis connection = node.acquire();
+			try {
+				if (synchronously)
+					connection.save();
+				else
+					connection.bgsave();
+			} finally {
+				node.release(connection);
+			}
 		}
 		return this;
 	}
+
+	private Collection<ConnectionProvider> nodes() {
+		if (provider instanceof ShardedConnectionProvider)
+			return ((ShardedConnectionProvider) provider).getNodes();
+		return Collections.singletonList(provider);
+	}
 }
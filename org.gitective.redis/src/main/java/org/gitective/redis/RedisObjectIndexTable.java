@@ -21,27 +21,40 @@
  */
 package org.gitective.redis;
 
-import com.google.protobuf.InvalidProtocolBufferException;
-
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.eclipse.jgit.generated.storage.dht.proto.GitStore;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.storage.dht.AsyncCallback;
 import org.eclipse.jgit.storage.dht.ChunkKey;
 import org.eclipse.jgit.storage.dht.DhtException;
 import org.eclipse.jgit.storage.dht.ObjectIndexKey;
 import org.eclipse.jgit.storage.dht.ObjectInfo;
+import org.eclipse.jgit.storage.dht.RepositoryKey;
 import org.eclipse.jgit.storage.dht.spi.Context;
 import org.eclipse.jgit.storage.dht.spi.ObjectIndexTable;
 import org.eclipse.jgit.storage.dht.spi.WriteBuffer;
+import org.eclipse.jgit.util.RawParseUtils;
 
+import redis.clients.jedis.Client;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
 
 /**
  * Redis-backed object index table
@@ -49,10 +62,227 @@ import redis.clients.jedis.JedisPool;
 public class RedisObjectIndexTable extends RedisClient implements
 		ObjectIndexTable {
 
+	/**
+	 * Way object index entries are stored in Redis
+	 */
+	public enum Encoding {
+
+		/**
+		 * Hash per object with a field per chunk holding the object's info
+		 */
+		ROW,
+
+		/**
+		 * Hashes of many objects grouped by repository and object id prefix,
+		 * small enough for Redis to store them in its compact encoding, with
+		 * a field per object holding all of its chunk entries
+		 */
+		BUCKET
+	}
+
+	/**
+	 * Default number of rows requested per pipelined batch, larger than the
+	 * client default since object index rows are small
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 1024;
+
+	/**
+	 * Default number of leading object id hex digits the objects of a
+	 * repository not sized with {@link #sizeBuckets(RepositoryKey, long)} are
+	 * bucketed by, keeping buckets under 128 objects for repositories of up to
+	 * 32 thousand objects
+	 */
+	public static final int DEFAULT_BUCKET_DIGITS = 2;
+
+	/**
+	 * Number of objects buckets are sized for, half the entries Redis keeps a
+	 * hash in its compact encoding for by default, so a repository can double
+	 * in size before its buckets outgrow it
+	 */
+	public static final int BUCKET_SIZE = 64;
+
+	/**
+	 * Size of the chunk id and info length that start each bucket entry
+	 */
+	private static final int ENTRY_HEADER = Constants.OBJECT_ID_LENGTH + 1;
+
+	/**
+	 * Lua source shared by the bucket scripts that copies every entry of the
+	 * object's current value except the one for the given chunk
+	 */
+	private static final String KEEP_OTHER_ENTRIES = "local old = redis.call('HGET', KEYS[1], ARGV[1])\n"
+			+ "local out = {}\n"
+			+ "if old then\n"
+			+ "  local chunk = string.sub(ARGV[2], 1, 20)\n"
+			+ "  local pos = 1\n"
+			+ "  while pos <= #old do\n"
+			+ "    local size = 21 + string.byte(old, pos + 20)\n"
+			+ "    if string.sub(old, pos, pos + 19) ~= chunk then\n"
+			+ "      out[#out + 1] = string.sub(old, pos, pos + size - 1)\n"
+			+ "    end\n"
+			+ "    pos = pos + size\n"
+			+ "  end\n"
+			+ "end\n";
+
+	/**
+	 * Add or replace the entry for a chunk in an object's bucket field
+	 * <p>
+	 * ARGV holds the object's field and the entry.
+	 */
+	public static final RedisScript ADD_ENTRY = new RedisScript(
+			KEEP_OTHER_ENTRIES
+					+ "out[#out + 1] = ARGV[2]\n"
+					+ "redis.call('HSET', KEYS[1], ARGV[1], table.concat(out))\n"
+					+ "return 1");
+
+	/**
+	 * Remove the entry for a chunk from an object's bucket field
+	 * <p>
+	 * ARGV holds the object's field and the chunk id.
+	 */
+	public static final RedisScript REMOVE_ENTRY = new RedisScript(
+			KEEP_OTHER_ENTRIES
+					+ "if #out == 0 then\n"
+					+ "  redis.call('HDEL', KEYS[1], ARGV[1])\n"
+					+ "else\n"
+					+ "  redis.call('HSET', KEYS[1], ARGV[1], table.concat(out))\n"
+					+ "end\n"
+					+ "return 1");
+
+	/**
+	 * Add an object to its repository's filter and log, if the filter has been
+	 * built
+	 * <p>
+	 * ARGV holds the object's 8 byte hash. Bit positions are computed from the
+	 * filter's own header so writers never need to know its size. A log grown
+	 * larger than the bitmap is dropped and the epoch moved on.
+	 */
+	public static final RedisScript ADD_TO_FILTER = new RedisScript(
+			"local header = redis.call('GETRANGE', KEYS[1], 0, 15)\n"
+					+ "if #header < 16 then return 0 end\n"
+					+ "local eh, el, high, low = struct.unpack('>I4I4I4I4', header)\n"
+					+ "local bits = high * 4294967296 + low\n"
+					+ "local h1, h2 = struct.unpack('>I4I4', ARGV[1])\n"
+					+ "for i = 0, " + (ObjectFilter.HASHES - 1) + " do\n"
+					+ "  redis.call('SETBIT', KEYS[1], "
+					+ (ObjectFilter.HEADER * 8)
+					+ " + (h1 + i * h2) % bits, 1)\n"
+					+ "end\n"
+					+ "local bitmap = math.floor((bits + 7) / 8)\n"
+					+ "local log = redis.call('APPEND', KEYS[1], ARGV[1]) - "
+					+ ObjectFilter.HEADER + " - bitmap\n"
+					+ "if log > bitmap then\n"
+					+ "  local epoch = eh * 4294967296 + el + 1\n"
+					+ "  redis.call('SET', KEYS[1], struct.pack('>I4I4',\n"
+					+ "    math.floor(epoch / 4294967296), epoch % 4294967296)\n"
+					+ "    .. string.sub(header, 9, 16)\n"
+					+ "    .. redis.call('GETRANGE', KEYS[1], "
+					+ ObjectFilter.HEADER + ", " + (ObjectFilter.HEADER - 1)
+					+ " + bitmap))\n"
+					+ "end\n"
+					+ "return 1");
+
+	/**
+	 * Find keys matching a pattern a page at a time without blocking the
+	 * server the way KEYS does
+	 * <p>
+	 * ARGV holds the cursor, pattern, and count, and the reply is SCAN's.
+	 */
+	public static final RedisScript SCAN = new RedisScript(
+			"return redis.call('SCAN', ARGV[1], 'MATCH', ARGV[2], 'COUNT', ARGV[3])");
+
+	/**
+	 * Default milliseconds a local copy of a repository's filter is used
+	 * before the objects logged since are read
+	 */
+	public static final long DEFAULT_FILTER_REFRESH = 30 * 1000;
+
+	/**
+	 * Milliseconds a repository found to have no bucket digits stored is
+	 * assumed to still have none before they are read again
+	 */
+	private static final long MISSING_DIGITS_REFRESH = 5 * 1000;
+
+	/**
+	 * Bucket digits of a repository, either stored or the table's default
+	 * for a repository that had none stored when they were read
+	 */
+	private static class Digits {
+
+		final int digits;
+
+		final boolean stored;
+
+		final long loaded;
+
+		Digits(int digits, boolean stored) {
+			this.digits = digits;
+			this.stored = stored;
+			loaded = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Length of an object index row key
+	 */
+	private static final int ROW_LENGTH = 52;
+
+	/**
+	 * Local copy of a repository's filter
+	 */
+	private static class CachedFilter {
+
+		final ObjectFilter filter;
+
+		final long loaded;
+
+		CachedFilter(ObjectFilter filter) {
+			this.filter = filter;
+			loaded = System.currentTimeMillis();
+		}
+	}
+
+	private static final byte[] FILTER_PREFIX = Constants.encode("of:");
+
+	private static final byte[] BUCKET_PREFIX = Constants.encode("oi:");
+
+	private static final byte[] DIGITS_PREFIX = Constants.encode("od:");
+
+	private static final byte[] HEX = Constants.encode("0123456789abcdef");
+
+	private static final byte[] SCAN_START = Constants.encode("0");
+
+	/**
+	 * Number of keys requested per SCAN call when rebuilding a filter
+	 */
+	private static final byte[] SCAN_COUNT = Constants.encode("1000");
+
+	private static final KeyFunction<ObjectIndexKey> ROW = new KeyFunction<ObjectIndexKey>() {
+
+		public byte[] key(ObjectIndexKey value) {
+			return value.asBytes();
+		}
+	};
+
+	private Encoding encoding = Encoding.ROW;
+
+	private int bucketDigits = DEFAULT_BUCKET_DIGITS;
+
+	private final Map<Integer, Digits> repositoryDigits = new ConcurrentHashMap<Integer, Digits>();
+
+	private boolean legacyReads = true;
+
+	private boolean filtered;
+
+	private long filterRefresh = DEFAULT_FILTER_REFRESH;
+
+	private final Map<Integer, CachedFilter> filters = new ConcurrentHashMap<Integer, CachedFilter>();
+
 	/**
 	 */
 	public RedisObjectIndexTable() {
 		super();
+		setBatchSize(DEFAULT_BATCH_SIZE);
 	}
 
 	/**
@@ -60,6 +290,7 @@ public class RedisObjectIndexTable extends RedisClient implements
 	 */
 	public RedisObjectIndexTable(ConnectionProvider provider) {
 		super(provider);
+		setBatchSize(DEFAULT_BATCH_SIZE);
 	}
 
 	/**
@@ -67,53 +298,845 @@ public class RedisObjectIndexTable extends RedisClient implements
 	 */
 	public RedisObjectIndexTable(JedisPool pool) {
 		super(pool);
+		setBatchSize(DEFAULT_BATCH_SIZE);
 	}
 
-	public void get(Context options, Set<ObjectIndexKey> objects,
-			AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> callback) {
-		Jedis jedis = acquire();
+	/**
+	 * Set encoding that entries are written and read in
+	 * 
+	 * @see ObjectIndexMigration
+	 * @param encoding
+	 * @return this table
+	 */
+	public RedisObjectIndexTable setEncoding(Encoding encoding) {
+		this.encoding = encoding;
+		return this;
+	}
+
+	/**
+	 * Get encoding that entries are written and read in
+	 * 
+	 * @return encoding
+	 */
+	public Encoding getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Set number of leading object id hex digits the objects of a repository
+	 * are bucketed by when its first bucket is written, unless it was sized
+	 * with {@link #sizeBuckets(RepositoryKey, long)}
+	 * <p>
+	 * Each repository's digits are stored when its first bucket is written and
+	 * never change after that, so changing this only affects new
+	 * repositories.
+	 * 
+	 * @param digits
+	 *            between 1 and 8
+	 * @return this table
+	 */
+	public RedisObjectIndexTable setBucketDigits(int digits) {
+		if (digits < 1 || digits > 8)
+			throw new IllegalArgumentException("Bucket digits must be 1-8");
+		bucketDigits = digits;
+		return this;
+	}
+
+	/**
+	 * Get number of leading object id hex digits the objects of new
+	 * repositories are bucketed by
+	 * 
+	 * @return digits
+	 */
+	public int getBucketDigits() {
+		return bucketDigits;
+	}
+
+	/**
+	 * Get number of leading object id hex digits that keeps buckets at about
+	 * {@link #BUCKET_SIZE} objects
+	 * 
+	 * @param objects
+	 *            number of objects in the repository
+	 * @return digits between 1 and 8
+	 */
+	public static int bucketDigits(long objects) {
+		int digits = 1;
+		while (digits < 8 && objects > (long) BUCKET_SIZE << (4 * digits))
+			digits++;
+		return digits;
+	}
+
+	/**
+	 * Size the buckets of a repository for the given number of objects, unless
+	 * its digits are already stored
+	 * <p>
+	 * Size repositories before loading or migrating them, when the number of
+	 * objects they will hold is known.
+	 * 
+	 * @param repo
+	 * @param objects
+	 * @return digits the repository's objects are bucketed by
+	 * @throws DhtException
+	 */
+	public int sizeBuckets(RepositoryKey repo, long objects)
+			throws DhtException {
+		try {
+			return bucketDigits(repo.asInt(), bucketDigits(objects));
+		} catch (JedisException e) {
+			throw new DhtException(e);
+		}
+	}
+
+	/**
+	 * Get number of digits a repository's objects are bucketed by
+	 * <p>
+	 * Stored digits never change and are cached for good. That a repository
+	 * has none stored is cached for {@link #MISSING_DIGITS_REFRESH}, so a
+	 * repository another process sizes differently in that time may have its
+	 * first entries missed until then. This may acquire a connection, so it
+	 * must not be called while one is held.
+	 * 
+	 * @param repo
+	 * @param fix
+	 *            digits stored for the repository if it has none yet, or 0 to
+	 *            store none
+	 * @return digits
+	 */
+	private int bucketDigits(int repo, int fix) {
+		Integer id = Integer.valueOf(repo);
+		Digits cached = repositoryDigits.get(id);
+		if (cached != null
+				&& (cached.stored || fix == 0
+						&& System.currentTimeMillis() - cached.loaded < MISSING_DIGITS_REFRESH))
+			return cached.digits;
+
+		byte[] key = new byte[DIGITS_PREFIX.length + 8];
+		System.arraycopy(DIGITS_PREFIX, 0, key, 0, DIGITS_PREFIX.length);
+		hex(key, DIGITS_PREFIX.length, repo, 8);
+		byte[] value;
+		Jedis jedis = acquire(key);
+		try {
+			if (fix > 0)
+				jedis.setnx(key, Constants.encode(Integer.toString(fix)));
+			value = jedis.get(key);
+		} finally {
+			release(jedis);
+		}
+		// Repositories with no digits stored have no buckets yet
+		if (value == null) {
+			repositoryDigits.put(id, new Digits(bucketDigits, false));
+			return bucketDigits;
+		}
+		int digits;
+		try {
+			digits = Integer.parseInt(RawParseUtils.decode(value));
+		} catch (NumberFormatException e) {
+			digits = 0;
+		}
+		if (digits < 1 || digits > 8)
+			throw new JedisDataException("Invalid bucket digits for repository "
+					+ repo);
+		repositoryDigits.put(id, new Digits(digits, true));
+		return digits;
+	}
+
+	/**
+	 * Get number of digits each repository of the given objects is bucketed
+	 * by, read before any pipeline is started
+	 * 
+	 * @param objects
+	 * @return digits by repository id
+	 * @throws DhtException
+	 */
+	private Map<Integer, Integer> bucketDigits(
+			Collection<ObjectIndexKey> objects) throws DhtException {
+		Map<Integer, Integer> digits = new HashMap<Integer, Integer>();
+		try {
+			for (ObjectIndexKey objId : objects) {
+				Integer repo = Integer.valueOf(objId.getRepositoryId());
+				if (!digits.containsKey(repo))
+					digits.put(repo, Integer.valueOf(bucketDigits(
+							repo.intValue(), 0)));
+			}
+		} catch (JedisException e) {
+			throw new DhtException(e);
+		}
+		return digits;
+	}
+
+	/**
+	 * Set whether objects missing from their bucket are looked up in per-object
+	 * rows, so rows not migrated yet are still found
+	 * <p>
+	 * This costs an extra round trip for objects that are not in the index and
+	 * should be turned off once migration is done.
+	 * 
+	 * @param legacyReads
+	 * @return this table
+	 */
+	public RedisObjectIndexTable setLegacyReads(boolean legacyReads) {
+		this.legacyReads = legacyReads;
+		return this;
+	}
+
+	/**
+	 * Set whether adds keep each repository's object filter up to date and
+	 * lookups made with {@link Context#FAST_MISSING_OK} skip objects the filter
+	 * rules out
+	 * <p>
+	 * A repository's filter is only used once it has been built with
+	 * {@link #rebuildFilter(RepositoryKey)}. Lookups check a local copy of the
+	 * filter that may miss objects other processes added since it was loaded,
+	 * which is why it is only trusted by lookups that allow missing objects.
+	 * 
+	 * @param filtered
+	 * @return this table
+	 */
+	public RedisObjectIndexTable setFilter(boolean filtered) {
+		this.filtered = filtered;
+		return this;
+	}
+
+	/**
+	 * Set how long a local copy of a repository's filter is used before the
+	 * objects logged since are read
+	 * <p>
+	 * Only the log is read unless the filter was rebuilt or its log dropped.
+	 * 
+	 * @param millis
+	 * @return this table
+	 */
+	public RedisObjectIndexTable setFilterRefresh(long millis) {
+		filterRefresh = millis;
+		return this;
+	}
+
+	/**
+	 * Get bucket key of object
+	 * 
+	 * @param objId
+	 * @return key
+	 */
+	protected byte[] bucket(ObjectIndexKey objId) {
+		return bucket(objId, bucketDigits(objId.getRepositoryId(), 0));
+	}
+
+	private static byte[] bucket(ObjectIndexKey objId,
+			Map<Integer, Integer> digits) {
+		return bucket(objId, digits.get(
+				Integer.valueOf(objId.getRepositoryId())).intValue());
+	}
+
+	private static byte[] bucket(ObjectIndexKey objId, int digits) {
+		byte[] raw = field(objId);
+		long prefix = 0;
+		for (int i = 0; i < digits; i++) {
+			int b = raw[i >> 1];
+			prefix = (prefix << 4) | (((i & 1) == 0 ? b >>> 4 : b) & 0xf);
+		}
+		return bucket(objId.getRepositoryId(), prefix, digits);
+	}
+
+	private static byte[] bucket(int repo, long prefix, int digits) {
+		byte[] key = new byte[BUCKET_PREFIX.length + 9 + digits];
+		System.arraycopy(BUCKET_PREFIX, 0, key, 0, BUCKET_PREFIX.length);
+		int pos = BUCKET_PREFIX.length;
+		pos = hex(key, pos, repo, 8);
+		key[pos++] = ':';
+		hex(key, pos, prefix, digits);
+		return key;
+	}
+
+	private static int hex(byte[] buffer, int pos, long value, int digits) {
+		for (int shift = 4 * (digits - 1); shift >= 0; shift -= 4)
+			buffer[pos++] = HEX[(int) (value >>> shift) & 0xf];
+		return pos;
+	}
+
+	private static byte[] filterKey(int repo) {
+		byte[] key = new byte[FILTER_PREFIX.length + 8];
+		System.arraycopy(FILTER_PREFIX, 0, key, 0, FILTER_PREFIX.length);
+		hex(key, FILTER_PREFIX.length, repo, 8);
+		return key;
+	}
+
+	/**
+	 * Get local copy of a repository's filter, loading it if missing or stale
+	 * 
+	 * @param repo
+	 * @param operation
+	 * @return filter or null if the repository's filter has not been built
+	 */
+	private ObjectFilter filter(int repo, TableOperation operation) {
+		Integer id = Integer.valueOf(repo);
+		CachedFilter cached = filters.get(id);
+		if (cached != null
+				&& System.currentTimeMillis() - cached.loaded < filterRefresh)
+			return cached.filter;
+
+		byte[] key = filterKey(repo);
+		Jedis jedis = acquireReader(key);
+		ObjectFilter filter = null;
 		try {
-			Map<ObjectIndexKey, Collection<ObjectInfo>> out = new HashMap<ObjectIndexKey, Collection<ObjectInfo>>();
+			if (cached != null && cached.filter != null)
+				filter = update(cached.filter, key, jedis, operation);
+			if (filter == null) {
+				byte[] value = jedis.get(key);
+				operation.command(key.length).received(value);
+				if (value != null)
+					filter = new ObjectFilter(value);
+			}
+		} catch (JedisConnectionException e) {
+			releaseBroken(jedis);
+			jedis = null;
+			throw e;
+		} finally {
+			if (jedis != null)
+				release(jedis);
+		}
+		filters.put(id, new CachedFilter(filter));
+		return filter;
+	}
+
+	/**
+	 * Add the objects logged since a local copy of a filter was loaded
+	 * 
+	 * @param filter
+	 * @param key
+	 * @param jedis
+	 * @param operation
+	 * @return filter, or null if it has been rebuilt or its log dropped since
+	 *         and must be loaded again
+	 */
+	private static ObjectFilter update(ObjectFilter filter, byte[] key,
+			Jedis jedis, TableOperation operation) {
+		Pipeline pipeline = new Pipeline(jedis.getClient());
+		pipeline.getRange(key, (int) filter.getLogOffset(), -1);
+		pipeline.getRange(key, 0, 7);
+		operation.command(key.length).command(key.length);
+		byte[] log = (byte[]) pipeline.receive();
+		byte[] epoch = (byte[]) pipeline.receive();
+		operation.received(log).received(epoch);
+		// Epoch is read last so a log read from a replaced filter is dropped
+		if (!Arrays.equals(epoch, Arrays.copyOf(filter.getValue(), 8)))
+			return null;
+		return filter.update(log);
+	}
+
+	private static byte[] field(ObjectIndexKey objId) {
+		byte[] field = new byte[Constants.OBJECT_ID_LENGTH];
+		objId.copyRawTo(field, 0);
+		return field;
+	}
+
+	public void get(final Context options, final Set<ObjectIndexKey> objects,
+			AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> callback) {
+		final TableOperation operation = begin("get");
+		final AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> measured = operation
+				.wrap(callback);
+		dispatch(measured, new Runnable() {
+
+			public void run() {
+				load(options, objects, measured, operation);
+			}
+		});
+	}
+
+	private void load(Context options, Set<ObjectIndexKey> objects,
+			AsyncCallback<Map<ObjectIndexKey, Collection<ObjectInfo>>> callback,
+			TableOperation operation) {
+		Map<ObjectIndexKey, Collection<ObjectInfo>> out = Collections
+				.synchronizedMap(new HashMap<ObjectIndexKey, Collection<ObjectInfo>>());
+		Encoding encoding = this.encoding;
+		if (filtered && options == Context.FAST_MISSING_OK) {
+			Set<ObjectIndexKey> possible = new HashSet<ObjectIndexKey>();
 			for (ObjectIndexKey objId : objects) {
-				Map<byte[], byte[]> values = jedis.hgetAll(objId.asBytes());
-				for (Entry<byte[], byte[]> value : values.entrySet()) {
-					Collection<ObjectInfo> chunks = out.get(objId);
-					if (chunks == null) {
-						chunks = new ArrayList<ObjectInfo>(4);
-						out.put(objId, chunks);
+				ObjectFilter filter = filter(objId.getRepositoryId(),
+						operation);
+				if (filter == null || filter.mightContain(objId))
+					possible.add(objId);
+			}
+			objects = possible;
+		}
+		try {
+			load(objects, encoding, out, operation, true);
+			// Replicas may not have received entries written moments ago,
+			// which only lookups that accept missing entries tolerate
+			if (readsReplicas() && options != Context.FAST_MISSING_OK) {
+				List<ObjectIndexKey> missing = missing(objects, out);
+				if (!missing.isEmpty())
+					load(missing, encoding, out, operation, false);
+			}
+		} catch (DhtException e) {
+			callback.onFailure(e);
+			return;
+		}
+		callback.onSuccess(out);
+	}
+
+	private static List<ObjectIndexKey> missing(
+			Collection<ObjectIndexKey> objects,
+			Map<ObjectIndexKey, Collection<ObjectInfo>> out) {
+		List<ObjectIndexKey> missing = new ArrayList<ObjectIndexKey>();
+		for (ObjectIndexKey objId : objects)
+			if (!out.containsKey(objId))
+				missing.add(objId);
+		return missing;
+	}
+
+	/**
+	 * Load entries, falling back to rows for entries missing from buckets
+	 * when legacy reads are on
+	 * 
+	 * @param objects
+	 * @param encoding
+	 * @param out
+	 * @param operation
+	 * @param replica
+	 *            whether entries may be read from a replica
+	 * @throws DhtException
+	 */
+	private void load(Collection<ObjectIndexKey> objects, Encoding encoding,
+			Map<ObjectIndexKey, Collection<ObjectInfo>> out,
+			TableOperation operation, boolean replica) throws DhtException {
+		loadNodes(objects, encoding, out, operation, replica);
+		if (encoding == Encoding.BUCKET && legacyReads) {
+			List<ObjectIndexKey> missing = missing(objects, out);
+			if (!missing.isEmpty())
+				loadNodes(missing, Encoding.ROW, out, operation, replica);
+		}
+	}
+
+	/**
+	 * Load entries stored in the given encoding, reading each node in
+	 * parallel
+	 * 
+	 * @param objects
+	 * @param encoding
+	 * @param out
+	 * @param operation
+	 * @param replica
+	 *            whether entries may be read from a replica
+	 * @throws DhtException
+	 */
+	private void loadNodes(Collection<ObjectIndexKey> objects,
+			final Encoding encoding,
+			final Map<ObjectIndexKey, Collection<ObjectInfo>> out,
+			final TableOperation operation, final boolean replica)
+			throws DhtException {
+		KeyFunction<ObjectIndexKey> keys = ROW;
+		final Map<Integer, Integer> digits;
+		if (encoding == Encoding.BUCKET) {
+			digits = bucketDigits(objects);
+			keys = new KeyFunction<ObjectIndexKey>() {
+
+				public byte[] key(ObjectIndexKey value) {
+					return bucket(value, digits);
+				}
+			};
+		} else
+			digits = null;
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final List<ObjectIndexKey> group : partition(objects, keys))
+			tasks.add(new Callable<Void>() {
+
+				public Void call() throws DhtException {
+					fetch(group, encoding, digits, out, operation, replica);
+					return null;
+				}
+			});
+		invokeAll(tasks);
+	}
+
+	/**
+	 * Fetch entries that are all stored on one node
+	 * 
+	 * @param objects
+	 * @param encoding
+	 * @param digits
+	 *            bucket digits by repository id, when bucketed
+	 * @param out
+	 * @param operation
+	 * @param replica
+	 *            whether entries may be read from a replica
+	 * @throws DhtException
+	 */
+	private void fetch(List<ObjectIndexKey> objects, Encoding encoding,
+			Map<Integer, Integer> digits,
+			Map<ObjectIndexKey, Collection<ObjectInfo>> out,
+			TableOperation operation, boolean replica) throws DhtException {
+		boolean bucketed = encoding == Encoding.BUCKET;
+		MultiplexedTransport transport = readTransport();
+		Jedis jedis = null;
+		Pipeline pipeline;
+		if (transport != null)
+			pipeline = new Pipeline(transport);
+		else {
+			ObjectIndexKey first = objects.get(0);
+			byte[] owner = bucketed ? bucket(first, digits) : first.asBytes();
+			jedis = replica ? acquireReader(owner) : acquire(owner);
+			pipeline = new Pipeline(jedis.getClient());
+		}
+
+		DhtException error = null;
+		try {
+			ObjectIndexKey[] batch = new ObjectIndexKey[Math.min(
+					getBatchSize(), objects.size())];
+			Iterator<ObjectIndexKey> iter = objects.iterator();
+			while (iter.hasNext()) {
+				int count = 0;
+				while (count < batch.length && iter.hasNext()) {
+					ObjectIndexKey objId = iter.next();
+					if (bucketed) {
+						byte[] key = bucket(objId, digits);
+						pipeline.hget(key, field(objId));
+						operation.command(key.length
+								+ Constants.OBJECT_ID_LENGTH);
+					} else {
+						byte[] row = objId.asBytes();
+						pipeline.hgetAll(row);
+						operation.command(row.length);
+					}
+					batch[count++] = objId;
+				}
+				// Every reply must be read, even after a failure, so the
+				// connection is left clean
+				for (int i = 0; i < count; i++) {
+					Object reply;
+					try {
+						reply = pipeline.receive();
+					} catch (JedisDataException e) {
+						if (error == null)
+							error = new DhtException(e);
+						continue;
+					}
+					if (error != null)
+						continue;
+					try {
+						decode(batch[i], reply, encoding, out, operation);
+					} catch (IOException e) {
+						error = new DhtException(e);
 					}
-					chunks.add(new ObjectInfo(
-							ChunkKey.fromBytes(value.getKey()), 0,
-							GitStore.ObjectInfo.parseFrom(value.getValue())));
 				}
 			}
-			callback.onSuccess(out);
-		} catch (InvalidProtocolBufferException e) {
-			callback.onFailure(new DhtException(e));
-			return;
+		} catch (JedisConnectionException e) {
+			// Replies may be left unread on the connection
+			releaseBroken(jedis);
+			jedis = null;
+			throw e;
 		} finally {
-			release(jedis);
+			if (jedis != null)
+				release(jedis);
 		}
+		if (error != null)
+			throw error;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void decode(ObjectIndexKey objId, Object reply, Encoding encoding,
+			Map<ObjectIndexKey, Collection<ObjectInfo>> out,
+			TableOperation operation) throws IOException {
+		if (encoding == Encoding.BUCKET) {
+			byte[] value = (byte[]) reply;
+			operation.received(value);
+			if (value != null)
+				decodeEntries(objId, value, out);
+		} else {
+			List<byte[]> values = (List<byte[]>) reply;
+			operation.received(values);
+			decode(objId, values, out);
+		}
+	}
+
+	/**
+	 * Add object info from the field/value pairs of an object's row
+	 * 
+	 * @param objId
+	 * @param values
+	 * @param out
+	 * @throws IOException
+	 */
+	protected void decode(ObjectIndexKey objId, List<byte[]> values,
+			Map<ObjectIndexKey, Collection<ObjectInfo>> out)
+			throws IOException {
+		if (values.isEmpty())
+			return;
+		Collection<ObjectInfo> chunks = new ArrayList<ObjectInfo>(
+				values.size() / 2);
+		for (int i = 0; i < values.size(); i += 2)
+			chunks.add(new ObjectInfo(ChunkKey.fromBytes(values.get(i)), 0,
+					GitStore.ObjectInfo.parseFrom(values.get(i + 1))));
+		out.put(objId, chunks);
+	}
+
+	/**
+	 * Add object info from the chunk entries of an object's bucket field
+	 * 
+	 * @param objId
+	 * @param value
+	 * @param out
+	 * @throws IOException
+	 */
+	protected void decodeEntries(ObjectIndexKey objId, byte[] value,
+			Map<ObjectIndexKey, Collection<ObjectInfo>> out)
+			throws IOException {
+		RepositoryKey repo = RepositoryKey.fromInt(objId.getRepositoryId());
+		Collection<ObjectInfo> chunks = new ArrayList<ObjectInfo>(1);
+		int pos = 0;
+		while (pos < value.length) {
+			if (pos + ENTRY_HEADER > value.length)
+				throw new IOException("Truncated object index entry");
+			int length = value[pos + Constants.OBJECT_ID_LENGTH] & 0xff;
+			if (pos + ENTRY_HEADER + length > value.length)
+				throw new IOException("Truncated object index entry");
+			byte[] data = new byte[length];
+			System.arraycopy(value, pos + ENTRY_HEADER, data, 0, length);
+			chunks.add(new ObjectInfo(ChunkKey.create(repo,
+					ObjectId.fromRaw(value, pos)), 0, GitStore.ObjectInfo
+					.parseFrom(data)));
+			pos += ENTRY_HEADER + length;
+		}
+		out.put(objId, chunks);
+	}
+
+	/**
+	 * Create bucket entry of object info
+	 * 
+	 * @param objId
+	 * @param info
+	 * @return entry
+	 * @throws DhtException
+	 */
+	private static byte[] entry(ObjectIndexKey objId, ObjectInfo info)
+			throws DhtException {
+		ChunkKey chunk = info.getChunkKey();
+		if (chunk.getRepositoryId() != objId.getRepositoryId())
+			throw new DhtException("Chunk " + chunk
+					+ " is not in the repository of " + objId.name());
+		byte[] data = info.getData().toByteArray();
+		if (data.length > 0xff)
+			throw new DhtException("Object info of " + objId.name()
+					+ " too large for a bucket entry");
+		byte[] entry = new byte[ENTRY_HEADER + data.length];
+		chunk.getChunkHash().copyRawTo(entry, 0);
+		entry[Constants.OBJECT_ID_LENGTH] = (byte) data.length;
+		System.arraycopy(data, 0, entry, ENTRY_HEADER, data.length);
+		return entry;
 	}
 
 	public void add(ObjectIndexKey objId, ObjectInfo info, WriteBuffer buffer)
 			throws DhtException {
-		Jedis jedis = acquire();
-		try {
-			jedis.hset(objId.asBytes(), info.getChunkKey().asBytes(), info
+		RedisWriteBuffer writes = (RedisWriteBuffer) buffer;
+		if (encoding == Encoding.BUCKET) {
+			byte[] bucket;
+			try {
+				bucket = bucket(objId, bucketDigits(objId.getRepositoryId(),
+						bucketDigits));
+			} catch (JedisException e) {
+				throw new DhtException(e);
+			}
+			writes.eval(ADD_ENTRY, bucket, field(objId), entry(objId, info));
+		}
+		else
+			writes.hset(objId.asBytes(), info.getChunkKey().asBytes(), info
 					.getData().toByteArray());
-		} finally {
-			release(jedis);
+		if (filtered)
+			addToFilter(objId, writes);
+	}
+
+	private void addToFilter(ObjectIndexKey objId, RedisWriteBuffer writes)
+			throws DhtException {
+		byte[] raw = field(objId);
+		writes.eval(ADD_TO_FILTER, filterKey(objId.getRepositoryId()),
+				Arrays.copyOf(raw, 8));
+		// Added again when read back from the log, which is harmless
+		CachedFilter cached = filters.get(Integer.valueOf(objId
+				.getRepositoryId()));
+		if (cached != null && cached.filter != null)
+			cached.filter.add(ObjectFilter.hash(raw, 0));
+	}
+
+	/**
+	 * Growable list of object hashes
+	 */
+	private static class Hashes {
+
+		long[] values = new long[1024];
+
+		int size;
+
+		void add(long hash) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = hash;
 		}
 	}
 
-	public void remove(ObjectIndexKey objId, ChunkKey chunk, WriteBuffer buffer)
+	/**
+	 * Rebuild a repository's filter from the objects currently in the index,
+	 * sized for twice that many objects
+	 * <p>
+	 * Objects added while the filter is rebuilt may be left out of it, so
+	 * rebuild when the repository is not receiving pushes. Buckets and rows
+	 * are found with SCAN, so the servers must run Redis 2.8 or newer.
+	 * 
+	 * @param repo
+	 * @return rebuilt filter
+	 * @throws DhtException
+	 */
+	public ObjectFilter rebuildFilter(final RepositoryKey repo)
 			throws DhtException {
-		Jedis jedis = acquire();
+		final TableOperation operation = begin("rebuildFilter");
 		try {
-			jedis.hdel(objId.asBytes(), chunk.asBytes());
+			final Hashes hashes = new Hashes();
+			final Encoding encoding = this.encoding;
+			ConnectionProvider provider = getProvider();
+			Collection<ConnectionProvider> nodes;
+			if (provider instanceof ShardedConnectionProvider)
+				nodes = ((ShardedConnectionProvider) provider).getNodes();
+			else
+				nodes = Collections.singletonList(provider);
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (final ConnectionProvider node : nodes)
+				tasks.add(new Callable<Void>() {
+
+					public Void call() {
+						if (encoding == Encoding.BUCKET)
+							collect(node, bucketPattern(repo.asInt()), true,
+									hashes, operation);
+						if (encoding == Encoding.ROW || legacyReads)
+							collect(node, rowPattern(repo.asInt()), false,
+									hashes, operation);
+						return null;
+					}
+				});
+			invokeAll(tasks);
+
+			ObjectFilter filter = ObjectFilter.create(hashes.size);
+			for (int i = 0; i < hashes.size; i++)
+				filter.add(hashes.values[i]);
+			byte[] key = filterKey(repo.asInt());
+			Jedis jedis = acquire(key);
+			try {
+				jedis.set(key, filter.getValue());
+			} finally {
+				release(jedis);
+			}
+			operation.command(key.length + filter.getValue().length);
+			filters.put(Integer.valueOf(repo.asInt()), new CachedFilter(
+					filter));
+			operation.succeed();
+			return filter;
 		} finally {
-			release(jedis);
+			operation.end();
+		}
+	}
+
+	private static byte[] bucketPattern(int repo) {
+		byte[] pattern = new byte[BUCKET_PREFIX.length + 10];
+		System.arraycopy(BUCKET_PREFIX, 0, pattern, 0, BUCKET_PREFIX.length);
+		int pos = hex(pattern, BUCKET_PREFIX.length, repo, 8);
+		pattern[pos++] = ':';
+		pattern[pos] = '*';
+		return pattern;
+	}
+
+	/**
+	 * Get pattern of the rows of a repository
+	 * <p>
+	 * Chunk rows have keys of the same shape and are matched too, which only
+	 * adds a little to the filter's false positive rate.
+	 * 
+	 * @param repo
+	 * @return pattern
+	 */
+	private static byte[] rowPattern(int repo) {
+		return Constants.encode("??." + String.format("%08x",
+				Integer.valueOf(repo)) + ".*");
+	}
+
+	/**
+	 * Collect hashes of the objects in the buckets or rows a node holds that
+	 * match a pattern
+	 * 
+	 * @param node
+	 * @param pattern
+	 * @param buckets
+	 *            true to read the fields of each matched bucket, false to
+	 *            take the object from each matched row's key
+	 * @param hashes
+	 * @param operation
+	 */
+	@SuppressWarnings("unchecked")
+	private void collect(ConnectionProvider node, byte[] pattern,
+			boolean buckets, Hashes hashes, TableOperation operation) {
+		Jedis jedis = node.acquire();
+		try {
+			byte[] cursor = SCAN_START;
+			do {
+				operation.command(cursor.length + pattern.length);
+				List<Object> page = (List<Object>) SCAN.eval(jedis, 0, cursor,
+						pattern, SCAN_COUNT);
+				cursor = (byte[]) page.get(0);
+				List<byte[]> keys = (List<byte[]>) page.get(1);
+				operation.received(keys);
+				if (buckets)
+					collectBuckets(jedis.getClient(), keys, hashes, operation);
+				else
+					collectRows(keys, hashes);
+			} while (!Arrays.equals(cursor, SCAN_START));
+		} catch (JedisConnectionException e) {
+			node.releaseBroken(jedis);
+			jedis = null;
+			throw e;
+		} finally {
+			if (jedis != null)
+				node.release(jedis);
+		}
+	}
+
+	private static void collectBuckets(Client client, List<byte[]> buckets,
+			Hashes hashes, TableOperation operation) {
+		for (byte[] bucket : buckets) {
+			client.hkeys(bucket);
+			operation.command(bucket.length);
+		}
+		for (int i = 0; i < buckets.size(); i++) {
+			List<byte[]> fields = client.getBinaryMultiBulkReply();
+			operation.received(fields);
+			synchronized (hashes) {
+				for (byte[] field : fields)
+					hashes.add(ObjectFilter.hash(field, 0));
+			}
+		}
+	}
+
+	private static void collectRows(List<byte[]> rows, Hashes hashes) {
+		synchronized (hashes) {
+			for (byte[] row : rows)
+				if (row.length == ROW_LENGTH)
+					hashes.add(ObjectFilter.hash(ObjectId.fromString(row,
+							ROW_LENGTH - 2 * Constants.OBJECT_ID_LENGTH)));
+		}
+	}
+
+	public void remove(ObjectIndexKey objId, ChunkKey chunk, WriteBuffer buffer)
+			throws DhtException {
+		RedisWriteBuffer writes = (RedisWriteBuffer) buffer;
+		if (encoding == Encoding.BUCKET) {
+			byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+			chunk.getChunkHash().copyRawTo(id, 0);
+			byte[] bucket;
+			try {
+				bucket = bucket(objId);
+			} catch (JedisException e) {
+				throw new DhtException(e);
+			}
+			writes.eval(REMOVE_ENTRY, bucket, field(objId), id);
+			if (!legacyReads)
+				return;
 		}
+		writes.hdel(objId.asBytes(), chunk.asBytes());
 	}
 }
@@ -23,9 +23,13 @@ package org.gitective.redis;
 
 import com.google.protobuf.InvalidProtocolBufferException;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeoutException;
 
 import org.eclipse.jgit.generated.storage.dht.proto.GitStore.RefData;
@@ -47,13 +51,199 @@ import redis.clients.jedis.JedisPool;
  */
 public class RedisRefTable extends RedisClient implements RefTable {
 
+	/**
+	 * Ref update applied by {@link RedisRefTable#compareAndPut(List, boolean)}
+	 */
+	public static class Update {
+
+		private final RefKey ref;
+
+		private final RefData oldData;
+
+		private final RefData newData;
+
+		/**
+		 * Create update of ref from old data to new data
+		 * 
+		 * @param ref
+		 * @param oldData
+		 *            expected data, {@link RefDataUtil#NONE} if the ref must
+		 *            not exist
+		 * @param newData
+		 *            data to store, null to remove the ref
+		 */
+		public Update(RefKey ref, RefData oldData, RefData newData) {
+			this.ref = ref;
+			this.oldData = oldData;
+			this.newData = newData;
+		}
+
+		/**
+		 * @return ref
+		 */
+		public RefKey getRef() {
+			return ref;
+		}
+
+		/**
+		 * @return old data
+		 */
+		public RefData getOldData() {
+			return oldData;
+		}
+
+		/**
+		 * @return new data, null if the ref is being removed
+		 */
+		public RefData getNewData() {
+			return newData;
+		}
+	}
+
+	/**
+	 * Default number of updates sent per script call when updates are not
+	 * applied atomically
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	/**
+	 * Default number of repositories whose parsed refs are cached
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 256;
+
 	private static final ColumnMatcher REFS = new ColumnMatcher("refs:");
 
+	private static final ColumnMatcher VERSION = new ColumnMatcher("refv:");
+
+	private static final int UPDATE_ARGS = 5;
+
+	private static final byte[] TRUE = Constants.encode("1");
+
+	private static final byte[] FALSE = Constants.encode("0");
+
+	private static final byte[] EMPTY = new byte[0];
+
+	/**
+	 * Compare and set a ref field
+	 * <p>
+	 * KEYS[1] is the refs hash and KEYS[2] its version, ARGV is the ref name,
+	 * whether the ref is expected to exist, the expected value, and the new
+	 * value.
+	 */
+	public static final RedisScript COMPARE_AND_PUT = new RedisScript(
+			"local current = redis.call('hget', KEYS[1], ARGV[1])\n"
+					+ "if ARGV[2] == '1' then\n"
+					+ "  if current ~= ARGV[3] then return 0 end\n"
+					+ "elseif current then return 0 end\n"
+					+ "redis.call('hset', KEYS[1], ARGV[1], ARGV[4])\n"
+					+ "redis.call('incr', KEYS[2])\n"
+					+ "return 1");
+
+	/**
+	 * Compare and delete a ref field
+	 * <p>
+	 * KEYS[1] is the refs hash and KEYS[2] its version, ARGV is the ref name,
+	 * whether the ref is expected to exist, and the expected value.
+	 */
+	public static final RedisScript COMPARE_AND_REMOVE = new RedisScript(
+			"local current = redis.call('hget', KEYS[1], ARGV[1])\n"
+					+ "if ARGV[2] == '1' then\n"
+					+ "  if current ~= ARGV[3] then return 0 end\n"
+					+ "elseif current then return 0 end\n"
+					+ "redis.call('hdel', KEYS[1], ARGV[1])\n"
+					+ "redis.call('incr', KEYS[2])\n"
+					+ "return 1");
+
+	/**
+	 * Get all ref fields unless the refs hash is still at a known version
+	 * <p>
+	 * KEYS[1] is the refs hash and KEYS[2] its version, ARGV[1] is the version
+	 * already known to the caller. The reply is the current version followed
+	 * by the hash's fields and values when the version has changed.
+	 */
+	public static final RedisScript GET_ALL = new RedisScript(
+			"local version = redis.call('get', KEYS[2]) or '0'\n"
+					+ "if version == ARGV[1] then return {version} end\n"
+					+ "local all = redis.call('hgetall', KEYS[1])\n"
+					+ "table.insert(all, 1, version)\n"
+					+ "return all");
+
+	/**
+	 * Parsed refs of a repository at a version
+	 */
+	private static class CachedRefs {
+
+		final byte[] version;
+
+		final Map<RefKey, RefData> refs;
+
+		CachedRefs(byte[] version, Map<RefKey, RefData> refs) {
+			this.version = version;
+			this.refs = refs;
+		}
+	}
+
+	/**
+	 * Compare and set or delete many ref fields
+	 * <p>
+	 * KEYS are the refs hash of each update followed by the version of each of
+	 * those hashes, and ARGV[1] is whether all updates must succeed together.
+	 * Each update then has five arguments: the ref name, whether the ref is
+	 * expected to exist, the expected value, whether the ref is removed, and
+	 * the new value.
+	 */
+	public static final RedisScript BATCH_COMPARE_AND_PUT = new RedisScript(
+			"local n = #KEYS / 2\n"
+					+ "local function matches(i)\n"
+					+ "  local b = 1 + (i - 1) * 5\n"
+					+ "  local current = redis.call('hget', KEYS[i], ARGV[b + 1])\n"
+					+ "  if ARGV[b + 2] == '1' then return current == ARGV[b + 3] end\n"
+					+ "  return not current\n"
+					+ "end\n"
+					+ "local function apply(i)\n"
+					+ "  local b = 1 + (i - 1) * 5\n"
+					+ "  if ARGV[b + 4] == '1' then\n"
+					+ "    redis.call('hdel', KEYS[i], ARGV[b + 1])\n"
+					+ "  else\n"
+					+ "    redis.call('hset', KEYS[i], ARGV[b + 1], ARGV[b + 5])\n"
+					+ "  end\n"
+					+ "  redis.call('incr', KEYS[n + i])\n"
+					+ "end\n"
+					+ "local result = {}\n"
+					+ "if ARGV[1] == '1' then\n"
+					+ "  for i = 1, n do\n"
+					+ "    if not matches(i) then\n"
+					+ "      for j = 1, n do result[j] = 0 end\n"
+					+ "      return result\n"
+					+ "    end\n"
+					+ "  end\n"
+					+ "  for i = 1, n do apply(i) result[i] = 1 end\n"
+					+ "else\n"
+					+ "  for i = 1, n do\n"
+					+ "    if matches(i) then apply(i) result[i] = 1 else result[i] = 0 end\n"
+					+ "  end\n"
+					+ "end\n"
+					+ "return result");
+
+	private final Map<RepositoryKey, CachedRefs> cache = new LinkedHashMap<RepositoryKey, CachedRefs>(
+			16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(
+				Map.Entry<RepositoryKey, CachedRefs> eldest) {
+			return size() > cacheSize;
+		}
+	};
+
+	private int cacheSize = DEFAULT_CACHE_SIZE;
+
 	/**
 	 * 
 	 */
 	public RedisRefTable() {
 		super();
+		setBatchSize(DEFAULT_BATCH_SIZE);
 	}
 
 	/**
@@ -61,6 +251,7 @@ public class RedisRefTable extends RedisClient implements RefTable {
 	 */
 	public RedisRefTable(ConnectionProvider provider) {
 		super(provider);
+		setBatchSize(DEFAULT_BATCH_SIZE);
 	}
 
 	/**
@@ -68,70 +259,245 @@ public class RedisRefTable extends RedisClient implements RefTable {
 	 */
 	public RedisRefTable(JedisPool pool) {
 		super(pool);
+		setBatchSize(DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Set number of repositories whose parsed refs are cached
+	 * <p>
+	 * Cached refs are returned by {@link #getAll(Context, RepositoryKey)}
+	 * after a version check as long as no ref in the repository has changed.
+	 * 
+	 * @param repositories
+	 *            cache size, 0 to disable caching
+	 * @return this table
+	 */
+	public RedisRefTable setCacheSize(int repositories) {
+		synchronized (cache) {
+			cacheSize = repositories;
+			cache.clear();
+		}
+		return this;
 	}
 
 	public Map<RefKey, RefData> getAll(Context options, RepositoryKey repository)
 			throws DhtException, TimeoutException {
-		Jedis jedis = acquire();
+		TableOperation operation = begin("getAll");
 		try {
-			Map<byte[], byte[]> values = jedis.hgetAll(REFS.append(repository
-					.asBytes()));
-			Map<RefKey, RefData> out = new HashMap<RefKey, RefData>(
-					values.size());
-			for (Entry<byte[], byte[]> value : values.entrySet())
-				out.put(RefKey.create(repository,
-						RawParseUtils.decode(value.getKey())),
-						RefData.parseFrom(value.getValue()));
-			return out;
-		} catch (InvalidProtocolBufferException e) {
-			throw new DhtException(e);
+			Map<RefKey, RefData> refs = load(repository, operation);
+			operation.succeed();
+			return refs;
 		} finally {
-			release(jedis);
+			operation.end();
 		}
 	}
 
-	/**
-	 * Is current
-	 * 
-	 * @param ref
-	 * @param key
-	 * @param oldData
-	 * @param jedis
-	 * @return true if change, false otherwse
-	 */
-	protected boolean equal(byte[] ref, byte[] key, RefData oldData, Jedis jedis) {
-		byte[] oldBytes = oldData != RefDataUtil.NONE ? oldData.toByteArray()
-				: null;
-		return equal(oldBytes, jedis.hget(key, ref));
+	private Map<RefKey, RefData> load(RepositoryKey repository,
+			TableOperation operation) throws DhtException {
+		CachedRefs cached;
+		synchronized (cache) {
+			cached = cache.get(repository);
+		}
+
+		List<?> reply;
+		byte[] repo = repository.asBytes();
+		Jedis jedis = acquireReader(repo);
+		try {
+			byte[][] params = new byte[][] { REFS.append(repo),
+					VERSION.append(repo),
+					cached != null ? cached.version : EMPTY };
+			operation.command(size(params));
+			reply = (List<?>) GET_ALL.eval(jedis, 2, params);
+		} finally {
+			release(jedis);
+		}
+
+		byte[] version = (byte[]) reply.get(0);
+		operation.received(version);
+		if (cached != null && reply.size() == 1)
+			return new HashMap<RefKey, RefData>(cached.refs);
+
+		Map<RefKey, RefData> out = new HashMap<RefKey, RefData>(
+				reply.size() / 2);
+		try {
+			for (int i = 1; i < reply.size(); i += 2) {
+				byte[] name = (byte[]) reply.get(i);
+				byte[] data = (byte[]) reply.get(i + 1);
+				operation.received(name).received(data);
+				out.put(RefKey.create(repository, RawParseUtils.decode(name)),
+						RefData.parseFrom(data));
+			}
+		} catch (InvalidProtocolBufferException e) {
+			throw new DhtException(e);
+		}
+		synchronized (cache) {
+			if (cacheSize > 0)
+				cache.put(repository, new CachedRefs(version, out));
+		}
+		return new HashMap<RefKey, RefData>(out);
 	}
 
 	public boolean compareAndPut(RefKey refKey, RefData oldData, RefData newData)
 			throws DhtException, TimeoutException {
-		Jedis jedis = acquire();
+		TableOperation operation = begin("compareAndPut");
 		try {
-			byte[] ref = Constants.encode(refKey.getName());
-			byte[] key = REFS.append(refKey.getRepositoryKey().asBytes());
-			boolean same = equal(ref, key, oldData, jedis);
-			if (same)
-				jedis.hset(key, ref, newData.toByteArray());
-			return same;
+			byte[] repo = refKey.getRepositoryKey().asBytes();
+			byte[] old = oldData != RefDataUtil.NONE ? oldData.toByteArray()
+					: null;
+			byte[][] params = new byte[][] { REFS.append(repo),
+					VERSION.append(repo), Constants.encode(refKey.getName()),
+					old != null ? TRUE : FALSE, old != null ? old : EMPTY,
+					newData.toByteArray() };
+			boolean applied;
+			Jedis jedis = acquire(repo);
+			try {
+				operation.command(size(params));
+				applied = isTrue(COMPARE_AND_PUT.eval(jedis, 2, params));
+			} finally {
+				release(jedis);
+			}
+			operation.succeed();
+			return applied;
 		} finally {
-			release(jedis);
+			operation.end();
 		}
 	}
 
 	public boolean compareAndRemove(RefKey refKey, RefData oldData)
 			throws DhtException, TimeoutException {
-		Jedis jedis = acquire();
+		TableOperation operation = begin("compareAndRemove");
 		try {
-			byte[] ref = Constants.encode(refKey.getName());
-			byte[] key = REFS.append(refKey.getRepositoryKey().asBytes());
-			boolean same = equal(ref, key, oldData, jedis);
-			if (same)
-				jedis.hdel(key, ref);
-			return same;
+			byte[] repo = refKey.getRepositoryKey().asBytes();
+			byte[] old = oldData != RefDataUtil.NONE ? oldData.toByteArray()
+					: null;
+			byte[][] params = new byte[][] { REFS.append(repo),
+					VERSION.append(repo), Constants.encode(refKey.getName()),
+					old != null ? TRUE : FALSE, old != null ? old : EMPTY };
+			boolean applied;
+			Jedis jedis = acquire(repo);
+			try {
+				operation.command(size(params));
+				applied = isTrue(COMPARE_AND_REMOVE.eval(jedis, 2, params));
+			} finally {
+				release(jedis);
+			}
+			operation.succeed();
+			return applied;
+		} finally {
+			operation.end();
+		}
+	}
+
+	/**
+	 * Compare and put or remove many refs
+	 * <p>
+	 * When atomic, either every update is applied or none are and the whole
+	 * list is sent in a single script call. Otherwise each update is applied
+	 * independently and updates are sent in batches of the client's batch
+	 * size. A ref should appear at most once in the list. When the table is
+	 * sharded, atomic updates must all be to repositories on the same node.
+	 * 
+	 * @param updates
+	 * @param atomic
+	 * @return success of each update, in list order
+	 * @throws DhtException
+	 * @throws TimeoutException
+	 */
+	public boolean[] compareAndPut(List<Update> updates, boolean atomic)
+			throws DhtException, TimeoutException {
+		TableOperation operation = begin("batchCompareAndPut");
+		try {
+			boolean[] applied = apply(updates, atomic, operation);
+			operation.succeed();
+			return applied;
+		} finally {
+			operation.end();
+		}
+	}
+
+	private boolean[] apply(final List<Update> updates, final boolean atomic,
+			final TableOperation operation) throws DhtException {
+		final boolean[] applied = new boolean[updates.size()];
+		List<Integer> indexes = new ArrayList<Integer>(updates.size());
+		for (int i = 0; i < updates.size(); i++)
+			indexes.add(Integer.valueOf(i));
+		Collection<List<Integer>> groups = partition(indexes,
+				new KeyFunction<Integer>() {
+
+					public byte[] key(Integer value) {
+						return updates.get(value.intValue()).getRef()
+								.getRepositoryKey().asBytes();
+					}
+				});
+		if (atomic && groups.size() > 1)
+			throw new DhtException(
+					"Atomic ref updates must all be stored on one node");
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final List<Integer> group : groups)
+			tasks.add(new Callable<Void>() {
+
+				public Void call() {
+					apply(updates, group, atomic, applied, operation);
+					return null;
+				}
+			});
+		invokeAll(tasks);
+		return applied;
+	}
+
+	/**
+	 * Apply updates to refs that are all stored on one node
+	 * 
+	 * @param updates
+	 * @param indexes
+	 *            indexes of the updates to apply
+	 * @param atomic
+	 * @param applied
+	 * @param operation
+	 */
+	private void apply(List<Update> updates, List<Integer> indexes,
+			boolean atomic, boolean[] applied, TableOperation operation) {
+		int batchSize = atomic ? indexes.size() : getBatchSize();
+		Jedis jedis = acquire(updates.get(indexes.get(0).intValue())
+				.getRef().getRepositoryKey().asBytes());
+		try {
+			for (int start = 0; start < indexes.size(); start += batchSize) {
+				int count = Math.min(batchSize, indexes.size() - start);
+				int keys = 2 * count;
+				byte[][] params = new byte[keys + 1 + count * UPDATE_ARGS][];
+				params[keys] = atomic ? TRUE : FALSE;
+				for (int i = 0; i < count; i++) {
+					Update update = updates.get(indexes.get(start + i)
+							.intValue());
+					RefKey refKey = update.getRef();
+					byte[] repo = refKey.getRepositoryKey().asBytes();
+					params[i] = REFS.append(repo);
+					params[count + i] = VERSION.append(repo);
+					byte[] old = update.getOldData() != RefDataUtil.NONE ? update
+							.getOldData().toByteArray() : null;
+					int arg = keys + 1 + i * UPDATE_ARGS;
+					params[arg] = Constants.encode(refKey.getName());
+					params[arg + 1] = old != null ? TRUE : FALSE;
+					params[arg + 2] = old != null ? old : EMPTY;
+					params[arg + 3] = update.getNewData() == null ? TRUE
+							: FALSE;
+					params[arg + 4] = update.getNewData() != null ? update
+							.getNewData().toByteArray() : EMPTY;
+				}
+				operation.command(size(params));
+				List<?> reply = (List<?>) BATCH_COMPARE_AND_PUT.eval(jedis,
+						keys, params);
+				for (int i = 0; i < count; i++)
+					applied[indexes.get(start + i).intValue()] = isTrue(reply
+							.get(i));
+			}
 		} finally {
 			release(jedis);
 		}
 	}
+
+	private static boolean isTrue(Object reply) {
+		return reply instanceof Long && ((Long) reply).longValue() == 1;
+	}
 }
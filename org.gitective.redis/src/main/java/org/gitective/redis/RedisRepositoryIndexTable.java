@@ -63,35 +63,59 @@ public class RedisRepositoryIndexTable extends RedisClient implements
 
 	public RepositoryKey get(RepositoryName name) throws DhtException,
 			TimeoutException {
-		Jedis connection = acquire();
+		TableOperation operation = begin("get");
+		Jedis connection = null;
 		try {
-			byte[] key = connection.hget(REPOS, name.asBytes());
+			connection = acquire(REPOS);
+			byte[] nameKey = name.asBytes();
+			operation.command(REPOS.length + nameKey.length);
+			byte[] key = connection.hget(REPOS, nameKey);
+			operation.received(key).succeed();
 			return key != null ? RepositoryKey.fromBytes(key) : null;
 		} finally {
-			release(connection);
+			if (connection != null)
+				release(connection);
+			operation.end();
 		}
 	}
 
 	public void putUnique(RepositoryName name, RepositoryKey key)
 			throws DhtException, TimeoutException {
-		Jedis connection = acquire();
+		TableOperation operation = begin("putUnique");
+		Jedis connection = null;
 		try {
-			connection.hset(REPOS, name.asBytes(), key.asBytes());
+			connection = acquire(REPOS);
+			byte[] nameKey = name.asBytes();
+			byte[] value = key.asBytes();
+			operation.command(size(REPOS, nameKey, value));
+			connection.hset(REPOS, nameKey, value);
+			operation.succeed();
 		} finally {
-			release(connection);
+			if (connection != null)
+				release(connection);
+			operation.end();
 		}
 	}
 
 	public void remove(RepositoryName name, RepositoryKey key)
 			throws DhtException, TimeoutException {
-		Jedis connection = acquire();
+		TableOperation operation = begin("remove");
+		Jedis connection = null;
 		try {
+			connection = acquire(REPOS);
 			byte[] nameKey = name.asBytes();
+			operation.command(REPOS.length + nameKey.length);
 			byte[] value = connection.hget(REPOS, nameKey);
-			if (equal(value, key.asBytes()))
+			operation.received(value);
+			if (equal(value, key.asBytes())) {
+				operation.command(REPOS.length + nameKey.length);
 				connection.hdel(REPOS, nameKey);
+			}
+			operation.succeed();
 		} finally {
-			release(connection);
+			if (connection != null)
+				release(connection);
+			operation.end();
 		}
 	}
 }
@@ -26,6 +26,7 @@ import com.google.protobuf.InvalidProtocolBufferException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeoutException;
 
 import org.eclipse.jgit.generated.storage.dht.proto.GitStore.CachedPackInfo;
@@ -76,73 +77,100 @@ public class RedisRepositoryTable extends RedisClient implements
 	}
 
 	public RepositoryKey nextKey() throws DhtException {
-		Jedis connection = acquire();
+		TableOperation operation = begin("nextKey");
+		byte[] key = REPO_TABLE.append(KEY_SUFFIX);
+		Jedis connection = null;
 		try {
-			return RepositoryKey.fromInt(connection.incr(
-					REPO_TABLE.append(KEY_SUFFIX)).intValue());
+			connection = acquire(key);
+			operation.command(key.length);
+			RepositoryKey next = RepositoryKey.fromInt(connection.incr(key)
+					.intValue());
+			operation.succeed();
+			return next;
 		} finally {
-			release(connection);
+			if (connection != null)
+				release(connection);
+			operation.end();
 		}
 	}
 
 	public void put(RepositoryKey repo, ChunkInfo info, WriteBuffer buffer)
 			throws DhtException {
-		Jedis connection = acquire();
+		((RedisWriteBuffer) buffer).hset(repo.asBytes(), info.getChunkKey()
+				.asBytes(), info.getData().toByteArray());
+	}
+
+	/**
+	 * Get keys of all chunks recorded for repository
+	 * 
+	 * @param repo
+	 * @return chunk keys
+	 * @throws DhtException
+	 */
+	public Collection<ChunkKey> getChunks(RepositoryKey repo)
+			throws DhtException {
+		TableOperation operation = begin("getChunks");
+		byte[] key = repo.asBytes();
+		Jedis connection = null;
 		try {
-			connection.hset(repo.asBytes(), info.getChunkKey().asBytes(), info
-					.getData().toByteArray());
+			connection = acquire(key);
+			operation.command(key.length);
+			Set<byte[]> fields = connection.hkeys(key);
+			List<ChunkKey> chunks = new ArrayList<ChunkKey>(fields.size());
+			for (byte[] field : fields) {
+				operation.received(field);
+				chunks.add(ChunkKey.fromBytes(field));
+			}
+			operation.succeed();
+			return chunks;
 		} finally {
-			release(connection);
+			if (connection != null)
+				release(connection);
+			operation.end();
 		}
 	}
 
 	public void remove(RepositoryKey repo, ChunkKey chunk, WriteBuffer buffer)
 			throws DhtException {
-		Jedis connection = acquire();
-		try {
-			connection.hdel(repo.asBytes(), chunk.asBytes());
-		} finally {
-			release(connection);
-		}
+		((RedisWriteBuffer) buffer).hdel(repo.asBytes(), chunk.asBytes());
 	}
 
 	public Collection<CachedPackInfo> getCachedPacks(RepositoryKey repo)
 			throws DhtException, TimeoutException {
-		Jedis connection = acquire();
+		TableOperation operation = begin("getCachedPacks");
+		byte[] key = CACHE_PACK.append(repo.asBytes());
+		Jedis connection = null;
 		try {
-			Collection<byte[]> values = connection.hgetAll(
-					CACHE_PACK.append(repo.asBytes())).values();
+			connection = acquire(key);
+			operation.command(key.length);
+			Collection<byte[]> values = connection.hgetAll(key).values();
 			List<CachedPackInfo> out = new ArrayList<CachedPackInfo>(
 					values.size());
-			for (byte[] value : values)
+			for (byte[] value : values) {
+				operation.received(value);
 				out.add(CachedPackInfo.parseFrom(value));
+			}
+			operation.succeed();
 			return out;
 		} catch (InvalidProtocolBufferException e) {
 			throw new DhtException(e);
 		} finally {
-			release(connection);
+			if (connection != null)
+				release(connection);
+			operation.end();
 		}
 	}
 
 	public void put(RepositoryKey repo, CachedPackInfo info, WriteBuffer buffer)
 			throws DhtException {
 		CachedPackKey key = CachedPackKey.fromInfo(info);
-		Jedis connection = acquire();
-		try {
-			connection.hset(CACHE_PACK.append(repo.asBytes()), key.asBytes(),
-					info.toByteArray());
-		} finally {
-			release(connection);
-		}
+		((RedisWriteBuffer) buffer).hset(CACHE_PACK.append(repo.asBytes()),
+				key.asBytes(), info.toByteArray());
 	}
 
 	public void remove(RepositoryKey repo, CachedPackKey key, WriteBuffer buffer)
 			throws DhtException {
-		Jedis connection = acquire();
-		try {
-			connection.hdel(CACHE_PACK.append(repo.asBytes()), key.asBytes());
-		} finally {
-			release(connection);
-		}
+		((RedisWriteBuffer) buffer).hdel(CACHE_PACK.append(repo.asBytes()),
+				key.asBytes());
 	}
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Lua script run with EVALSHA, falling back to EVAL when the server has not
+ * cached the script yet
+ */
+public class RedisScript {
+
+	private static final String NO_SCRIPT = "NOSCRIPT";
+
+	private final byte[] script;
+
+	private final byte[] sha;
+
+	/**
+	 * Create script from source
+	 * 
+	 * @param source
+	 */
+	public RedisScript(String source) {
+		script = Constants.encode(source);
+		try {
+			sha = Constants.encode(ObjectId.fromRaw(
+					MessageDigest.getInstance("SHA-1").digest(script)).name());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Get script source
+	 * 
+	 * @return source bytes
+	 */
+	public byte[] getScript() {
+		return script;
+	}
+
+	/**
+	 * Get hex-encoded SHA-1 of script source
+	 * 
+	 * @return sha bytes
+	 */
+	public byte[] getSha() {
+		return sha;
+	}
+
+	/**
+	 * Load script into the server's script cache
+	 * 
+	 * @param connection
+	 * @return this script
+	 */
+	public RedisScript load(Jedis connection) {
+		connection.scriptLoad(script);
+		return this;
+	}
+
+	/**
+	 * Evaluate script on connection
+	 * 
+	 * @param connection
+	 * @param keyCount
+	 * @param params
+	 *            keys followed by arguments
+	 * @return script reply
+	 */
+	public Object eval(Jedis connection, int keyCount, byte[]... params) {
+		try {
+			return connection.evalsha(sha, keyCount, params);
+		} catch (JedisDataException e) {
+			if (!isMissing(e))
+				throw e;
+			return connection.eval(script,
+					Constants.encode(Integer.toString(keyCount)), params);
+		}
+	}
+
+	/**
+	 * Is the given failure a reply to an EVALSHA of an uncached script?
+	 * 
+	 * @param e
+	 * @return true if missing, false otherwise
+	 */
+	public static boolean isMissing(JedisDataException e) {
+		String message = e.getMessage();
+		return message != null && message.startsWith(NO_SCRIPT);
+	}
+}
@@ -21,17 +21,524 @@
  */
 package org.gitective.redis;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
 import org.eclipse.jgit.storage.dht.DhtException;
 import org.eclipse.jgit.storage.dht.spi.WriteBuffer;
 
+import redis.clients.jedis.BinaryClient;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+
 /**
  * Redis write buffer
+ * <p>
+ * Mutations are queued and sent as a single pipeline once the configured
+ * byte or operation threshold is reached or when {@link #flush()} is called.
  */
 public class RedisWriteBuffer implements WriteBuffer {
 
-	public void flush() throws DhtException {
+	/**
+	 * Default number of buffered bytes that triggers a flush
+	 */
+	public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+	/**
+	 * Default number of buffered operations that triggers a flush
+	 */
+	public static final int DEFAULT_MAX_OPERATIONS = 1000;
+
+	/**
+	 * Name flushes are recorded under
+	 */
+	public static final String NAME = "WriteBuffer";
+
+	/**
+	 * Buffered operation
+	 */
+	private static abstract class Operation {
+
+		final byte[] key;
+
+		final int size;
+
+		RedisScript script;
+
+		Operation(byte[] key, int size) {
+			this.key = key;
+			this.size = size;
+		}
+
+		abstract void send(BinaryClient client);
+	}
+
+	private final ConnectionProvider provider;
+
+	private final List<Operation> operations = new ArrayList<Operation>();
+
+	private int bytes;
+
+	private int maxBytes = DEFAULT_MAX_BYTES;
+
+	private int maxOperations = DEFAULT_MAX_OPERATIONS;
+
+	private boolean transactional;
+
+	private MetricsSink metrics = JmxMetricsSink.getDefault();
+
+	private BulkLoad bulk;
+
+	private final List<FutureTask<Void>> pending = new ArrayList<FutureTask<Void>>();
+
+	/**
+	 * Create write buffer that flushes to given connection provider
+	 * 
+	 * @param provider
+	 */
+	public RedisWriteBuffer(ConnectionProvider provider) {
+		this.provider = provider;
+	}
+
+	/**
+	 * Set number of buffered bytes that triggers a flush
+	 * 
+	 * @param maxBytes
+	 * @return this buffer
+	 */
+	public RedisWriteBuffer setMaxBytes(int maxBytes) {
+		this.maxBytes = maxBytes;
+		return this;
+	}
+
+	/**
+	 * Set number of buffered operations that triggers a flush
+	 * 
+	 * @param maxOperations
+	 * @return this buffer
+	 */
+	public RedisWriteBuffer setMaxOperations(int maxOperations) {
+		this.maxOperations = maxOperations;
+		return this;
+	}
+
+	/**
+	 * Set whether each flush is wrapped in a MULTI/EXEC transaction
+	 * 
+	 * @param transactional
+	 * @return this buffer
+	 */
+	public RedisWriteBuffer setTransactional(boolean transactional) {
+		this.transactional = transactional;
+		return this;
+	}
+
+	/**
+	 * Set bulk load that flushes run in the background of
+	 * 
+	 * @param bulk
+	 *            load or null to flush on the calling thread
+	 * @return this buffer
+	 */
+	RedisWriteBuffer setBulkLoad(BulkLoad bulk) {
+		this.bulk = bulk;
+		return this;
+	}
+
+	/**
+	 * Set sink that flushes are recorded to
+	 * 
+	 * @param metrics
+	 *            sink or null to not record flushes
+	 * @return this buffer
+	 */
+	public RedisWriteBuffer setMetrics(MetricsSink metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	/**
+	 * Queue setting a hash field
+	 * 
+	 * @param key
+	 * @param field
+	 * @param value
+	 * @return this buffer
+	 * @throws DhtException
+	 */
+	public RedisWriteBuffer hset(final byte[] key, final byte[] field,
+			final byte[] value) throws DhtException {
+		return add(new Operation(key, key.length + field.length
+				+ value.length) {
+
+			void send(BinaryClient client) {
+				client.hset(key, field, value);
+			}
+		});
+	}
+
+	/**
+	 * Queue deleting a hash field
+	 * 
+	 * @param key
+	 * @param field
+	 * @return this buffer
+	 * @throws DhtException
+	 */
+	public RedisWriteBuffer hdel(final byte[] key, final byte[] field)
+			throws DhtException {
+		return add(new Operation(key, key.length + field.length) {
+
+			void send(BinaryClient client) {
+				client.hdel(key, field);
+			}
+		});
+	}
+
+	/**
+	 * Queue setting a key
+	 * 
+	 * @param key
+	 * @param value
+	 * @return this buffer
+	 * @throws DhtException
+	 */
+	public RedisWriteBuffer set(final byte[] key, final byte[] value)
+			throws DhtException {
+		return add(new Operation(key, key.length + value.length) {
+
+			void send(BinaryClient client) {
+				client.set(key, value);
+			}
+		});
+	}
+
+	/**
+	 * Queue evaluating a script against a single key
+	 * <p>
+	 * The script is sent with EVALSHA, after loading it once at the start of
+	 * each flush that uses it.
+	 * 
+	 * @param script
+	 * @param key
+	 * @param args
+	 * @return this buffer
+	 * @throws DhtException
+	 */
+	public RedisWriteBuffer eval(final RedisScript script, final byte[] key,
+			byte[]... args) throws DhtException {
+		final byte[][] params = new byte[args.length + 1][];
+		params[0] = key;
+		System.arraycopy(args, 0, params, 1, args.length);
+		Operation operation = new Operation(key,
+				(int) RedisClient.size(params)) {
+
+			void send(BinaryClient client) {
+				client.evalsha(script.getSha(), 1, params);
+			}
+		};
+		operation.script = script;
+		return add(operation);
+	}
+
+	/**
+	 * Queue deleting a key
+	 * 
+	 * @param key
+	 * @return this buffer
+	 * @throws DhtException
+	 */
+	public RedisWriteBuffer del(final byte[] key) throws DhtException {
+		return add(new Operation(key, key.length) {
+
+			void send(BinaryClient client) {
+				client.del(key);
+			}
+		});
+	}
+
+	/**
+	 * Queue adding member to sorted set or updating its score
+	 * 
+	 * @param key
+	 * @param score
+	 * @param member
+	 * @return this buffer
+	 * @throws DhtException
+	 */
+	public RedisWriteBuffer zadd(final byte[] key, final double score,
+			final byte[] member) throws DhtException {
+		return add(new Operation(key, key.length + member.length + 8) {
+
+			void send(BinaryClient client) {
+				client.zadd(key, score, member);
+			}
+		});
+	}
+
+	/**
+	 * Queue removing member from sorted set
+	 * 
+	 * @param key
+	 * @param member
+	 * @return this buffer
+	 * @throws DhtException
+	 */
+	public RedisWriteBuffer zrem(final byte[] key, final byte[] member)
+			throws DhtException {
+		return add(new Operation(key, key.length + member.length) {
+
+			void send(BinaryClient client) {
+				client.zrem(key, member);
+			}
+		});
+	}
+
+	/**
+	 * Queue operation and flush if a threshold has been reached
+	 * 
+	 * @param operation
+	 * @return this buffer
+	 * @throws DhtException
+	 */
+	private synchronized RedisWriteBuffer add(Operation operation)
+			throws DhtException {
+		operations.add(operation);
+		bytes += operation.size;
+		if (bytes >= maxBytes || operations.size() >= maxOperations)
+			if (bulk != null)
+				startFlush();
+			else
+				flush();
+		return this;
+	}
+
+	public synchronized void flush() throws DhtException {
+		if (bulk != null) {
+			startFlush();
+			awaitFlushes(pending.size());
+			return;
+		}
+		if (operations.isEmpty())
+			return;
+
+		List<Operation> sending = new ArrayList<Operation>(operations);
+		operations.clear();
+		bytes = 0;
+		flush(sending);
+	}
+
+	/**
+	 * Start flushing buffered operations in the background of the bulk load,
+	 * waiting while all of its connections are busy
+	 * 
+	 * @throws DhtException
+	 */
+	private void startFlush() throws DhtException {
+		// Surface failures of earlier flushes before queuing more
+		int done = 0;
+		while (done < pending.size() && pending.get(done).isDone())
+			done++;
+		awaitFlushes(done);
+		if (operations.isEmpty())
+			return;
+
+		final List<Operation> sending = new ArrayList<Operation>(operations);
+		long size = bytes;
+		operations.clear();
+		bytes = 0;
+		pending.add(bulk.submit(new Callable<Void>() {
+
+			public Void call() throws DhtException {
+				flush(sending);
+				return null;
+			}
+		}, sending.size(), size));
+	}
+
+	/**
+	 * Wait for the oldest background flushes to complete
+	 * 
+	 * @param count
+	 * @throws DhtException
+	 *             first failure of the flushes waited for
+	 */
+	private void awaitFlushes(int count) throws DhtException {
+		List<FutureTask<Void>> waiting = pending.subList(0, count);
+		DhtException error = null;
+		for (FutureTask<Void> flush : waiting)
+			try {
+				flush.get();
+			} catch (InterruptedException e) {
+				if (error == null)
+					error = new DhtException(e);
+			} catch (ExecutionException e) {
+				if (error == null)
+					error = e.getCause() instanceof DhtException ? (DhtException) e
+							.getCause() : new DhtException(e.getCause());
+			}
+		waiting.clear();
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * Write operations and record the flush
+	 * 
+	 * @param sending
+	 * @throws DhtException
+	 */
+	private void flush(List<Operation> sending) throws DhtException {
+		TableOperation flush = new TableOperation(metrics, NAME, "flush");
+		try {
+			write(sending, flush);
+			flush.succeed();
+		} finally {
+			flush.end();
+		}
+	}
+
+	/**
+	 * Send operations to the nodes that own their keys
+	 * 
+	 * @param sending
+	 * @param flush
+	 * @throws DhtException
+	 */
+	private void write(List<Operation> sending, final TableOperation flush)
+			throws DhtException {
+		Map<ConnectionProvider, List<Operation>> nodes = new IdentityHashMap<ConnectionProvider, List<Operation>>();
+		for (Operation operation : sending) {
+			ConnectionProvider node = provider.route(operation.key);
+			List<Operation> nodeOperations = nodes.get(node);
+			if (nodeOperations == null) {
+				nodeOperations = new ArrayList<Operation>();
+				nodes.put(node, nodeOperations);
+			}
+			nodeOperations.add(operation);
+		}
+		// Nodes are only written to in parallel over a sharded provider's
+		// executor
+		if (nodes.size() == 1
+				|| !(provider instanceof ShardedConnectionProvider)) {
+			for (Entry<ConnectionProvider, List<Operation>> node : nodes
+					.entrySet())
+				send(node.getKey(), node.getValue(), flush);
+			return;
+		}
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(
+				nodes.size());
+		for (final Entry<ConnectionProvider, List<Operation>> node : nodes
+				.entrySet())
+			tasks.add(new Callable<Void>() {
+
+				public Void call() throws DhtException {
+					send(node.getKey(), node.getValue(), flush);
+					return null;
+				}
+			});
+		((ShardedConnectionProvider) provider).invokeAll(tasks);
+	}
+
+	/**
+	 * Send operations to node as a single pipeline
+	 * 
+	 * @param node
+	 * @param sending
+	 * @param flush
+	 * @throws DhtException
+	 */
+	private void send(ConnectionProvider node, List<Operation> sending,
+			TableOperation flush) throws DhtException {
+		long start = System.nanoTime();
+		Jedis connection = node.acquire();
+		MetricsSink sink = metrics;
+		if (sink != null)
+			sink.connectionWait(NAME, System.nanoTime() - start);
+		try {
+			BinaryClient client = connection.getClient();
+			// Scripts are loaded ahead of the pipeline so they are cached
+			// before any EVALSHA of them runs
+			Set<RedisScript> scripts = new LinkedHashSet<RedisScript>();
+			for (Operation operation : sending)
+				if (operation.script != null)
+					scripts.add(operation.script);
+			for (RedisScript script : scripts) {
+				client.scriptLoad(script.getScript());
+				flush.command(script.getScript().length);
+			}
+			if (transactional)
+				client.multi();
+			for (Operation operation : sending) {
+				operation.send(client);
+				flush.command(operation.size);
+			}
+			int replies = scripts.size() + sending.size();
+			if (transactional) {
+				client.exec();
+				flush.command(0).command(0);
+				replies += 2;
+			}
+
+			// Every reply must be read, even after a failure, so the
+			// connection is left clean
+			JedisDataException error = null;
+			Object reply = null;
+			for (int i = 0; i < replies; i++)
+				try {
+					reply = client.getOne();
+				} catch (JedisDataException e) {
+					reply = null;
+					if (error == null)
+						error = e;
+				}
+			// Commands that fail while the transaction runs are reported as
+			// elements of the EXEC reply
+			if (error == null && transactional && reply instanceof List)
+				for (Object result : (List<?>) reply)
+					if (result instanceof JedisDataException) {
+						error = (JedisDataException) result;
+						break;
+					}
+			if (error != null)
+				throw new DhtException(error);
+		} catch (JedisConnectionException e) {
+			// Replies may be left unread on the connection
+			node.releaseBroken(connection);
+			connection = null;
+			throw new DhtException(e);
+		} catch (JedisException e) {
+			throw new DhtException(e);
+		} finally {
+			if (connection != null)
+				node.release(connection);
+		}
 	}
 
-	public void abort() throws DhtException {
+	/**
+	 * Discard buffered operations
+	 * <p>
+	 * Flushes already started in the background of a bulk load cannot be
+	 * recalled, so this waits for them to end and drops their failures.
+	 */
+	public synchronized void abort() throws DhtException {
+		operations.clear();
+		bytes = 0;
+		try {
+			awaitFlushes(pending.size());
+		} catch (DhtException ignored) {
+			// Failures of aborted writes are not reported
+		}
 	}
 }
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Connection provider that sends writes to a primary and can send reads to
+ * replicas of that primary
+ * <p>
+ * Read connections go to the least busy of two randomly chosen replicas, as
+ * measured by the connections currently acquired from each. Replicas whose
+ * link to the primary is down, or whose last contact with the primary is older
+ * than the staleness bound a read asks for, are skipped. Reads fall back to
+ * the primary when no replica qualifies.
+ */
+public class ReplicaConnectionProvider implements ConnectionProvider {
+
+	/**
+	 * Staleness bound that accepts any replica whose link to the primary is up
+	 */
+	public static final long ANY_LAG = Long.MAX_VALUE;
+
+	/**
+	 * Default number of milliseconds between replication status checks of a
+	 * replica
+	 */
+	public static final long DEFAULT_CHECK_INTERVAL = 1000;
+
+	/**
+	 * Lag of a replica whose link to the primary is down
+	 */
+	private static final long DOWN = -1;
+
+	private static final String LINK_STATUS = "master_link_status:";
+
+	private static final String LAST_IO = "master_last_io_seconds_ago:";
+
+	/**
+	 * Replica and its load and replication status
+	 */
+	private static class Replica {
+
+		final ConnectionProvider provider;
+
+		final AtomicInteger active = new AtomicInteger();
+
+		volatile long lag = DOWN;
+
+		volatile long checked;
+
+		Replica(ConnectionProvider provider) {
+			this.provider = provider;
+		}
+	}
+
+	private final ConnectionProvider primary;
+
+	private volatile List<Replica> replicas = Collections.emptyList();
+
+	private final Map<Jedis, Replica> owners = Collections
+			.synchronizedMap(new IdentityHashMap<Jedis, Replica>());
+
+	private final Random random = new Random();
+
+	private long checkInterval = DEFAULT_CHECK_INTERVAL;
+
+	/**
+	 * Create provider for primary
+	 * 
+	 * @param primary
+	 */
+	public ReplicaConnectionProvider(ConnectionProvider primary) {
+		this.primary = primary;
+	}
+
+	/**
+	 * Add replica of the primary
+	 * 
+	 * @param replica
+	 * @return this provider
+	 */
+	public synchronized ReplicaConnectionProvider addReplica(
+			ConnectionProvider replica) {
+		List<Replica> updated = new ArrayList<Replica>(replicas);
+		updated.add(new Replica(replica));
+		replicas = updated;
+		return this;
+	}
+
+	/**
+	 * Set number of milliseconds between replication status checks of a
+	 * replica
+	 * 
+	 * @param millis
+	 * @return this provider
+	 */
+	public ReplicaConnectionProvider setCheckInterval(long millis) {
+		checkInterval = millis;
+		return this;
+	}
+
+	/**
+	 * Acquire connection to primary
+	 * 
+	 * @return connection
+	 */
+	public Jedis acquire() {
+		return primary.acquire();
+	}
+
+	public Jedis acquire(byte[] key) {
+		return primary.acquire(key);
+	}
+
+	public Jedis acquireReader(byte[] key, long maxLag) {
+		if (maxLag < 0)
+			return primary.acquire(key);
+		return acquireReplica(maxLag);
+	}
+
+	public ConnectionProvider route(byte[] key) {
+		return this;
+	}
+
+	/**
+	 * Acquire read connection to a replica no further behind the primary than
+	 * the given bound
+	 * 
+	 * @param maxLag
+	 *            staleness bound in seconds, {@link #ANY_LAG} to accept any
+	 *            replica whose link is up
+	 * @return connection to a replica, or to the primary if no replica
+	 *         qualifies
+	 */
+	public Jedis acquireReplica(long maxLag) {
+		List<Replica> current = replicas;
+		List<Replica> candidates = new ArrayList<Replica>(current.size());
+		for (Replica replica : current) {
+			long lag = lag(replica);
+			// Replicas that are not replicating may be serving a partial or
+			// old copy of the data
+			if (lag != DOWN && lag <= maxLag)
+				candidates.add(replica);
+		}
+		if (candidates.isEmpty())
+			return primary.acquire();
+
+		Replica replica = candidates.get(random.nextInt(candidates.size()));
+		if (candidates.size() > 1) {
+			Replica other = candidates.get(random.nextInt(candidates.size()));
+			if (other.active.get() < replica.active.get())
+				replica = other;
+		}
+		Jedis connection = replica.provider.acquire();
+		replica.active.incrementAndGet();
+		owners.put(connection, replica);
+		return connection;
+	}
+
+	/**
+	 * Get replication lag of replica, checking it if the last check is older
+	 * than the check interval
+	 * 
+	 * @param replica
+	 * @return lag in seconds, {@link #ANY_LAG} if unknown, or {@link #DOWN}
+	 *         if the replica is not replicating
+	 */
+	private long lag(Replica replica) {
+		long now = System.currentTimeMillis();
+		if (now - replica.checked < checkInterval)
+			return replica.lag;
+		replica.checked = now;
+
+		long lag = DOWN;
+		Jedis connection = null;
+		try {
+			connection = replica.provider.acquire();
+			String info = connection.info();
+			if ("up".equals(value(info, LINK_STATUS))) {
+				String lastIo = value(info, LAST_IO);
+				lag = lastIo != null ? Long.parseLong(lastIo) : ANY_LAG;
+			}
+		} catch (JedisException e) {
+			lag = DOWN;
+		} catch (NumberFormatException e) {
+			lag = ANY_LAG;
+		} finally {
+			if (connection != null)
+				replica.provider.release(connection);
+		}
+		replica.lag = lag;
+		return lag;
+	}
+
+	private static String value(String info, String field) {
+		int start = info.indexOf(field);
+		if (start == -1)
+			return null;
+		start += field.length();
+		int end = start;
+		while (end < info.length() && !Character.isWhitespace(info.charAt(end)))
+			end++;
+		return info.substring(start, end);
+	}
+
+	public ConnectionProvider release(Jedis connection) {
+		if (connection == null)
+			return this;
+		Replica replica = owners.remove(connection);
+		if (replica != null) {
+			replica.active.decrementAndGet();
+			replica.provider.release(connection);
+		} else
+			primary.release(connection);
+		return this;
+	}
+
+	public ConnectionProvider releaseBroken(Jedis connection) {
+		if (connection == null)
+			return this;
+		Replica replica = owners.remove(connection);
+		if (replica != null) {
+			replica.active.decrementAndGet();
+			replica.provider.releaseBroken(connection);
+		} else
+			primary.releaseBroken(connection);
+		return this;
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Reply to a command sent over a {@link MultiplexedTransport}
+ * <p>
+ * Values are decoded the same way Jedis decodes them: bulk replies as byte
+ * arrays, integers as {@link Long}, status replies as {@link String}, and
+ * multi-bulk replies as lists.
+ */
+public class Reply {
+
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private final RespConnection connection;
+
+	private Object value;
+
+	private JedisException error;
+
+	/**
+	 * Create reply to a command sent over connection
+	 * 
+	 * @param connection
+	 */
+	Reply(RespConnection connection) {
+		this.connection = connection;
+	}
+
+	void complete(Object value) {
+		this.value = value;
+		done.countDown();
+	}
+
+	void fail(JedisException error) {
+		this.error = error;
+		done.countDown();
+	}
+
+	/**
+	 * Is the reply available?
+	 * 
+	 * @return true if available, false otherwise
+	 */
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Wait for reply
+	 * 
+	 * @param timeout
+	 *            milliseconds to wait
+	 * @return value
+	 * @throws JedisDataException
+	 *             if the server replied with an error
+	 * @throws JedisConnectionException
+	 *             if the connection failed or the wait timed out, which
+	 *             fails the connection
+	 */
+	public Object get(long timeout) {
+		try {
+			if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+				// Replies on a connection that stopped answering cannot be
+				// trusted to arrive, so it is replaced
+				connection.fail(new IOException("Reply timed out after "
+						+ timeout + " ms"));
+				throw new JedisConnectionException("Reply timed out after "
+						+ timeout + " ms");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JedisConnectionException(e);
+		}
+		if (error != null)
+			throw error;
+		return value;
+	}
+}
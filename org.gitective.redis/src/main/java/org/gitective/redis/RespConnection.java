@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Single socket shared by many threads
+ * <p>
+ * A writer thread drains every command queued since its last write into one
+ * pipelined write, and a reader thread completes replies in the order their
+ * commands were written, which is the order Redis answers them in.
+ * <p>
+ * All socket I/O goes through two direct buffers owned by the connection.
+ * Bulk values are copied once, straight from the read buffer into an array of
+ * their exact size, and large arguments are streamed through the write
+ * buffer, so the JDK never allocates temporary direct buffers sized to a
+ * whole chunk.
+ */
+class RespConnection {
+
+	private static final int BUFFER_SIZE = 128 * 1024;
+
+	private static final int MAX_BATCH = 1024;
+
+	private static final byte[] CRLF = new byte[] { '\r', '\n' };
+
+	/**
+	 * Queued command
+	 */
+	private static class Request {
+
+		final byte[][] command;
+
+		final Reply reply;
+
+		Request(byte[][] command, Reply reply) {
+			this.command = command;
+			this.reply = reply;
+		}
+	}
+
+	private final SocketChannel channel;
+
+	private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+
+	private final Queue<Reply> inflight = new ConcurrentLinkedQueue<Reply>();
+
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	private final Thread writer;
+
+	private final Thread reader;
+
+	private volatile JedisConnectionException failure;
+
+	/**
+	 * Connect to server
+	 * 
+	 * @param host
+	 * @param port
+	 * @param timeout
+	 *            connect timeout in milliseconds
+	 * @param name
+	 *            prefix of the connection's thread names
+	 */
+	RespConnection(String host, int port, int timeout, String name) {
+		try {
+			channel = SocketChannel.open();
+			channel.socket().setTcpNoDelay(true);
+			channel.socket().connect(new InetSocketAddress(host, port),
+					timeout);
+		} catch (IOException e) {
+			throw new JedisConnectionException(e);
+		}
+		in.flip();
+
+		writer = new Thread(name + "-writer") {
+
+			public void run() {
+				write();
+			}
+		};
+		reader = new Thread(name + "-reader") {
+
+			public void run() {
+				read();
+			}
+		};
+		writer.setDaemon(true);
+		reader.setDaemon(true);
+		writer.start();
+		reader.start();
+	}
+
+	/**
+	 * Queue command
+	 * 
+	 * @param command
+	 * @return reply
+	 */
+	Reply send(byte[][] command) {
+		Reply reply = new Reply(this);
+		JedisConnectionException failed = failure;
+		if (failed != null) {
+			reply.fail(failed);
+			return reply;
+		}
+		pending.incrementAndGet();
+		queue.add(new Request(command, reply));
+		// The connection may have failed after the check above
+		if (failure != null)
+			failQueued();
+		return reply;
+	}
+
+	/**
+	 * Get number of commands queued or waiting for a reply
+	 * 
+	 * @return count
+	 */
+	int getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * Has this connection failed?
+	 * 
+	 * @return true if failed, false otherwise
+	 */
+	boolean isFailed() {
+		return failure != null;
+	}
+
+	/**
+	 * Close connection, failing every reply not yet received
+	 */
+	void close() {
+		fail(new IOException("Connection closed"));
+	}
+
+	/**
+	 * Fail connection, failing every reply not yet received
+	 * 
+	 * @param cause
+	 */
+	void fail(Throwable cause) {
+		synchronized (this) {
+			if (failure != null)
+				return;
+			failure = new JedisConnectionException(cause);
+		}
+		try {
+			channel.close();
+		} catch (IOException ignored) {
+			// Ignored
+		}
+		writer.interrupt();
+		failInflight();
+		failQueued();
+	}
+
+	private void failInflight() {
+		Reply reply;
+		while ((reply = inflight.poll()) != null)
+			reply.fail(failure);
+	}
+
+	private void failQueued() {
+		Request request;
+		while ((request = queue.poll()) != null)
+			request.reply.fail(failure);
+	}
+
+	private void write() {
+		List<Request> batch = new ArrayList<Request>();
+		int sent = 0;
+		try {
+			while (true) {
+				batch.add(queue.take());
+				queue.drainTo(batch, MAX_BATCH - 1);
+				for (sent = 0; sent < batch.size(); sent++) {
+					inflight.add(batch.get(sent).reply);
+					encode(batch.get(sent).command);
+				}
+				flush();
+				batch.clear();
+			}
+		} catch (Throwable e) {
+			// Replies must not wait on a writer that has stopped
+			fail(e);
+			// Replies added after the connection failed elsewhere and those
+			// never sent are not failed by it
+			failInflight();
+			for (int i = sent + 1; i < batch.size(); i++)
+				batch.get(i).reply.fail(failure);
+		}
+	}
+
+	private void encode(byte[][] command) throws IOException {
+		put((byte) '*');
+		putNumber(command.length);
+		put(CRLF);
+		for (byte[] arg : command) {
+			put((byte) '$');
+			putNumber(arg.length);
+			put(CRLF);
+			put(arg);
+			put(CRLF);
+		}
+	}
+
+	private void putNumber(int value) throws IOException {
+		if (value >= 10)
+			putNumber(value / 10);
+		put((byte) ('0' + value % 10));
+	}
+
+	private void put(byte b) throws IOException {
+		if (!out.hasRemaining())
+			flush();
+		out.put(b);
+	}
+
+	private void put(byte[] bytes) throws IOException {
+		int offset = 0;
+		while (offset < bytes.length) {
+			if (!out.hasRemaining())
+				flush();
+			int length = Math.min(out.remaining(), bytes.length - offset);
+			out.put(bytes, offset, length);
+			offset += length;
+		}
+	}
+
+	private void flush() throws IOException {
+		out.flip();
+		while (out.hasRemaining())
+			channel.write(out);
+		out.clear();
+	}
+
+	private void read() {
+		try {
+			while (true) {
+				Object value = readReply();
+				Reply reply = inflight.poll();
+				if (reply == null)
+					throw new IOException("Reply without a command");
+				pending.decrementAndGet();
+				if (value instanceof JedisDataException)
+					reply.fail((JedisDataException) value);
+				else
+					reply.complete(value);
+			}
+		} catch (Throwable e) {
+			// Replies must not wait on a reader that has stopped
+			fail(e);
+		}
+	}
+
+	private Object readReply() throws IOException {
+		int type = readByte();
+		switch (type) {
+		case '+':
+			return readLine();
+		case '-':
+			return new JedisDataException(readLine());
+		case ':':
+			return Long.valueOf(readLong());
+		case '$':
+			int length = (int) readLong();
+			if (length < 0)
+				return null;
+			byte[] bulk = new byte[length];
+			readFully(bulk);
+			readByte();
+			readByte();
+			return bulk;
+		case '*':
+			int count = (int) readLong();
+			if (count < 0)
+				return null;
+			List<Object> values = new ArrayList<Object>(count);
+			for (int i = 0; i < count; i++)
+				values.add(readReply());
+			return values;
+		default:
+			throw new IOException("Unknown reply type: " + type);
+		}
+	}
+
+	private int readByte() throws IOException {
+		if (!in.hasRemaining())
+			fill();
+		return in.get();
+	}
+
+	private void fill() throws IOException {
+		in.clear();
+		int read;
+		do {
+			read = channel.read(in);
+			if (read < 0)
+				throw new EOFException();
+		} while (read == 0);
+		in.flip();
+	}
+
+	private String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = readByte()) != '\r')
+			line.append((char) b);
+		readByte();
+		return line.toString();
+	}
+
+	private long readLong() throws IOException {
+		long value = 0;
+		boolean negative = false;
+		int b;
+		while ((b = readByte()) != '\r')
+			if (b == '-')
+				negative = true;
+			else
+				value = value * 10 + (b - '0');
+		readByte();
+		return negative ? -value : value;
+	}
+
+	private void readFully(byte[] bulk) throws IOException {
+		int offset = 0;
+		while (offset < bulk.length) {
+			if (!in.hasRemaining())
+				fill();
+			int length = Math.min(in.remaining(), bulk.length - offset);
+			in.get(bulk, offset, length);
+			offset += length;
+		}
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only segment files on disk that cold chunks are moved to
+ * <p>
+ * Values are appended at page-aligned offsets, so reading one touches no page
+ * shared with another value, leaving caching to the operating system's page
+ * cache. Full segments are read through a read-only memory mapping made once,
+ * while the segment still being appended to is read with positional reads.
+ * <p>
+ * A value is addressed by a pointer holding the id of the store, its segment
+ * number, offset, and length, and a CRC-32 of its bytes, so a pointer is never
+ * resolved against another store's segments and a damaged or overwritten value
+ * is detected. Appends take a lock on the directory, so processes sharing it
+ * over a filesystem with working file locks append to it safely. Each process
+ * should open a directory with only one store.
+ * 
+ * @see RedisChunkTable#setTierStore(SegmentStore)
+ */
+public class SegmentStore {
+
+	/**
+	 * Default maximum size of a segment file
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024 * 1024;
+
+	/**
+	 * Length of a pointer to a value
+	 */
+	public static final int POINTER_LENGTH = 28;
+
+	private static final int PAGE_SIZE = 4096;
+
+	private static final String PREFIX = "segment-";
+
+	private static final String SUFFIX = ".dat";
+
+	/**
+	 * File holding the id of the store, also locked while appending
+	 */
+	private static final String ID_FILE = "store.id";
+
+	private final File directory;
+
+	private final RandomAccessFile lockFile;
+
+	private final long id;
+
+	private final ConcurrentMap<Integer, MappedByteBuffer> mappings = new ConcurrentHashMap<Integer, MappedByteBuffer>();
+
+	private final ConcurrentMap<Integer, RandomAccessFile> readers = new ConcurrentHashMap<Integer, RandomAccessFile>();
+
+	private int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+	private volatile int segment;
+
+	private RandomAccessFile file;
+
+	/**
+	 * Open segment files in directory, creating it if missing
+	 * 
+	 * @param directory
+	 * @throws IOException
+	 */
+	public SegmentStore(File directory) throws IOException {
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create directory " + directory);
+		String[] names = directory.list();
+		if (names != null)
+			for (String name : names)
+				if (name.startsWith(PREFIX) && name.endsWith(SUFFIX))
+					try {
+						segment = Math.max(segment, Integer.parseInt(name
+								.substring(PREFIX.length(), name.length()
+										- SUFFIX.length())));
+					} catch (NumberFormatException ignored) {
+						// Not a segment file
+					}
+		lockFile = new RandomAccessFile(new File(directory, ID_FILE), "rw");
+		FileLock lock = lockFile.getChannel().lock();
+		try {
+			if (lockFile.length() < 8)
+				lockFile.writeLong(new SecureRandom().nextLong());
+			lockFile.seek(0);
+			id = lockFile.readLong();
+		} finally {
+			lock.release();
+		}
+		file = new RandomAccessFile(segmentFile(segment), "rw");
+	}
+
+	/**
+	 * Set size after which values are appended to a new segment file
+	 * 
+	 * @param size
+	 * @return this store
+	 */
+	public synchronized SegmentStore setSegmentSize(int size) {
+		segmentSize = size;
+		return this;
+	}
+
+	/**
+	 * Get directory of segment files
+	 * 
+	 * @return directory
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Get id of this store recorded in every pointer to its values
+	 * 
+	 * @return id
+	 */
+	public long getId() {
+		return id;
+	}
+
+	private File segmentFile(int number) {
+		return new File(directory, String.format("%s%08d%s", PREFIX,
+				Integer.valueOf(number), SUFFIX));
+	}
+
+	private void open(int number) throws IOException {
+		file.close();
+		file = new RandomAccessFile(segmentFile(number), "rw");
+		segment = number;
+	}
+
+	private static long align(long offset) {
+		return (offset + PAGE_SIZE - 1) & ~(PAGE_SIZE - 1L);
+	}
+
+	private static int checksum(byte[] value) {
+		CRC32 crc = new CRC32();
+		crc.update(value);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Append value
+	 * <p>
+	 * Values are only durable once {@link #sync()} returns.
+	 * 
+	 * @param value
+	 * @return pointer to value
+	 * @throws IOException
+	 */
+	public synchronized byte[] append(byte[] value) throws IOException {
+		long offset;
+		FileLock lock = lockFile.getChannel().lock();
+		try {
+			// Other processes may have moved on to later segments
+			while (segmentFile(segment + 1).isFile()) {
+				sync();
+				open(segment + 1);
+			}
+			offset = align(file.length());
+			if (offset > 0 && offset + value.length > segmentSize) {
+				sync();
+				open(segment + 1);
+				offset = 0;
+			}
+			FileChannel channel = file.getChannel();
+			ByteBuffer buffer = ByteBuffer.wrap(value);
+			while (buffer.hasRemaining())
+				channel.write(buffer, offset + buffer.position());
+		} finally {
+			lock.release();
+		}
+
+		ByteBuffer pointer = ByteBuffer.allocate(POINTER_LENGTH);
+		pointer.putLong(id).putInt(segment).putLong(offset)
+				.putInt(value.length).putInt(checksum(value));
+		return pointer.array();
+	}
+
+	/**
+	 * Force appended values to disk
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void sync() throws IOException {
+		file.getChannel().force(false);
+	}
+
+	/**
+	 * Read value
+	 * 
+	 * @param pointer
+	 * @return value
+	 * @throws IOException
+	 *             if the pointer is to another store, or the value is missing
+	 *             or damaged
+	 */
+	public byte[] read(byte[] pointer) throws IOException {
+		if (pointer.length != POINTER_LENGTH)
+			throw new IOException("Invalid segment pointer");
+		ByteBuffer decoded = ByteBuffer.wrap(pointer);
+		long store = decoded.getLong();
+		int number = decoded.getInt();
+		long offset = decoded.getLong();
+		int length = decoded.getInt();
+		int crc = decoded.getInt();
+		if (store != id)
+			throw new IOException(String.format(
+					"Value is in segment store %016x, not %016x in %s",
+					Long.valueOf(store), Long.valueOf(id), directory));
+		if (number < 0 || offset < 0 || length < 0
+				|| offset + length > Integer.MAX_VALUE)
+			throw new IOException("Invalid segment pointer");
+
+		byte[] value = new byte[length];
+		MappedByteBuffer mapping = map(number);
+		if (mapping != null) {
+			if (offset + length > mapping.capacity())
+				throw new IOException("Truncated segment "
+						+ segmentFile(number));
+			ByteBuffer view = mapping.duplicate();
+			view.position((int) offset);
+			view.get(value);
+		} else {
+			FileChannel channel = reader(number).getChannel();
+			ByteBuffer buffer = ByteBuffer.wrap(value);
+			while (buffer.hasRemaining())
+				if (channel.read(buffer, offset + buffer.position()) < 0)
+					throw new IOException("Truncated segment "
+							+ segmentFile(number));
+		}
+		if (checksum(value) != crc)
+			throw new IOException("Corrupt value in segment "
+					+ segmentFile(number));
+		return value;
+	}
+
+	/**
+	 * Get mapping of a full segment, mapping it the first time it is read
+	 * 
+	 * @param number
+	 * @return mapping, or null if the segment may still be appended to
+	 * @throws IOException
+	 */
+	private MappedByteBuffer map(int number) throws IOException {
+		Integer key = Integer.valueOf(number);
+		MappedByteBuffer mapping = mappings.get(key);
+		if (mapping != null)
+			return mapping;
+		// Only segments followed by another one no longer grow
+		if (number >= segment && !segmentFile(number + 1).isFile())
+			return null;
+
+		RandomAccessFile input = reader(number);
+		mapping = input.getChannel().map(MapMode.READ_ONLY, 0,
+				Math.min(input.length(), Integer.MAX_VALUE));
+		MappedByteBuffer existing = mappings.putIfAbsent(key, mapping);
+		return existing != null ? existing : mapping;
+	}
+
+	/**
+	 * Get file segment is read from
+	 * 
+	 * @param number
+	 * @return file
+	 * @throws IOException
+	 */
+	private RandomAccessFile reader(int number) throws IOException {
+		Integer key = Integer.valueOf(number);
+		RandomAccessFile input = readers.get(key);
+		if (input != null)
+			return input;
+		File segmentFile = segmentFile(number);
+		if (!segmentFile.isFile())
+			throw new IOException("Missing segment " + segmentFile);
+		input = new RandomAccessFile(segmentFile, "r");
+		RandomAccessFile existing = readers.putIfAbsent(key, input);
+		if (existing == null)
+			return input;
+		input.close();
+		return existing;
+	}
+
+	/**
+	 * Close the segment being appended to and the segments being read
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		file.close();
+		lockFile.close();
+		for (RandomAccessFile input : readers.values())
+			input.close();
+		readers.clear();
+		mappings.clear();
+	}
+}
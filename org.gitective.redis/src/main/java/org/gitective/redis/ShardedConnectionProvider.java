@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.storage.dht.DhtException;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Connection provider that spreads keys over several Redis nodes using a
+ * consistent-hash ring
+ * <p>
+ * Each node is placed on the ring at a number of points derived from its name,
+ * so adding or removing a node only moves the keys in the ranges it owns.
+ * Connections acquired without a key are routed to the node owning the empty
+ * key.
+ */
+public class ShardedConnectionProvider implements ConnectionProvider {
+
+	/**
+	 * Default number of ring points per node
+	 */
+	public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * Hash bytes with 64-bit FNV-1a followed by a MurmurHash3 finalizer
+	 * 
+	 * @param bytes
+	 * @return hash
+	 */
+	public static long hash(byte[] bytes) {
+		long hash = FNV_OFFSET;
+		for (byte b : bytes) {
+			hash ^= b & 0xff;
+			hash *= FNV_PRIME;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	private final int virtualNodes;
+
+	private final Map<String, ConnectionProvider> nodes = new LinkedHashMap<String, ConnectionProvider>();
+
+	private volatile TreeMap<Long, ConnectionProvider> ring = new TreeMap<Long, ConnectionProvider>();
+
+	private final Map<Jedis, ConnectionProvider> owners = Collections
+			.synchronizedMap(new IdentityHashMap<Jedis, ConnectionProvider>());
+
+	private Executor executor;
+
+	/**
+	 * Create sharded connection provider with the default number of ring
+	 * points per node
+	 */
+	public ShardedConnectionProvider() {
+		this(DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 * Create sharded connection provider with the given number of ring points
+	 * per node
+	 * 
+	 * @param virtualNodes
+	 */
+	public ShardedConnectionProvider(int virtualNodes) {
+		if (virtualNodes < 1)
+			throw new IllegalArgumentException(
+					"Virtual nodes must be positive");
+		this.virtualNodes = virtualNodes;
+	}
+
+	/**
+	 * Add node to ring
+	 * 
+	 * @param name
+	 *            stable name of node, such as its host and port
+	 * @param node
+	 * @return this provider
+	 */
+	public synchronized ShardedConnectionProvider add(String name,
+			ConnectionProvider node) {
+		nodes.put(name, node);
+		rebuild();
+		return this;
+	}
+
+	/**
+	 * Remove node from ring
+	 * 
+	 * @param name
+	 * @return this provider
+	 */
+	public synchronized ShardedConnectionProvider remove(String name) {
+		nodes.remove(name);
+		rebuild();
+		return this;
+	}
+
+	private void rebuild() {
+		TreeMap<Long, ConnectionProvider> updated = new TreeMap<Long, ConnectionProvider>();
+		for (Entry<String, ConnectionProvider> node : nodes.entrySet())
+			for (int i = 0; i < virtualNodes; i++)
+				updated.put(hash(Constants.encode(node.getKey() + '#' + i)),
+						node.getValue());
+		ring = updated;
+	}
+
+	/**
+	 * Get all nodes
+	 * 
+	 * @return nodes
+	 */
+	public synchronized Collection<ConnectionProvider> getNodes() {
+		return new ArrayList<ConnectionProvider>(nodes.values());
+	}
+
+	public ConnectionProvider route(byte[] key) {
+		TreeMap<Long, ConnectionProvider> current = ring;
+		if (current.isEmpty())
+			throw new IllegalStateException("No nodes have been added");
+		Entry<Long, ConnectionProvider> owner = current.ceilingEntry(Long
+				.valueOf(hash(key)));
+		return owner != null ? owner.getValue() : current.firstEntry()
+				.getValue();
+	}
+
+	public Jedis acquire(byte[] key) {
+		ConnectionProvider node = route(key);
+		Jedis connection = node.acquire(key);
+		owners.put(connection, node);
+		return connection;
+	}
+
+	public Jedis acquireReader(byte[] key, long maxLag) {
+		ConnectionProvider node = route(key);
+		Jedis connection = node.acquireReader(key, maxLag);
+		owners.put(connection, node);
+		return connection;
+	}
+
+	public Jedis acquire() {
+		return acquire(EMPTY);
+	}
+
+	public ConnectionProvider release(Jedis connection) {
+		if (connection != null) {
+			ConnectionProvider node = owners.remove(connection);
+			if (node != null)
+				node.release(connection);
+		}
+		return this;
+	}
+
+	public ConnectionProvider releaseBroken(Jedis connection) {
+		if (connection != null) {
+			ConnectionProvider node = owners.remove(connection);
+			if (node != null)
+				node.releaseBroken(connection);
+		}
+		return this;
+	}
+
+	/**
+	 * Set executor that per-node work is run on in parallel
+	 * 
+	 * @param executor
+	 * @return this provider
+	 */
+	public synchronized ShardedConnectionProvider setExecutor(Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * Get executor that per-node work is run on in parallel
+	 * <p>
+	 * A cached pool of daemon threads is created if no executor was set.
+	 * 
+	 * @return executor
+	 */
+	public synchronized Executor getExecutor() {
+		if (executor == null)
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "redis-shard-"
+							+ count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		return executor;
+	}
+
+	/**
+	 * Run tasks in parallel and wait for all of them to complete
+	 * <p>
+	 * The first task runs on the calling thread and the rest on this
+	 * provider's executor.
+	 * 
+	 * @param tasks
+	 * @throws DhtException
+	 */
+	public void invokeAll(List<Callable<Void>> tasks) throws DhtException {
+		if (tasks.isEmpty())
+			return;
+		List<FutureTask<Void>> futures = new ArrayList<FutureTask<Void>>(
+				tasks.size() - 1);
+		Executor pool = tasks.size() > 1 ? getExecutor() : null;
+		for (int i = 1; i < tasks.size(); i++) {
+			FutureTask<Void> future = new FutureTask<Void>(tasks.get(i));
+			futures.add(future);
+			pool.execute(future);
+		}
+		Throwable error = null;
+		try {
+			tasks.get(0).call();
+		} catch (Throwable e) {
+			error = e;
+		}
+		for (FutureTask<Void> future : futures)
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				if (error == null)
+					error = e.getCause();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (error == null)
+					error = e;
+			}
+		if (error instanceof DhtException)
+			throw (DhtException) error;
+		if (error instanceof RuntimeException)
+			throw (RuntimeException) error;
+		if (error instanceof Error)
+			throw (Error) error;
+		if (error != null)
+			throw new DhtException(error);
+	}
+}
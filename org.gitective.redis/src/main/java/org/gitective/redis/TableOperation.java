@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.util.List;
+
+import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.DhtException;
+
+/**
+ * Measurement of a single table operation
+ * <p>
+ * Counts commands and payload bytes while the operation runs, which may be on
+ * several threads when sharded, and reports them to a {@link MetricsSink} once
+ * the operation ends.
+ */
+public class TableOperation {
+
+	private final MetricsSink sink;
+
+	private final String table;
+
+	private final String name;
+
+	private final long start = System.nanoTime();
+
+	private long commands;
+
+	private long bytesOut;
+
+	private long bytesIn;
+
+	private boolean succeeded;
+
+	private boolean ended;
+
+	/**
+	 * Start operation
+	 * 
+	 * @param sink
+	 *            may be null to not record the operation
+	 * @param table
+	 * @param name
+	 */
+	public TableOperation(MetricsSink sink, String table, String name) {
+		this.sink = sink;
+		this.table = table;
+		this.name = name;
+	}
+
+	/**
+	 * Count command sent
+	 * 
+	 * @param bytes
+	 *            payload bytes of the command's keys, fields, and values
+	 * @return this operation
+	 */
+	public synchronized TableOperation command(long bytes) {
+		commands++;
+		bytesOut += bytes;
+		return this;
+	}
+
+	/**
+	 * Count value received
+	 * 
+	 * @param value
+	 *            may be null
+	 * @return this operation
+	 */
+	public synchronized TableOperation received(byte[] value) {
+		if (value != null)
+			bytesIn += value.length;
+		return this;
+	}
+
+	/**
+	 * Count values received
+	 * 
+	 * @param values
+	 *            may be null or contain nulls
+	 * @return this operation
+	 */
+	public synchronized TableOperation received(List<byte[]> values) {
+		if (values != null)
+			for (byte[] value : values)
+				if (value != null)
+					bytesIn += value.length;
+		return this;
+	}
+
+	/**
+	 * Mark operation as successful
+	 * 
+	 * @return this operation
+	 */
+	public synchronized TableOperation succeed() {
+		succeeded = true;
+		return this;
+	}
+
+	/**
+	 * End operation, recording it as failed unless {@link #succeed()} was
+	 * called
+	 * <p>
+	 * Only the first call records the operation.
+	 */
+	public void end() {
+		long nanos = System.nanoTime() - start;
+		synchronized (this) {
+			if (ended)
+				return;
+			ended = true;
+		}
+		if (sink != null)
+			sink.operation(table, name, nanos, commands, bytesOut, bytesIn,
+					!succeeded);
+	}
+
+	/**
+	 * Wrap callback so the operation ends when the callback is called
+	 * 
+	 * @param callback
+	 * @return wrapped callback
+	 */
+	public <T> AsyncCallback<T> wrap(final AsyncCallback<T> callback) {
+		return new AsyncCallback<T>() {
+
+			public void onSuccess(T result) {
+				succeed().end();
+				callback.onSuccess(result);
+			}
+
+			public void onFailure(DhtException error) {
+				end();
+				callback.onFailure(error);
+			}
+		};
+	}
+}
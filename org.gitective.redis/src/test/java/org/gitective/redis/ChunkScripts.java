@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.util.RawParseUtils;
+import org.gitective.redis.RespServer.Script;
+
+/**
+ * Java implementations of the {@link RedisChunkTable} scripts for the stand-in
+ * server
+ */
+public class ChunkScripts {
+
+	private static final int HEADER = 13;
+
+	private static final Long APPLIED = Long.valueOf(1);
+
+	private static final Long SKIPPED = Long.valueOf(0);
+
+	private static final Long MOVED = Long.valueOf(1);
+
+	private static final Long ALREADY_MOVED = Long.valueOf(2);
+
+	private static final Long CHANGED = Long.valueOf(-1);
+
+	private static final byte[] TIER = Constants.encode("tier");
+
+	private static final byte[][] FIELDS = { Constants.encode("meta"),
+			Constants.encode("index"), Constants.encode("data") };
+
+	private static final byte[][] ENCODED_FIELDS = { Constants.encode("zmeta"),
+			Constants.encode("zindex"), Constants.encode("zdata") };
+
+	private static int readInt(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xff) << 24
+				| (buffer[offset + 1] & 0xff) << 16
+				| (buffer[offset + 2] & 0xff) << 8
+				| (buffer[offset + 3] & 0xff);
+	}
+
+	private static void writeInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+
+	private static final Script MERGE_BLOB = new Script() {
+
+		public Object call(RespServer server, byte[][] keys, byte[][] args) {
+			byte[][] parts = args.clone();
+			String type = server.type(keys[0]);
+			if ("string".equals(type)) {
+				byte[] old = server.get(keys[0]);
+				int offset = HEADER;
+				for (int i = 0; i < 3; i++) {
+					int length = readInt(old, 1 + 4 * i);
+					if (parts[i].length == 0) {
+						parts[i] = new byte[length];
+						System.arraycopy(old, offset, parts[i], 0, length);
+					}
+					offset += length;
+				}
+			} else if ("hash".equals(type)) {
+				if (server.hget(keys[0], TIER) != null)
+					return SKIPPED;
+				for (int i = 0; i < 3; i++) {
+					if (parts[i].length > 0)
+						continue;
+					byte[] old = server.hget(keys[0], FIELDS[i]);
+					if (old != null) {
+						parts[i] = new byte[old.length + 1];
+						System.arraycopy(old, 0, parts[i], 1, old.length);
+					} else {
+						old = server.hget(keys[0], ENCODED_FIELDS[i]);
+						if (old != null)
+							parts[i] = old;
+					}
+				}
+				server.del(keys[0]);
+			}
+			byte[] blob = new byte[HEADER + parts[0].length + parts[1].length
+					+ parts[2].length];
+			blob[0] = 1;
+			int offset = HEADER;
+			for (int i = 0; i < 3; i++) {
+				writeInt(blob, 1 + 4 * i, parts[i].length);
+				System.arraycopy(parts[i], 0, blob, offset, parts[i].length);
+				offset += parts[i].length;
+			}
+			server.set(keys[0], blob);
+			return APPLIED;
+		}
+	};
+
+	private static final Script MOVE_TO_TIER = new Script() {
+
+		public Object call(RespServer server, byte[][] keys, byte[][] args) {
+			String type = server.type(keys[0]);
+			long size = 0;
+			if ("string".equals(type))
+				size = server.get(keys[0]).length - HEADER;
+			else if ("hash".equals(type)) {
+				if (server.hget(keys[0], TIER) != null)
+					return ALREADY_MOVED;
+				for (int i = 0; i < 3; i++) {
+					byte[] value = server.hget(keys[0], FIELDS[i]);
+					if (value != null)
+						size += value.length;
+					value = server.hget(keys[0], ENCODED_FIELDS[i]);
+					if (value != null)
+						size += value.length;
+				}
+			} else
+				return SKIPPED;
+			if (size != Long.parseLong(RawParseUtils.decode(args[1])))
+				return CHANGED;
+			server.del(keys[0]);
+			server.hset(keys[0], TIER, args[0]);
+			return MOVED;
+		}
+	};
+
+	private static final Script SEED_RECENCY = new Script() {
+
+		public Object call(RespServer server, byte[][] keys, byte[][] args) {
+			double score = Double.parseDouble(RawParseUtils.decode(args[0]));
+			long added = 0;
+			for (int i = 1; i < args.length; i++)
+				if (server.zscore(keys[0], args[i]) == null) {
+					server.zadd(keys[0], score, args[i]);
+					added++;
+				}
+			return Long.valueOf(added);
+		}
+	};
+
+	/**
+	 * Register chunk table scripts with server
+	 * 
+	 * @param server
+	 * @return server
+	 */
+	public static RespServer register(RespServer server) {
+		server.register(RedisChunkTable.MERGE_BLOB, MERGE_BLOB);
+		server.register(RedisChunkTable.MOVE_TO_TIER, MOVE_TO_TIER);
+		server.register(RedisChunkTable.SEED_RECENCY, SEED_RECENCY);
+		return server;
+	}
+}
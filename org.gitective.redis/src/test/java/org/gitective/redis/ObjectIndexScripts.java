@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.gitective.redis.RespServer.Script;
+
+/**
+ * Java implementations of the {@link RedisObjectIndexTable} scripts for the
+ * stand-in server
+ */
+public class ObjectIndexScripts {
+
+	private static final int ENTRY_HEADER = 21;
+
+	private static final Long APPLIED = Long.valueOf(1);
+
+	/**
+	 * Copy every entry of the object's current value except the one for the
+	 * given chunk
+	 * 
+	 * @param server
+	 * @param keys
+	 * @param args
+	 * @return remaining entries
+	 */
+	private static ByteArrayOutputStream keepOtherEntries(RespServer server,
+			byte[][] keys, byte[][] args) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] old = server.hget(keys[0], args[0]);
+		if (old == null)
+			return out;
+		int pos = 0;
+		while (pos < old.length) {
+			int size = ENTRY_HEADER + (old[pos + 20] & 0xff);
+			boolean same = true;
+			for (int i = 0; i < 20 && same; i++)
+				same = old[pos + i] == args[1][i];
+			if (!same)
+				out.write(old, pos, size);
+			pos += size;
+		}
+		return out;
+	}
+
+	private static final Script ADD_ENTRY = new Script() {
+
+		public Object call(RespServer server, byte[][] keys, byte[][] args) {
+			ByteArrayOutputStream out = keepOtherEntries(server, keys, args);
+			out.write(args[1], 0, args[1].length);
+			server.hset(keys[0], args[0], out.toByteArray());
+			return APPLIED;
+		}
+	};
+
+	private static final Script REMOVE_ENTRY = new Script() {
+
+		public Object call(RespServer server, byte[][] keys, byte[][] args) {
+			ByteArrayOutputStream out = keepOtherEntries(server, keys, args);
+			if (out.size() == 0)
+				server.hdel(keys[0], args[0]);
+			else
+				server.hset(keys[0], args[0], out.toByteArray());
+			return APPLIED;
+		}
+	};
+
+	private static final Script ADD_TO_FILTER = new Script() {
+
+		public Object call(RespServer server, byte[][] keys, byte[][] args) {
+			byte[] value = server.get(keys[0]);
+			if (value == null || value.length < ObjectFilter.HEADER)
+				return Long.valueOf(0);
+			ObjectFilter filter = new ObjectFilter(value.clone());
+			filter.add(ObjectFilter.hash(args[0], 0));
+			byte[] bitmap = filter.getValue();
+			int log = value.length - bitmap.length + args[0].length;
+			if (log > bitmap.length - ObjectFilter.HEADER) {
+				// Drop the log and move the epoch on
+				long epoch = filter.getEpoch() + 1;
+				for (int i = 7; i >= 0; i--, epoch >>>= 8)
+					bitmap[i] = (byte) epoch;
+				server.set(keys[0], bitmap);
+				return APPLIED;
+			}
+			byte[] updated = Arrays.copyOf(bitmap, value.length
+					+ args[0].length);
+			System.arraycopy(value, bitmap.length, updated, bitmap.length,
+					value.length - bitmap.length);
+			System.arraycopy(args[0], 0, updated, value.length,
+					args[0].length);
+			server.set(keys[0], updated);
+			return APPLIED;
+		}
+	};
+
+	private static final Script SCAN = new Script() {
+
+		public Object call(RespServer server, byte[][] keys, byte[][] args) {
+			return server.scan(args[1]);
+		}
+	};
+
+	/**
+	 * Register object index table scripts with server
+	 * 
+	 * @param server
+	 * @return server
+	 */
+	public static RespServer register(RespServer server) {
+		server.register(RedisObjectIndexTable.ADD_ENTRY, ADD_ENTRY);
+		server.register(RedisObjectIndexTable.REMOVE_ENTRY, REMOVE_ENTRY);
+		server.register(RedisObjectIndexTable.ADD_TO_FILTER, ADD_TO_FILTER);
+		server.register(RedisObjectIndexTable.SCAN, SCAN);
+		return server;
+	}
+}
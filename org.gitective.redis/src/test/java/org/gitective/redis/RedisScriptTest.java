@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.eclipse.jgit.lib.Constants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Unit tests running the Lua scripts of the tables on a redis-server and
+ * their Java implementations on a {@link RespServer}, checking both reply and
+ * leave the same values
+ * <p>
+ * The stand-in server only runs the Java implementations, so the other tests
+ * do not check the scripts themselves. These tests are skipped unless the
+ * <code>redis.port</code> system property names a redis-server, on the host
+ * named by <code>redis.host</code> or localhost. Only keys under a prefix
+ * unique to the run are written, and they are deleted afterwards.
+ */
+public class RedisScriptTest {
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private final String prefix = "jgit-redis-test:" + System.nanoTime() + ":";
+
+	private final List<byte[]> keys = new ArrayList<byte[]>();
+
+	private RespServer server;
+
+	private Jedis redis;
+
+	private Jedis standIn;
+
+	/**
+	 * Connect to redis-server and start stand-in server
+	 * 
+	 * @throws IOException
+	 */
+	@Before
+	public void before() throws IOException {
+		String port = System.getProperty("redis.port");
+		assumeTrue(port != null);
+		redis = new Jedis(System.getProperty("redis.host", "localhost"),
+				Integer.parseInt(port));
+		server = RefScripts.register(ObjectIndexScripts.register(ChunkScripts
+				.register(new RespServer()))).start();
+		standIn = new Jedis(server.getHost(), server.getPort());
+	}
+
+	/**
+	 * Delete keys written and stop stand-in server
+	 */
+	@After
+	public void after() {
+		if (redis != null) {
+			if (!keys.isEmpty())
+				redis.del(keys.toArray(new byte[keys.size()][]));
+			redis.disconnect();
+		}
+		if (standIn != null)
+			standIn.disconnect();
+		if (server != null)
+			server.stop();
+	}
+
+	private byte[] key(String name) {
+		byte[] key = Constants.encode(prefix + name);
+		keys.add(key);
+		return key;
+	}
+
+	private void set(byte[] key, byte[] value) {
+		redis.set(key, value);
+		standIn.set(key, value);
+	}
+
+	private void hset(byte[] key, String field, byte[] value) {
+		redis.hset(key, Constants.encode(field), value);
+		standIn.hset(key, Constants.encode(field), value);
+	}
+
+	private void zadd(byte[] key, double score, byte[] member) {
+		redis.zadd(key, score, member);
+		standIn.zadd(key, score, member);
+	}
+
+	/**
+	 * Run script on both servers and check they give the same reply and
+	 * leave the same values in its keys
+	 * 
+	 * @param script
+	 * @param keyCount
+	 * @param params
+	 * @return reply, with strings as lists of bytes
+	 */
+	private Object eval(RedisScript script, int keyCount, byte[]... params) {
+		Object reply = normalize(script.eval(redis, keyCount, params));
+		assertEquals(reply, normalize(script.eval(standIn, keyCount, params)));
+		for (int i = 0; i < keyCount; i++)
+			assertSameValue(params[i]);
+		return reply;
+	}
+
+	private static Object normalize(Object reply) {
+		if (reply instanceof byte[])
+			return Arrays.toString((byte[]) reply);
+		if (reply instanceof List) {
+			List<Object> normalized = new ArrayList<Object>();
+			for (Object element : (List<?>) reply)
+				normalized.add(normalize(element));
+			return normalized;
+		}
+		return reply;
+	}
+
+	private void assertSameValue(byte[] key) {
+		String type = redis.type(key);
+		assertEquals(type, standIn.type(key));
+		if ("string".equals(type))
+			assertArrayEquals(redis.get(key), standIn.get(key));
+		else if ("hash".equals(type))
+			assertEquals(fields(redis, key), fields(standIn, key));
+		else if ("zset".equals(type))
+			assertEquals(members(redis, key), members(standIn, key));
+	}
+
+	private static Map<Object, Object> fields(Jedis connection, byte[] key) {
+		Map<Object, Object> fields = new HashMap<Object, Object>();
+		for (Entry<byte[], byte[]> field : connection.hgetAll(key).entrySet())
+			fields.put(normalize(field.getKey()), normalize(field.getValue()));
+		return fields;
+	}
+
+	private static Map<Object, Object> members(Jedis connection, byte[] key) {
+		Map<Object, Object> members = new HashMap<Object, Object>();
+		for (byte[] member : connection.zrangeByScore(key, -Double.MAX_VALUE,
+				Double.MAX_VALUE))
+			members.put(normalize(member), connection.zscore(key, member));
+		return members;
+	}
+
+	private static byte[] bytes(int length, int fill) {
+		byte[] bytes = new byte[length];
+		Arrays.fill(bytes, (byte) fill);
+		return bytes;
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		int length = 0;
+		for (byte[] part : parts)
+			length += part.length;
+		byte[] all = new byte[length];
+		int offset = 0;
+		for (byte[] part : parts) {
+			System.arraycopy(part, 0, all, offset, part.length);
+			offset += part.length;
+		}
+		return all;
+	}
+
+	private static byte[] number(long value) {
+		return Constants.encode(Long.toString(value));
+	}
+
+	/**
+	 * Chunks are moved to a tier only while their size is unchanged
+	 */
+	@Test
+	public void moveToTier() {
+		byte[] hash = key("hash");
+		hset(hash, "meta", bytes(3, 1));
+		hset(hash, "index", bytes(5, 2));
+		hset(hash, "zdata", bytes(7, 3));
+		byte[] pointer = Constants.encode("segment:1");
+		assertEquals(Long.valueOf(-1), eval(RedisChunkTable.MOVE_TO_TIER, 1,
+				hash, pointer, number(14)));
+		assertEquals(Long.valueOf(1), eval(RedisChunkTable.MOVE_TO_TIER, 1,
+				hash, pointer, number(15)));
+		assertEquals(Long.valueOf(2), eval(RedisChunkTable.MOVE_TO_TIER, 1,
+				hash, pointer, number(15)));
+
+		byte[] blob = key("blob");
+		set(blob, concat(bytes(13, 0), bytes(10, 4)));
+		assertEquals(Long.valueOf(1), eval(RedisChunkTable.MOVE_TO_TIER, 1,
+				blob, pointer, number(10)));
+		assertEquals(Long.valueOf(0), eval(RedisChunkTable.MOVE_TO_TIER, 1,
+				key("missing"), pointer, number(10)));
+	}
+
+	/**
+	 * Hash rows are converted to blobs and blob values merged
+	 */
+	@Test
+	public void mergeBlob() {
+		byte[] chunk = key("chunk");
+		hset(chunk, "meta", bytes(3, 1));
+		hset(chunk, "zindex", bytes(5, 2));
+		assertEquals(Long.valueOf(1), eval(RedisChunkTable.MERGE_BLOB, 1,
+				chunk, EMPTY, EMPTY, bytes(7, 3)));
+		assertEquals(Long.valueOf(1), eval(RedisChunkTable.MERGE_BLOB, 1,
+				chunk, bytes(2, 5), EMPTY, EMPTY));
+
+		byte[] tiered = key("tiered");
+		hset(tiered, "tier", bytes(4, 6));
+		assertEquals(Long.valueOf(0), eval(RedisChunkTable.MERGE_BLOB, 1,
+				tiered, EMPTY, EMPTY, bytes(7, 3)));
+	}
+
+	/**
+	 * Only chunks missing from a recency set are added
+	 */
+	@Test
+	public void seedRecency() {
+		byte[] recency = key("recency");
+		zadd(recency, 1, bytes(1, 'a'));
+		assertEquals(Long.valueOf(1), eval(RedisChunkTable.SEED_RECENCY, 1,
+				recency, number(5), bytes(1, 'a'), bytes(1, 'b')));
+	}
+
+	/**
+	 * Entries of a bucket field are added, replaced, and removed by chunk
+	 */
+	@Test
+	public void addAndRemoveEntry() {
+		byte[] bucket = key("bucket");
+		byte[] field = bytes(20, 9);
+		byte[] first = bytes(20, 1);
+		byte[] second = bytes(20, 2);
+		eval(RedisObjectIndexTable.ADD_ENTRY, 1, bucket, field,
+				concat(first, new byte[] { 2 }, bytes(2, 7)));
+		eval(RedisObjectIndexTable.ADD_ENTRY, 1, bucket, field,
+				concat(second, new byte[] { 1 }, bytes(1, 8)));
+		eval(RedisObjectIndexTable.ADD_ENTRY, 1, bucket, field,
+				concat(first, new byte[] { 3 }, bytes(3, 6)));
+		eval(RedisObjectIndexTable.REMOVE_ENTRY, 1, bucket, field, second);
+		eval(RedisObjectIndexTable.REMOVE_ENTRY, 1, bucket, field, first);
+	}
+
+	/**
+	 * Objects are added to a built filter and its log, and a log grown larger
+	 * than the bitmap is dropped
+	 */
+	@Test
+	public void addToFilter() {
+		assertEquals(Long.valueOf(0), eval(RedisObjectIndexTable.ADD_TO_FILTER,
+				1, key("unbuilt"), bytes(8, 1)));
+		byte[] filter = key("filter");
+		set(filter, ObjectFilter.create(4).getValue());
+		for (int i = 1; i <= 8; i++)
+			assertEquals(Long.valueOf(1), eval(
+					RedisObjectIndexTable.ADD_TO_FILTER, 1, filter,
+					concat(bytes(4, i), bytes(4, 3 * i))));
+	}
+
+	/**
+	 * Refs are only put or removed when they have their expected value
+	 */
+	@Test
+	public void compareAndPut() {
+		byte[] refs = key("refs");
+		byte[] version = key("version");
+		byte[] name = Constants.encode("refs/heads/master");
+		byte[] one = bytes(20, 1);
+		byte[] two = bytes(20, 2);
+		byte[] no = Constants.encode("0");
+		byte[] yes = Constants.encode("1");
+		assertEquals(Long.valueOf(1), eval(RedisRefTable.COMPARE_AND_PUT, 2,
+				refs, version, name, no, EMPTY, one));
+		assertEquals(Long.valueOf(0), eval(RedisRefTable.COMPARE_AND_PUT, 2,
+				refs, version, name, no, EMPTY, two));
+		assertEquals(Long.valueOf(1), eval(RedisRefTable.COMPARE_AND_PUT, 2,
+				refs, version, name, yes, one, two));
+		assertEquals(Long.valueOf(0), eval(RedisRefTable.COMPARE_AND_REMOVE,
+				2, refs, version, name, yes, one));
+		eval(RedisRefTable.GET_ALL, 2, refs, version, no);
+		eval(RedisRefTable.GET_ALL, 2, refs, version, number(2));
+		assertEquals(Long.valueOf(1), eval(RedisRefTable.COMPARE_AND_REMOVE,
+				2, refs, version, name, yes, two));
+	}
+
+	/**
+	 * Batched updates either all apply or none do when atomic, and apply one
+	 * by one otherwise
+	 */
+	@Test
+	public void batchCompareAndPut() {
+		byte[] refs = key("refs");
+		byte[] version = key("version");
+		byte[] no = Constants.encode("0");
+		byte[] yes = Constants.encode("1");
+		byte[] master = Constants.encode("refs/heads/master");
+		byte[] topic = Constants.encode("refs/heads/topic");
+		byte[] one = bytes(20, 1);
+		byte[] two = bytes(20, 2);
+		eval(RedisRefTable.COMPARE_AND_PUT, 2, refs, version, topic, no,
+				EMPTY, one);
+		eval(RedisRefTable.BATCH_COMPARE_AND_PUT, 4, refs, refs, version,
+				version, yes, master, no, EMPTY, no, one, topic, yes, two, no,
+				one);
+		eval(RedisRefTable.BATCH_COMPARE_AND_PUT, 4, refs, refs, version,
+				version, no, master, no, EMPTY, no, one, topic, yes, two, no,
+				one);
+		eval(RedisRefTable.BATCH_COMPARE_AND_PUT, 4, refs, refs, version,
+				version, yes, master, yes, one, yes, EMPTY, topic, yes, one,
+				no, two);
+	}
+}
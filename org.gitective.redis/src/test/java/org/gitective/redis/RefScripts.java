@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.gitective.redis.RespServer.Script;
+
+/**
+ * Java implementations of the {@link RedisRefTable} scripts for the stand-in
+ * server
+ */
+public class RefScripts {
+
+	private static final byte[] ZERO = new byte[] { '0' };
+
+	private static final Long FAILED = Long.valueOf(0);
+
+	private static final Long APPLIED = Long.valueOf(1);
+
+	private static boolean isSet(byte[] flag) {
+		return flag.length == 1 && flag[0] == '1';
+	}
+
+	private static boolean matches(RespServer server, byte[] key, byte[] ref,
+			byte[] expectExists, byte[] expected) {
+		byte[] current = server.hget(key, ref);
+		if (isSet(expectExists))
+			return current != null && Arrays.equals(current, expected);
+		return current == null;
+	}
+
+	private static final Script COMPARE_AND_PUT = new Script() {
+
+		public Object call(RespServer server, byte[][] keys, byte[][] args) {
+			if (!matches(server, keys[0], args[0], args[1], args[2]))
+				return FAILED;
+			server.hset(keys[0], args[0], args[3]);
+			server.incr(keys[1]);
+			return APPLIED;
+		}
+	};
+
+	private static final Script COMPARE_AND_REMOVE = new Script() {
+
+		public Object call(RespServer server, byte[][] keys, byte[][] args) {
+			if (!matches(server, keys[0], args[0], args[1], args[2]))
+				return FAILED;
+			server.hdel(keys[0], args[0]);
+			server.incr(keys[1]);
+			return APPLIED;
+		}
+	};
+
+	private static final Script GET_ALL = new Script() {
+
+		public Object call(RespServer server, byte[][] keys, byte[][] args) {
+			byte[] version = server.get(keys[1]);
+			if (version == null)
+				version = ZERO;
+			List<Object> reply;
+			if (Arrays.equals(version, args[0]))
+				reply = new ArrayList<Object>(1);
+			else
+				reply = server.hgetAll(keys[0]);
+			reply.add(0, version);
+			return reply;
+		}
+	};
+
+	private static final Script BATCH_COMPARE_AND_PUT = new Script() {
+
+		public Object call(RespServer server, byte[][] keys, byte[][] args) {
+			int n = keys.length / 2;
+			List<Object> result = new ArrayList<Object>(n);
+			if (isSet(args[0])) {
+				for (int i = 0; i < n; i++)
+					if (!matches(server, keys, args, i)) {
+						for (int j = 0; j < n; j++)
+							result.add(FAILED);
+						return result;
+					}
+				for (int i = 0; i < n; i++) {
+					apply(server, keys, args, i);
+					result.add(APPLIED);
+				}
+			} else
+				for (int i = 0; i < n; i++)
+					if (matches(server, keys, args, i)) {
+						apply(server, keys, args, i);
+						result.add(APPLIED);
+					} else
+						result.add(FAILED);
+			return result;
+		}
+
+		private boolean matches(RespServer server, byte[][] keys,
+				byte[][] args, int i) {
+			int b = 1 + i * 5;
+			return RefScripts.matches(server, keys[i], args[b], args[b + 1],
+					args[b + 2]);
+		}
+
+		private void apply(RespServer server, byte[][] keys, byte[][] args,
+				int i) {
+			int b = 1 + i * 5;
+			if (isSet(args[b + 3]))
+				server.hdel(keys[i], args[b]);
+			else
+				server.hset(keys[i], args[b], args[b + 4]);
+			server.incr(keys[keys.length / 2 + i]);
+		}
+	};
+
+	/**
+	 * Register ref table scripts with server
+	 * 
+	 * @param server
+	 * @return server
+	 */
+	public static RespServer register(RespServer server) {
+		server.register(RedisRefTable.COMPARE_AND_PUT, COMPARE_AND_PUT);
+		server.register(RedisRefTable.COMPARE_AND_REMOVE, COMPARE_AND_REMOVE);
+		server.register(RedisRefTable.GET_ALL, GET_ALL);
+		server.register(RedisRefTable.BATCH_COMPARE_AND_PUT,
+				BATCH_COMPARE_AND_PUT);
+		return server;
+	}
+}
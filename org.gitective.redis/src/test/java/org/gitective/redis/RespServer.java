@@ -0,0 +1,954 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.util.RawParseUtils;
+
+/**
+ * In-process stand-in for a Redis server
+ * <p>
+ * Speaks the RESP protocol for the subset of commands issued by the DHT tables
+ * and keeps all data in memory. Every command runs under a single lock the
+ * same way a real server runs commands one at a time. Lua is not interpreted,
+ * each script used by the tables is instead registered with a Java
+ * implementation. Tests against this server only check those
+ * implementations, {@link RedisScriptTest} checks them against the scripts.
+ */
+public class RespServer {
+
+	/**
+	 * Java implementation of a Lua script
+	 */
+	public interface Script {
+
+		/**
+		 * Run script
+		 * <p>
+		 * Called with the server locked and may use the server's data access
+		 * methods. Integers should be returned as {@link Long}, strings as
+		 * byte arrays, and tables as lists.
+		 * 
+		 * @param server
+		 * @param keys
+		 * @param args
+		 * @return reply
+		 */
+		Object call(RespServer server, byte[][] keys, byte[][] args);
+	}
+
+	private static class StatusReply {
+
+		final String message;
+
+		StatusReply(String message) {
+			this.message = message;
+		}
+	}
+
+	private static class ErrorReply {
+
+		final String message;
+
+		ErrorReply(String message) {
+			this.message = message;
+		}
+	}
+
+	/**
+	 * Byte array usable as a map key
+	 */
+	private static class Key {
+
+		final byte[] bytes;
+
+		final int hash;
+
+		Key(byte[] bytes) {
+			this.bytes = bytes;
+			hash = Arrays.hashCode(bytes);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object obj) {
+			return obj instanceof Key && Arrays.equals(bytes, ((Key) obj).bytes);
+		}
+	}
+
+	/**
+	 * Sorted set of members and their scores
+	 */
+	private static class ZSet {
+
+		final Map<Key, Double> scores = new HashMap<Key, Double>();
+
+		List<Entry<Key, Double>> range(double min, double max) {
+			List<Entry<Key, Double>> range = new ArrayList<Entry<Key, Double>>();
+			for (Entry<Key, Double> entry : scores.entrySet()) {
+				double score = entry.getValue().doubleValue();
+				if (score >= min && score <= max)
+					range.add(entry);
+			}
+			Collections.sort(range, new Comparator<Entry<Key, Double>>() {
+
+				public int compare(Entry<Key, Double> e1, Entry<Key, Double> e2) {
+					int compare = e1.getValue().compareTo(e2.getValue());
+					if (compare != 0)
+						return compare;
+					byte[] b1 = e1.getKey().bytes;
+					byte[] b2 = e2.getKey().bytes;
+					for (int i = 0; i < Math.min(b1.length, b2.length); i++)
+						if (b1[i] != b2[i])
+							return (b1[i] & 0xff) - (b2[i] & 0xff);
+					return b1.length - b2.length;
+				}
+			});
+			return range;
+		}
+	}
+
+	private static final byte[] CRLF = new byte[] { '\r', '\n' };
+
+	private static final StatusReply OK = new StatusReply("OK");
+
+	private static final StatusReply PONG = new StatusReply("PONG");
+
+	private static final StatusReply QUEUED = new StatusReply("QUEUED");
+
+	private static final ErrorReply WRONG_TYPE = new ErrorReply(
+			"ERR Operation against a key holding the wrong kind of value");
+
+	private static final ErrorReply NO_SCRIPT = new ErrorReply(
+			"NOSCRIPT No matching script. Please use EVAL.");
+
+	private static final Long ZERO = Long.valueOf(0);
+
+	private static final Long ONE = Long.valueOf(1);
+
+	private final Map<Key, Object> data = new HashMap<Key, Object>();
+
+	private final Map<Key, Long> expires = new HashMap<Key, Long>();
+
+	private final Map<String, byte[]> config = new LinkedHashMap<String, byte[]>();
+
+	private final Map<String, Script> scripts = new HashMap<String, Script>();
+
+	private final Set<String> loaded = new HashSet<String>();
+
+	private final Set<Socket> clients = Collections
+			.synchronizedSet(new HashSet<Socket>());
+
+	private ServerSocket socket;
+
+	private volatile boolean replica;
+
+	/**
+	 * Set whether this server reports itself as a replica with its link to
+	 * the primary up
+	 * <p>
+	 * Data is not replicated, it must be written to each server.
+	 * 
+	 * @param replica
+	 * @return this server
+	 */
+	public RespServer setReplica(boolean replica) {
+		this.replica = replica;
+		return this;
+	}
+
+	/**
+	 * Register Java implementation of script
+	 * 
+	 * @param script
+	 * @param implementation
+	 * @return this server
+	 */
+	public synchronized RespServer register(RedisScript script,
+			Script implementation) {
+		scripts.put(RawParseUtils.decode(script.getSha()), implementation);
+		return this;
+	}
+
+	/**
+	 * Start accepting connections on an ephemeral loopback port
+	 * 
+	 * @return this server
+	 * @throws IOException
+	 */
+	public RespServer start() throws IOException {
+		socket = new ServerSocket(0, 50, InetAddress.getByName(getHost()));
+		Thread acceptor = new Thread("resp-server-" + getPort()) {
+
+			public void run() {
+				accept();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return this;
+	}
+
+	/**
+	 * Stop accepting connections and close all open connections
+	 * 
+	 * @return this server
+	 */
+	public RespServer stop() {
+		close(socket);
+		synchronized (clients) {
+			for (Socket client : clients)
+				close(client);
+			clients.clear();
+		}
+		return this;
+	}
+
+	/**
+	 * Get host the server is bound to
+	 * 
+	 * @return host
+	 */
+	public String getHost() {
+		return "127.0.0.1";
+	}
+
+	/**
+	 * Get port the server is bound to
+	 * 
+	 * @return port
+	 */
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Get string value
+	 * 
+	 * @param key
+	 * @return value or null if missing
+	 */
+	public byte[] get(byte[] key) {
+		return (byte[]) value(new Key(key), byte[].class);
+	}
+
+	/**
+	 * Increment integer value
+	 * 
+	 * @param key
+	 * @return incremented value
+	 */
+	public long incr(byte[] key) {
+		Key k = new Key(key);
+		byte[] current = (byte[]) value(k, byte[].class);
+		long next = current != null ? parse(current) + 1 : 1;
+		data.put(k, Constants.encode(Long.toString(next)));
+		return next;
+	}
+
+	/**
+	 * Get hash field
+	 * 
+	 * @param key
+	 * @param field
+	 * @return value or null if missing
+	 */
+	public byte[] hget(byte[] key, byte[] field) {
+		Map<Key, byte[]> hash = hash(new Key(key), false);
+		return hash != null ? hash.get(new Key(field)) : null;
+	}
+
+	/**
+	 * Set hash field
+	 * 
+	 * @param key
+	 * @param field
+	 * @param value
+	 * @return true if the field is new, false if it was replaced
+	 */
+	public boolean hset(byte[] key, byte[] field, byte[] value) {
+		return hash(new Key(key), true).put(new Key(field), value) == null;
+	}
+
+	/**
+	 * Delete hash field
+	 * 
+	 * @param key
+	 * @param field
+	 * @return true if deleted, false if missing
+	 */
+	public boolean hdel(byte[] key, byte[] field) {
+		Key k = new Key(key);
+		Map<Key, byte[]> hash = hash(k, false);
+		if (hash == null || hash.remove(new Key(field)) == null)
+			return false;
+		if (hash.isEmpty())
+			data.remove(k);
+		return true;
+	}
+
+	/**
+	 * Get all fields and values of hash
+	 * 
+	 * @param key
+	 * @return alternating fields and values
+	 */
+	public List<Object> hgetAll(byte[] key) {
+		Map<Key, byte[]> hash = hash(new Key(key), false);
+		if (hash == null)
+			return new ArrayList<Object>();
+		List<Object> all = new ArrayList<Object>(hash.size() * 2);
+		for (Entry<Key, byte[]> entry : hash.entrySet()) {
+			all.add(entry.getKey().bytes);
+			all.add(entry.getValue());
+		}
+		return all;
+	}
+
+	/**
+	 * Add member to sorted set or update its score
+	 * 
+	 * @param key
+	 * @param score
+	 * @param member
+	 * @return true if the member is new, false if its score was updated
+	 */
+	public boolean zadd(byte[] key, double score, byte[] member) {
+		return zset(new Key(key), true).scores.put(new Key(member),
+				Double.valueOf(score)) == null;
+	}
+
+	/**
+	 * Get score of sorted set member
+	 * 
+	 * @param key
+	 * @param member
+	 * @return score or null if missing
+	 */
+	public Double zscore(byte[] key, byte[] member) {
+		ZSet zset = zset(new Key(key), false);
+		return zset != null ? zset.scores.get(new Key(member)) : null;
+	}
+
+	/**
+	 * Remove member from sorted set
+	 * 
+	 * @param key
+	 * @param member
+	 * @return true if removed, false if missing
+	 */
+	public boolean zrem(byte[] key, byte[] member) {
+		Key k = new Key(key);
+		ZSet zset = zset(k, false);
+		if (zset == null || zset.scores.remove(new Key(member)) == null)
+			return false;
+		if (zset.scores.isEmpty())
+			data.remove(k);
+		return true;
+	}
+
+	/**
+	 * Does key match glob pattern of '?' and '*' wildcards?
+	 * 
+	 * @param pattern
+	 * @param p
+	 * @param key
+	 * @param k
+	 * @return true if matches, false otherwise
+	 */
+	private static boolean matches(byte[] pattern, int p, byte[] key, int k) {
+		for (; p < pattern.length; p++, k++) {
+			if (pattern[p] == '*') {
+				for (int rest = k; rest <= key.length; rest++)
+					if (matches(pattern, p + 1, key, rest))
+						return true;
+				return false;
+			}
+			if (k == key.length || (pattern[p] != '?' && pattern[p] != key[k]))
+				return false;
+		}
+		return k == key.length;
+	}
+
+	private void accept() {
+		while (!socket.isClosed()) {
+			final Socket client;
+			try {
+				client = socket.accept();
+			} catch (IOException e) {
+				return;
+			}
+			clients.add(client);
+			Thread handler = new Thread("resp-client-" + client.getPort()) {
+
+				public void run() {
+					try {
+						serve(client);
+					} catch (IOException ignored) {
+						// Client went away
+					} finally {
+						clients.remove(client);
+						close(client);
+					}
+				}
+			};
+			handler.setDaemon(true);
+			handler.start();
+		}
+	}
+
+	private void serve(Socket client) throws IOException {
+		client.setTcpNoDelay(true);
+		InputStream in = new BufferedInputStream(client.getInputStream());
+		OutputStream out = new BufferedOutputStream(client.getOutputStream());
+		List<byte[][]> transaction = null;
+		while (true) {
+			byte[][] command = read(in);
+			if (command == null)
+				return;
+			String name = RawParseUtils.decode(command[0]).toUpperCase();
+			Object reply;
+			if ("MULTI".equals(name)) {
+				transaction = new ArrayList<byte[][]>();
+				reply = OK;
+			} else if ("EXEC".equals(name)) {
+				if (transaction != null) {
+					reply = exec(transaction);
+					transaction = null;
+				} else
+					reply = new ErrorReply("ERR EXEC without MULTI");
+			} else if ("DISCARD".equals(name)) {
+				transaction = null;
+				reply = OK;
+			} else if (transaction != null) {
+				transaction.add(command);
+				reply = QUEUED;
+			} else if ("QUIT".equals(name)) {
+				write(out, OK);
+				out.flush();
+				return;
+			} else
+				reply = execute(command);
+			write(out, reply);
+			// Only flush once all pipelined commands have been answered
+			if (in.available() == 0)
+				out.flush();
+		}
+	}
+
+	private synchronized Object exec(List<byte[][]> transaction) {
+		List<Object> replies = new ArrayList<Object>(transaction.size());
+		for (byte[][] command : transaction)
+			replies.add(execute(command));
+		return replies;
+	}
+
+	private synchronized Object execute(byte[][] command) {
+		String name = RawParseUtils.decode(command[0]).toUpperCase();
+		try {
+			return execute(name, command);
+		} catch (WrongTypeException e) {
+			return WRONG_TYPE;
+		} catch (RuntimeException e) {
+			return new ErrorReply("ERR " + e.getMessage());
+		}
+	}
+
+	private Object execute(String name, byte[][] c) {
+		if ("PING".equals(name))
+			return PONG;
+		if ("SELECT".equals(name))
+			return OK;
+		if ("INFO".equals(name))
+			return Constants.encode(replica ? "redis_version:2.6.0\r\nrole:slave\r\n"
+					+ "master_link_status:up\r\nmaster_last_io_seconds_ago:0\r\n"
+					: "redis_version:2.6.0\r\nrole:master\r\n");
+		if ("SAVE".equals(name))
+			return OK;
+		if ("BGSAVE".equals(name))
+			return new StatusReply("Background saving started");
+		if ("FLUSHALL".equals(name) || "FLUSHDB".equals(name)) {
+			data.clear();
+			expires.clear();
+			return OK;
+		}
+		if ("CONFIG".equals(name))
+			return config(c);
+		if ("GET".equals(name))
+			return get(c[1]);
+		if ("SET".equals(name)) {
+			set(c[1], c[2]);
+			return OK;
+		}
+		if ("SETEX".equals(name)) {
+			set(c[1], c[3]);
+			expire(c[1], parse(c[2]));
+			return OK;
+		}
+		if ("SETNX".equals(name)) {
+			if (get(c[1]) != null)
+				return ZERO;
+			set(c[1], c[2]);
+			return ONE;
+		}
+		if ("EXPIRE".equals(name)) {
+			Key key = new Key(c[1]);
+			if (value(key, Object.class) == null)
+				return ZERO;
+			expire(c[1], parse(c[2]));
+			return ONE;
+		}
+		if ("GETRANGE".equals(name) || "SUBSTR".equals(name))
+			return range(c[1], parse(c[2]), parse(c[3]));
+		if ("TYPE".equals(name))
+			return new StatusReply(type(c[1]));
+		if ("DEL".equals(name)) {
+			long deleted = 0;
+			for (int i = 1; i < c.length; i++)
+				if (del(c[i]))
+					deleted++;
+			return Long.valueOf(deleted);
+		}
+		if ("EXISTS".equals(name))
+			return value(new Key(c[1]), Object.class) != null ? ONE : ZERO;
+		if ("MGET".equals(name)) {
+			List<Object> values = new ArrayList<Object>(c.length - 1);
+			for (int i = 1; i < c.length; i++) {
+				Object value = value(new Key(c[i]), Object.class);
+				values.add(value instanceof byte[] ? value : null);
+			}
+			return values;
+		}
+		if ("INCR".equals(name))
+			return Long.valueOf(incr(c[1]));
+		if ("HGET".equals(name))
+			return hget(c[1], c[2]);
+		if ("HSET".equals(name))
+			return hset(c[1], c[2], c[3]) ? ONE : ZERO;
+		if ("HDEL".equals(name)) {
+			long deleted = 0;
+			for (int i = 2; i < c.length; i++)
+				if (hdel(c[1], c[i]))
+					deleted++;
+			return Long.valueOf(deleted);
+		}
+		if ("HMGET".equals(name)) {
+			List<Object> values = new ArrayList<Object>(c.length - 2);
+			for (int i = 2; i < c.length; i++)
+				values.add(hget(c[1], c[i]));
+			return values;
+		}
+		if ("HGETALL".equals(name))
+			return hgetAll(c[1]);
+		if ("HKEYS".equals(name)) {
+			List<Object> all = hgetAll(c[1]);
+			List<Object> fields = new ArrayList<Object>(all.size() / 2);
+			for (int i = 0; i < all.size(); i += 2)
+				fields.add(all.get(i));
+			return fields;
+		}
+		if ("KEYS".equals(name))
+			return keys(c[1]);
+		if ("SCAN".equals(name)) {
+			byte[] pattern = new byte[] { '*' };
+			for (int i = 2; i + 1 < c.length; i += 2)
+				if ("MATCH".equalsIgnoreCase(RawParseUtils.decode(c[i])))
+					pattern = c[i + 1];
+			return scan(pattern);
+		}
+		if ("HLEN".equals(name)) {
+			Map<Key, byte[]> hash = hash(new Key(c[1]), false);
+			return Long.valueOf(hash != null ? hash.size() : 0);
+		}
+		if ("ZADD".equals(name)) {
+			long added = 0;
+			for (int i = 2; i + 1 < c.length; i += 2)
+				if (zadd(c[1], score(c[i]), c[i + 1]))
+					added++;
+			return Long.valueOf(added);
+		}
+		if ("ZREM".equals(name)) {
+			long removed = 0;
+			for (int i = 2; i < c.length; i++)
+				if (zrem(c[1], c[i]))
+					removed++;
+			return Long.valueOf(removed);
+		}
+		if ("ZSCORE".equals(name)) {
+			Double score = zscore(c[1], c[2]);
+			return score != null ? Constants.encode(score.toString()) : null;
+		}
+		if ("ZCARD".equals(name)) {
+			ZSet zset = zset(new Key(c[1]), false);
+			return Long.valueOf(zset != null ? zset.scores.size() : 0);
+		}
+		if ("ZRANGEBYSCORE".equals(name))
+			return rangeByScore(c);
+		if ("EVAL".equals(name)) {
+			String sha = sha(c[1]);
+			loaded.add(sha);
+			return eval(sha, c);
+		}
+		if ("EVALSHA".equals(name)) {
+			String sha = RawParseUtils.decode(c[1]);
+			if (!loaded.contains(sha))
+				return NO_SCRIPT;
+			return eval(sha, c);
+		}
+		if ("SCRIPT".equals(name))
+			return script(c);
+		return new ErrorReply("ERR unknown command '" + name + "'");
+	}
+
+	private Object rangeByScore(byte[][] c) {
+		List<Object> members = new ArrayList<Object>();
+		ZSet zset = zset(new Key(c[1]), false);
+		if (zset == null)
+			return members;
+		List<Entry<Key, Double>> range = zset.range(score(c[2]), score(c[3]));
+		int offset = 0;
+		int count = range.size();
+		if (c.length > 6 && "LIMIT".equalsIgnoreCase(RawParseUtils.decode(c[4]))) {
+			offset = (int) parse(c[5]);
+			count = (int) parse(c[6]);
+			if (count < 0)
+				count = range.size();
+		}
+		for (int i = offset; i < range.size() && i - offset < count; i++)
+			members.add(range.get(i).getKey().bytes);
+		return members;
+	}
+
+	private Object config(byte[][] c) {
+		String sub = RawParseUtils.decode(c[1]).toUpperCase();
+		if ("SET".equals(sub)) {
+			config.put(RawParseUtils.decode(c[2]), c[3]);
+			return OK;
+		}
+		if ("GET".equals(sub)) {
+			String name = RawParseUtils.decode(c[2]);
+			List<Object> values = new ArrayList<Object>();
+			for (Entry<String, byte[]> entry : config.entrySet())
+				if ("*".equals(name) || entry.getKey().equals(name)) {
+					values.add(Constants.encode(entry.getKey()));
+					values.add(entry.getValue());
+				}
+			return values;
+		}
+		return new ErrorReply("ERR CONFIG subcommand must be one of GET, SET");
+	}
+
+	private Object script(byte[][] c) {
+		String sub = RawParseUtils.decode(c[1]).toUpperCase();
+		if ("LOAD".equals(sub)) {
+			String sha = sha(c[2]);
+			if (!scripts.containsKey(sha))
+				return new ErrorReply("ERR script not supported by stand-in server");
+			loaded.add(sha);
+			return Constants.encode(sha);
+		}
+		if ("EXISTS".equals(sub)) {
+			List<Object> exists = new ArrayList<Object>(c.length - 2);
+			for (int i = 2; i < c.length; i++)
+				exists.add(loaded.contains(RawParseUtils.decode(c[i])) ? ONE
+						: ZERO);
+			return exists;
+		}
+		if ("FLUSH".equals(sub)) {
+			loaded.clear();
+			return OK;
+		}
+		return new ErrorReply("ERR Unknown SCRIPT subcommand");
+	}
+
+	private Object eval(String sha, byte[][] c) {
+		Script script = scripts.get(sha);
+		if (script == null)
+			return new ErrorReply("ERR script not supported by stand-in server");
+		int keyCount = (int) parse(c[2]);
+		byte[][] keys = Arrays.copyOfRange(c, 3, 3 + keyCount);
+		byte[][] args = Arrays.copyOfRange(c, 3 + keyCount, c.length);
+		return script.call(this, keys, args);
+	}
+
+	/**
+	 * Get keys matching pattern
+	 * 
+	 * @param pattern
+	 * @return keys
+	 */
+	public List<Object> keys(byte[] pattern) {
+		List<Object> keys = new ArrayList<Object>();
+		for (Key key : data.keySet())
+			if (matches(pattern, 0, key.bytes, 0))
+				keys.add(key.bytes);
+		return keys;
+	}
+
+	/**
+	 * Scan keys matching pattern, all in the first page
+	 * 
+	 * @param pattern
+	 * @return reply holding the final cursor and the keys
+	 */
+	public List<Object> scan(byte[] pattern) {
+		List<Object> page = new ArrayList<Object>(2);
+		page.add(Constants.encode("0"));
+		page.add(keys(pattern));
+		return page;
+	}
+
+	/**
+	 * Set string value
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	public void set(byte[] key, byte[] value) {
+		Key k = new Key(key);
+		data.put(k, value);
+		expires.remove(k);
+	}
+
+	/**
+	 * Delete key
+	 * 
+	 * @param key
+	 * @return true if deleted, false if missing
+	 */
+	public boolean del(byte[] key) {
+		Key k = new Key(key);
+		boolean existed = value(k, Object.class) != null;
+		data.remove(k);
+		expires.remove(k);
+		return existed;
+	}
+
+	/**
+	 * Get type of value
+	 * 
+	 * @param key
+	 * @return "string", "hash", "zset", or "none" if missing
+	 */
+	public String type(byte[] key) {
+		Object value = value(new Key(key), Object.class);
+		if (value == null)
+			return "none";
+		if (value instanceof ZSet)
+			return "zset";
+		return value instanceof byte[] ? "string" : "hash";
+	}
+
+	private byte[] range(byte[] key, long start, long end) {
+		byte[] value = get(key);
+		if (value == null)
+			return new byte[0];
+		if (start < 0)
+			start = Math.max(0, value.length + start);
+		if (end < 0)
+			end = value.length + end;
+		end = Math.min(end, value.length - 1);
+		if (start > end)
+			return new byte[0];
+		return Arrays.copyOfRange(value, (int) start, (int) end + 1);
+	}
+
+	private void expire(byte[] key, long seconds) {
+		expires.put(new Key(key),
+				Long.valueOf(System.currentTimeMillis() + seconds * 1000));
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<Key, byte[]> hash(Key key, boolean create) {
+		Map<Key, byte[]> hash = (Map<Key, byte[]>) value(key, Map.class);
+		if (hash == null && create) {
+			hash = new HashMap<Key, byte[]>();
+			data.put(key, hash);
+		}
+		return hash;
+	}
+
+	private ZSet zset(Key key, boolean create) {
+		ZSet zset = (ZSet) value(key, ZSet.class);
+		if (zset == null && create) {
+			zset = new ZSet();
+			data.put(key, zset);
+		}
+		return zset;
+	}
+
+	private Object value(Key key, Class<?> type) {
+		Long deadline = expires.get(key);
+		if (deadline != null
+				&& deadline.longValue() <= System.currentTimeMillis()) {
+			expires.remove(key);
+			data.remove(key);
+			return null;
+		}
+		Object value = data.get(key);
+		if (value != null && !type.isInstance(value))
+			throw new WrongTypeException();
+		return value;
+	}
+
+	private static class WrongTypeException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	private static String sha(byte[] script) {
+		try {
+			return ObjectId.fromRaw(
+					MessageDigest.getInstance("SHA-1").digest(script)).name();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static long parse(byte[] value) {
+		return Long.parseLong(RawParseUtils.decode(value));
+	}
+
+	private static double score(byte[] value) {
+		String score = RawParseUtils.decode(value);
+		if ("-inf".equalsIgnoreCase(score))
+			return Double.NEGATIVE_INFINITY;
+		if ("+inf".equalsIgnoreCase(score) || "inf".equalsIgnoreCase(score))
+			return Double.POSITIVE_INFINITY;
+		return Double.parseDouble(score);
+	}
+
+	private static byte[][] read(InputStream in) throws IOException {
+		int type = in.read();
+		if (type == -1)
+			return null;
+		if (type != '*')
+			throw new IOException("Unsupported request type: " + (char) type);
+		byte[][] command = new byte[(int) readLong(in)][];
+		for (int i = 0; i < command.length; i++) {
+			if (in.read() != '$')
+				throw new IOException("Expected bulk argument");
+			byte[] arg = new byte[(int) readLong(in)];
+			readFully(in, arg);
+			in.read();
+			in.read();
+			command[i] = arg;
+		}
+		return command;
+	}
+
+	private static long readLong(InputStream in) throws IOException {
+		long value = 0;
+		boolean negative = false;
+		int b;
+		while ((b = in.read()) != '\r') {
+			if (b == -1)
+				throw new EOFException();
+			if (b == '-')
+				negative = true;
+			else
+				value = value * 10 + (b - '0');
+		}
+		in.read();
+		return negative ? -value : value;
+	}
+
+	private static void readFully(InputStream in, byte[] buffer)
+			throws IOException {
+		int offset = 0;
+		while (offset < buffer.length) {
+			int read = in.read(buffer, offset, buffer.length - offset);
+			if (read == -1)
+				throw new EOFException();
+			offset += read;
+		}
+	}
+
+	private static void write(OutputStream out, Object reply)
+			throws IOException {
+		if (reply == null)
+			out.write(Constants.encode("$-1\r\n"));
+		else if (reply instanceof byte[]) {
+			byte[] bulk = (byte[]) reply;
+			writeLine(out, '$', Integer.toString(bulk.length));
+			out.write(bulk);
+			out.write(CRLF);
+		} else if (reply instanceof Number)
+			writeLine(out, ':', reply.toString());
+		else if (reply instanceof StatusReply)
+			writeLine(out, '+', ((StatusReply) reply).message);
+		else if (reply instanceof ErrorReply)
+			writeLine(out, '-', ((ErrorReply) reply).message);
+		else if (reply instanceof List) {
+			List<?> replies = (List<?>) reply;
+			writeLine(out, '*', Integer.toString(replies.size()));
+			for (Iterator<?> it = replies.iterator(); it.hasNext();)
+				write(out, it.next());
+		} else
+			throw new IllegalArgumentException("Unsupported reply: " + reply);
+	}
+
+	private static void writeLine(OutputStream out, char type, String line)
+			throws IOException {
+		out.write(type);
+		out.write(Constants.encode(line));
+		out.write(CRLF);
+	}
+
+	private static void close(Closeable closeable) {
+		if (closeable == null)
+			return;
+		try {
+			closeable.close();
+		} catch (IOException ignored) {
+			// Ignored
+		}
+	}
+}
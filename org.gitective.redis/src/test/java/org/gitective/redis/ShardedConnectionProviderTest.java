@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.storage.dht.ChunkKey;
+import org.eclipse.jgit.storage.dht.PackChunk;
+import org.eclipse.jgit.storage.dht.RepositoryKey;
+import org.eclipse.jgit.storage.dht.spi.Context;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Unit tests of key routing over {@link ShardedConnectionProvider} nodes, each
+ * a {@link RespServer}
+ */
+public class ShardedConnectionProviderTest {
+
+	private static final int KEYS = 3000;
+
+	private final List<RespServer> servers = new ArrayList<RespServer>();
+
+	private final Map<ConnectionProvider, RespServer> owners = new IdentityHashMap<ConnectionProvider, RespServer>();
+
+	private ShardedConnectionProvider sharded;
+
+	/**
+	 * Start three nodes
+	 * 
+	 * @throws IOException
+	 */
+	@Before
+	public void before() throws IOException {
+		sharded = new ShardedConnectionProvider();
+		for (int i = 0; i < 3; i++)
+			sharded.add("node" + i, node());
+	}
+
+	/**
+	 * Stop nodes
+	 */
+	@After
+	public void after() {
+		for (RespServer server : servers)
+			server.stop();
+	}
+
+	private ConnectionProvider node() throws IOException {
+		RespServer server = ChunkScripts.register(new RespServer()).start();
+		servers.add(server);
+		ConnectionProvider node = new DefaultConnectionProvider(
+				server.getHost(), server.getPort());
+		owners.put(node, server);
+		return node;
+	}
+
+	private static byte[] key(int i) {
+		return Constants.encode("key" + i);
+	}
+
+	private List<ConnectionProvider> routes() {
+		List<ConnectionProvider> routes = new ArrayList<ConnectionProvider>(
+				KEYS);
+		for (int i = 0; i < KEYS; i++)
+			routes.add(sharded.route(key(i)));
+		return routes;
+	}
+
+	/**
+	 * Keys are spread over every node and routed the same way by a ring
+	 * with the same nodes
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void ringPlacement() throws IOException {
+		List<ConnectionProvider> routes = routes();
+		Map<ConnectionProvider, Integer> counts = new IdentityHashMap<ConnectionProvider, Integer>();
+		for (ConnectionProvider node : routes) {
+			Integer count = counts.get(node);
+			counts.put(node, Integer.valueOf(count != null ? count
+					.intValue() + 1 : 1));
+		}
+		assertEquals(3, counts.size());
+		for (Integer count : counts.values())
+			assertTrue(count.intValue() > KEYS / 5
+					&& count.intValue() < KEYS / 2);
+
+		ShardedConnectionProvider same = new ShardedConnectionProvider();
+		List<ConnectionProvider> nodes = new ArrayList<ConnectionProvider>(
+				sharded.getNodes());
+		for (int i = nodes.size() - 1; i >= 0; i--)
+			same.add("node" + i, nodes.get(i));
+		for (int i = 0; i < KEYS; i++)
+			assertSame(routes.get(i), same.route(key(i)));
+	}
+
+	/**
+	 * Adding a node only moves keys to it
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void rebalanceOnAdd() throws IOException {
+		List<ConnectionProvider> before = routes();
+		ConnectionProvider added = node();
+		sharded.add("node3", added);
+		List<ConnectionProvider> after = routes();
+		int moved = 0;
+		for (int i = 0; i < KEYS; i++)
+			if (before.get(i) != after.get(i)) {
+				assertSame(added, after.get(i));
+				moved++;
+			}
+		assertTrue(moved > KEYS / 10 && moved < KEYS * 2 / 5);
+	}
+
+	/**
+	 * Removing a node only moves the keys it owned
+	 */
+	@Test
+	public void rebalanceOnRemove() {
+		ConnectionProvider removed = sharded.getNodes().iterator().next();
+		List<ConnectionProvider> before = routes();
+		sharded.remove("node0");
+		List<ConnectionProvider> after = routes();
+		for (int i = 0; i < KEYS; i++)
+			if (before.get(i) == removed)
+				assertTrue(after.get(i) != removed);
+			else
+				assertSame(before.get(i), after.get(i));
+	}
+
+	/**
+	 * Connections acquired for a key go to the node that owns it
+	 */
+	@Test
+	public void acquireByKey() {
+		for (int i = 0; i < 100; i++) {
+			byte[] key = key(i);
+			Jedis connection = sharded.acquire(key);
+			try {
+				connection.set(key, key);
+			} finally {
+				sharded.release(connection);
+			}
+			assertArrayEquals(key, owners.get(sharded.route(key)).get(key));
+		}
+	}
+
+	/**
+	 * A write buffer flush splits its operations into one batch per node
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void splitWritesByNode() throws Exception {
+		RedisWriteBuffer buffer = new RedisWriteBuffer(sharded);
+		for (int i = 0; i < KEYS; i++)
+			buffer.set(key(i), key(i));
+		buffer.flush();
+		for (int i = 0; i < KEYS; i++) {
+			byte[] key = key(i);
+			RespServer owner = owners.get(sharded.route(key));
+			for (RespServer server : servers)
+				if (server == owner)
+					assertArrayEquals(key, server.get(key));
+				else
+					assertNull(server.get(key));
+		}
+	}
+
+	/**
+	 * A read of chunks on several nodes is split into one batch per node
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void splitReadsByNode() throws Exception {
+		RedisChunkTable table = new RedisChunkTable(sharded);
+		RedisWriteBuffer buffer = new RedisWriteBuffer(sharded);
+		RepositoryKey repo = RepositoryKey.fromInt(1);
+		List<ChunkKey> chunks = new ArrayList<ChunkKey>();
+		for (int i = 0; i < 100; i++) {
+			ChunkKey chunk = ChunkKey.create(repo,
+					ObjectId.fromRaw(Constants.newMessageDigest().digest(
+							key(i))));
+			chunks.add(chunk);
+			PackChunk.Members members = new PackChunk.Members();
+			members.setChunkKey(chunk);
+			members.setChunkData(chunk.asBytes());
+			table.put(members, buffer);
+		}
+		buffer.flush();
+		for (RespServer server : servers) {
+			int stored = 0;
+			for (ChunkKey chunk : chunks)
+				if (!"none".equals(server.type(chunk.asBytes())))
+					stored++;
+			assertTrue(stored > 0 && stored < chunks.size());
+		}
+
+		SyncCallback<Collection<PackChunk.Members>> callback = new SyncCallback<Collection<PackChunk.Members>>();
+		table.get(Context.READ_REPAIR, new HashSet<ChunkKey>(chunks), callback);
+		Collection<PackChunk.Members> read = callback.get();
+		assertEquals(chunks.size(), read.size());
+		for (PackChunk.Members members : read)
+			assertArrayEquals(members.getChunkKey().asBytes(),
+					members.getChunkData());
+	}
+
+	/**
+	 * A single node owns every key
+	 */
+	@Test
+	public void singleNode() {
+		ConnectionProvider node = sharded.getNodes().iterator().next();
+		assertSame(node, node.route(key(0)));
+		assertSame(node, node.route(key(1)));
+	}
+
+	/**
+	 * Reads go to a replica only when a staleness bound is given and its link
+	 * to the primary is up
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void replicaReads() throws IOException {
+		ConnectionProvider primary = node();
+		ConnectionProvider replica = node();
+		ReplicaConnectionProvider replicated = new ReplicaConnectionProvider(
+				primary).addReplica(replica).setCheckInterval(0);
+		byte[] key = key(0);
+		owners.get(replica).set(key, key);
+		assertSame(replicated, replicated.route(key));
+
+		Jedis connection = replicated.acquireReader(key,
+				ReplicaConnectionProvider.ANY_LAG);
+		try {
+			assertNull(connection.get(key));
+		} finally {
+			replicated.release(connection);
+		}
+		owners.get(replica).setReplica(true);
+
+		connection = replicated.acquireReader(key, -1);
+		try {
+			assertNull(connection.get(key));
+		} finally {
+			replicated.release(connection);
+		}
+		connection = replicated.acquireReader(key,
+				ReplicaConnectionProvider.ANY_LAG);
+		try {
+			assertNotNull(connection.get(key));
+		} finally {
+			replicated.release(connection);
+		}
+	}
+
+	/**
+	 * Chunks a replica does not have yet are read from the primary
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void replicaMissReadFromPrimary() throws Exception {
+		ConnectionProvider primary = node();
+		ConnectionProvider replica = node();
+		owners.get(replica).setReplica(true);
+		ReplicaConnectionProvider replicated = new ReplicaConnectionProvider(
+				primary).addReplica(replica);
+		RedisChunkTable table = new RedisChunkTable(replicated);
+		table.setMaxReplicaLag(ReplicaConnectionProvider.ANY_LAG);
+		ChunkKey chunk = ChunkKey.create(RepositoryKey.fromInt(1),
+				ObjectId.fromRaw(Constants.newMessageDigest().digest(key(0))));
+		PackChunk.Members members = new PackChunk.Members();
+		members.setChunkKey(chunk);
+		members.setChunkData(chunk.asBytes());
+		RedisWriteBuffer buffer = new RedisWriteBuffer(replicated);
+		table.put(members, buffer);
+		buffer.flush();
+		assertNull(owners.get(replica).hget(chunk.asBytes(),
+				Constants.encode("data")));
+
+		SyncCallback<Collection<PackChunk.Members>> callback = new SyncCallback<Collection<PackChunk.Members>>();
+		table.get(Context.READ_REPAIR, Collections.singleton(chunk), callback);
+		Collection<PackChunk.Members> read = callback.get();
+		assertEquals(1, read.size());
+		assertArrayEquals(chunk.asBytes(), read.iterator().next()
+				.getChunkData());
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2011 Kevin Sawicki <kevinsawicki@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ */
+package org.gitective.redis;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.eclipse.jgit.storage.dht.AsyncCallback;
+import org.eclipse.jgit.storage.dht.DhtException;
+
+/**
+ * Callback that blocks until the result of an asynchronous table call is
+ * available
+ * 
+ * @param <T>
+ */
+public class SyncCallback<T> implements AsyncCallback<T> {
+
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private T result;
+
+	private DhtException error;
+
+	public void onSuccess(T result) {
+		this.result = result;
+		done.countDown();
+	}
+
+	public void onFailure(DhtException error) {
+		this.error = error;
+		done.countDown();
+	}
+
+	/**
+	 * Wait for result
+	 * 
+	 * @return result
+	 * @throws DhtException
+	 * @throws InterruptedException
+	 */
+	public T get() throws DhtException, InterruptedException {
+		done.await();
+		if (error != null)
+			throw error;
+		return result;
+	}
+}